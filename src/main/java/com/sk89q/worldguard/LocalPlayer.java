@@ -20,8 +20,11 @@
 package com.sk89q.worldguard;
 
 import com.sk89q.worldedit.Vector;
+import com.sk89q.worldguard.domains.MembershipCache;
 
 public abstract class LocalPlayer {
+    private final MembershipCache membership = new MembershipCache(this);
+
     /**
      * Get a player's name.
      * 
@@ -80,6 +83,16 @@ public abstract class LocalPlayer {
      */
     public abstract boolean hasPermission(String perm);
     
+    /**
+     * Get the cache of the groups and regions that this player was found
+     * to be in.
+     * 
+     * @return membership cache
+     */
+    public MembershipCache getMembershipCache() {
+        return membership;
+    }
+    
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof LocalPlayer)) {
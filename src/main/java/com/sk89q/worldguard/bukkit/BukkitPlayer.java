@@ -19,19 +19,50 @@
 
 package com.sk89q.worldguard.bukkit;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.bukkit.Location;
 import org.bukkit.entity.Player;
 
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldguard.LocalPlayer;
+import com.sk89q.worldguard.domains.MembershipCache;
 
+/**
+ * Wraps a Bukkit player. Online players are wrapped once by
+ * {@link WorldGuardPlugin#wrapPlayer(Player)}, so the groups and region
+ * bypass permissions that are looked up through the wrapper are cached.
+ * The cache is cleared after the time set by <code>regions.player-cache-ms</code>
+ * or when {@link #refresh()} is called, and a time of 0 turns the cache
+ * off. Other permissions are always looked up.
+ */
 public class BukkitPlayer extends LocalPlayer {
+    /**
+     * Prefix of the permissions that are cached, which are checked for
+     * every protected block.
+     */
+    private static final String CACHED_PREFIX = "worldguard.region.bypass.";
+
     private Player player;
     private WorldGuardPlugin plugin;
+    private final Map<String, Boolean> permissions = new HashMap<String, Boolean>();
+    private String[] groups;
+    private long cacheTime;
     
     public BukkitPlayer(WorldGuardPlugin plugin, Player player) {
         this.plugin = plugin;
         this.player = player;
+        this.cacheTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the wrapped player.
+     * 
+     * @return player
+     */
+    public Player getPlayer() {
+        return player;
     }
 
     @Override
@@ -61,8 +92,14 @@ public class BukkitPlayer extends LocalPlayer {
     }
 
     @Override
-    public String[] getGroups() {
-        return plugin.getGroups(player);
+    public synchronized String[] getGroups() {
+        checkCache();
+
+        if (groups == null) {
+            groups = plugin.getGroups(player);
+        }
+
+        return groups.clone();
     }
 
     @Override
@@ -71,7 +108,43 @@ public class BukkitPlayer extends LocalPlayer {
     }
 
     @Override
-    public boolean hasPermission(String perm) {
-        return plugin.hasPermission(player, perm);
+    public synchronized boolean hasPermission(String perm) {
+        if (!perm.startsWith(CACHED_PREFIX)) {
+            return plugin.hasPermission(player, perm);
+        }
+
+        checkCache();
+        Boolean result = permissions.get(perm);
+
+        if (result == null) {
+            result = plugin.hasPermission(player, perm);
+            permissions.put(perm, result);
+        }
+
+        return result;
+    }
+
+    @Override
+    public synchronized MembershipCache getMembershipCache() {
+        checkCache();
+        return super.getMembershipCache();
+    }
+
+    /**
+     * Forget the cached groups, permissions and region memberships of
+     * this player.
+     */
+    public synchronized void refresh() {
+        cacheTime = System.currentTimeMillis();
+        permissions.clear();
+        groups = null;
+        super.getMembershipCache().invalidate();
+    }
+
+    private void checkCache() {
+        long time = plugin.getGlobalConfiguration().playerCacheTime;
+        if (time <= 0 || System.currentTimeMillis() - cacheTime > time) {
+            refresh();
+        }
     }
 }
@@ -30,6 +30,7 @@ import org.bukkit.util.config.Configuration;
 
 import com.sk89q.worldguard.LocalPlayer;
 import com.sk89q.worldguard.blacklist.Blacklist;
+import com.sk89q.worldguard.protection.regions.ProtectedPolygonalRegion;
 
 /**
  * Represents the global configuration and also delegates configuration
@@ -86,6 +87,17 @@ public class ConfigurationManager {
     public boolean activityHaltToggle = false;
     public boolean autoGodMode;
     public boolean usePlayerMove;
+    public boolean asyncRegionSaving;
+    public int regionSaveWindow;
+    public String regionDatabase;
+    public int regionJournalCompactRecords;
+    public String regionSqlDsn;
+    public String regionSqlUser;
+    public String regionSqlPass;
+    public String regionSqlTablePrefix;
+    public int regionPreloadThreads;
+    public String regionPreloadPolicy;
+    public int playerCacheTime;
 
     /**
      * Construct the object.
@@ -116,6 +128,26 @@ public class ConfigurationManager {
                 "auto-invincible-permission", false);
         usePlayerMove = config.getBoolean(
                 "use-player-move-event", true);
+        asyncRegionSaving = config.getBoolean(
+                "regions.async-save", true);
+        regionSaveWindow = config.getInt(
+                "regions.save-window-ms", 1000);
+        regionDatabase = config.getString(
+                "regions.database", "yaml");
+        regionJournalCompactRecords = config.getInt(
+                "regions.journal.compact-after-records", 10000);
+        regionSqlDsn = config.getString("regions.sql.dsn", "jdbc:sqlite:"
+                + new File(plugin.getDataFolder(), "regions.db").getPath());
+        regionSqlUser = config.getString("regions.sql.username", "");
+        regionSqlPass = config.getString("regions.sql.password", "");
+        regionSqlTablePrefix = config.getString("regions.sql.table-prefix", "wg_");
+        regionPreloadThreads = config.getInt("regions.preload.threads",
+                Runtime.getRuntime().availableProcessors());
+        regionPreloadPolicy = config.getString("regions.preload.while-loading", "block");
+        playerCacheTime = config.getInt("regions.player-cache-ms", 30000);
+        ProtectedPolygonalRegion.setGridLimits(
+                config.getInt("regions.polygon-grid.max-cells", 4096),
+                config.getInt("regions.polygon-grid.min-points", 32));
 
         // Load configurations for each world
         for (World world : plugin.getServer().getWorlds()) {
@@ -92,7 +92,7 @@ public class LegacyWorldGuardMigration {
                     + "and set as your primarily world's database.");
 
             World w = plugin.getServer().getWorlds().get(0);
-            RegionManager mgr = plugin.getGlobalRegionManager().get(w);
+            RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(w);
 
             // First load up the old database using the CSV loader
             CSVDatabase db = new CSVDatabase(oldDatabase);
@@ -23,7 +23,6 @@ import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.entity.Player;
 
-import com.sk89q.worldedit.Vector;
 import com.sk89q.worldguard.protection.ApplicableRegionSet;
 import com.sk89q.worldguard.protection.flags.DefaultFlag;
 import com.sk89q.worldguard.protection.flags.StateFlag;
@@ -53,10 +52,9 @@ public class RegionQueryUtil {
             state.lastInvincibleWorld = world;
 
             if (set == null) {
-                Vector vec = new Vector(state.lastInvincibleX,
-                        state.lastInvincibleY, state.lastInvincibleZ);
                 RegionManager mgr = plugin.getGlobalRegionManager().get(world);
-                set = mgr.getApplicableRegions(vec);
+                set = mgr.getApplicableRegions(state.lastInvincibleX,
+                        state.lastInvincibleY, state.lastInvincibleZ);
             }
 
             state.wasInvincible = set.allows(DefaultFlag.INVINCIBILITY);
@@ -68,10 +66,10 @@ public class RegionQueryUtil {
     public static Boolean isAllowedInvinciblity(WorldGuardPlugin plugin, Player player) {
         World world = player.getWorld();
         FlagStateManager.PlayerFlagState state = plugin.getFlagStateManager().getState(player);
-        Vector vec = new Vector(state.lastInvincibleX, state.lastInvincibleY, state.lastInvincibleZ);
 
         StateFlag.State regionState = plugin.getGlobalRegionManager().get(world).
-                getApplicableRegions(vec).getFlag(DefaultFlag.INVINCIBILITY);
+                getApplicableRegions(state.lastInvincibleX, state.lastInvincibleY,
+                        state.lastInvincibleZ).getFlag(DefaultFlag.INVINCIBILITY);
         if (regionState == StateFlag.State.ALLOW) {
             return true;
         } else if (regionState == StateFlag.State.DENY) {
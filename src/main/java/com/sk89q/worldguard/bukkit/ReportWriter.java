@@ -39,6 +39,7 @@ import com.sk89q.worldguard.protection.GlobalRegionManager;
 import com.sk89q.worldguard.protection.flags.DefaultFlag;
 import com.sk89q.worldguard.protection.flags.Flag;
 import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.managers.CachingRegionManager;
 import com.sk89q.worldguard.protection.managers.RegionManager;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
 import com.sk89q.worldguard.util.LogListBlock;
@@ -290,11 +291,22 @@ public class ReportWriter {
 
             RegionManager worldRegions = regionMgr.get(world);
 
-            regionsLog.put("Type", worldRegions.getClass().getCanonicalName());
+            if (worldRegions instanceof CachingRegionManager) {
+                CachingRegionManager cachingRegions = (CachingRegionManager) worldRegions;
+                regionsLog.put("Type", cachingRegions.getIndex().getClass().getCanonicalName());
+
+                LogListBlock cacheLog = regionsLog.putChild("Query cache");
+                cacheLog.put("Size", cachingRegions.getCacheSize());
+                cacheLog.put("Capacity", cachingRegions.getCacheCapacity());
+                cacheLog.put("Hits", cachingRegions.getCacheHits());
+                cacheLog.put("Misses", cachingRegions.getCacheMisses());
+            } else {
+                regionsLog.put("Type", worldRegions.getClass().getCanonicalName());
+            }
             regionsLog.put("Number of regions", worldRegions.getRegions().size());
             LogListBlock globalRegionLog = regionsLog.putChild("Global region");
             
-            ProtectedRegion globalRegion = worldRegions.getRegion("__global__");
+            ProtectedRegion globalRegion = worldRegions.getGlobalRegion();
             if (globalRegion == null) {
                 globalRegionLog.put("Status", "UNDEFINED");
             } else {
@@ -120,6 +120,8 @@ public class WorldConfiguration {
     public boolean disableMobDamage;
     public boolean useRegions;
     public boolean highFreqFlags;
+    public String regionIndex;
+    public int regionQueryCacheSize;
     public int regionWand = 287;
     public Set<CreatureType> blockCreatureSpawn;
     public boolean useiConomy;
@@ -334,6 +336,8 @@ public class WorldConfiguration {
         useRegions = getBoolean("regions.enable", true);
         regionInvinciblityRemovesMobs = getBoolean("regions.invincibility-removes-mobs", false);
         highFreqFlags = getBoolean("regions.high-frequency-flags", false);
+        regionIndex = getString("regions.index", "rtree");
+        regionQueryCacheSize = getInt("regions.query-cache-size", 1024);
         regionWand = getInt("regions.wand", 287);
         maxClaimVolume = getInt("regions.max-claim-volume", 30000);
         claimOnlyInsideExistingRegions = getBoolean("regions.claim-only-inside-existing-regions", false);
@@ -18,7 +18,6 @@
  */
 package com.sk89q.worldguard.bukkit;
 
-import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.blocks.BlockType;
 import com.sk89q.worldedit.blocks.ItemType;
 import com.sk89q.worldguard.LocalPlayer;
@@ -40,6 +39,8 @@ import org.bukkit.event.block.BlockIgniteEvent.IgniteCause;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.PluginManager;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import static com.sk89q.worldguard.bukkit.BukkitUtil.dropSign;
@@ -277,14 +278,14 @@ public class WorldGuardBlockListener extends BlockListener {
 
         if (wcfg.highFreqFlags && isWater
                 && !plugin.getGlobalRegionManager().allows(DefaultFlag.WATER_FLOW,
-                blockFrom.getLocation())) {
+                blockFrom)) {
             event.setCancelled(true);
             return;
         }
 
         if (wcfg.highFreqFlags && isLava
                 && !plugin.getGlobalRegionManager().allows(DefaultFlag.LAVA_FLOW,
-                blockFrom.getLocation())) {
+                blockFrom)) {
             event.setCancelled(true);
             return;
         }
@@ -356,10 +357,9 @@ public class WorldGuardBlockListener extends BlockListener {
         }
 
         if (wcfg.useRegions) {
-            Vector pt = toVector(block);
             Player player = event.getPlayer();
             RegionManager mgr = plugin.getGlobalRegionManager().get(world);
-            ApplicableRegionSet set = mgr.getApplicableRegions(pt);
+            ApplicableRegionSet set = mgr.getApplicableRegions(block.getX(), block.getY(), block.getZ());
 
             if (player != null && !plugin.getGlobalRegionManager().hasBypass(player, world)) {
                 LocalPlayer localPlayer = plugin.wrapPlayer(player);
@@ -436,9 +436,8 @@ public class WorldGuardBlockListener extends BlockListener {
         
         if (wcfg.useRegions) {
             Block block = event.getBlock();
-            Vector pt = toVector(block);
             RegionManager mgr = plugin.getGlobalRegionManager().get(block.getWorld());
-            ApplicableRegionSet set = mgr.getApplicableRegions(pt);
+            ApplicableRegionSet set = mgr.getApplicableRegions(block.getX(), block.getY(), block.getZ());
 
             if (!set.allows(DefaultFlag.FIRE_SPREAD)) {
                 event.setCancelled(true);
@@ -468,7 +467,7 @@ public class WorldGuardBlockListener extends BlockListener {
 
         //Block Sign Physics
         if(event.getBlock().getTypeId() == 63 || event.getBlock().getTypeId() == 68) {
-            if (wcfg.useRegions && !this.plugin.getGlobalRegionManager().allows(DefaultFlag.SIGN_UPDATE, event.getBlock().getLocation())) {
+            if (wcfg.useRegions && !this.plugin.getGlobalRegionManager().allows(DefaultFlag.SIGN_UPDATE, event.getBlock())) {
                 event.setCancelled(true);
                 return;
             }
@@ -510,7 +509,7 @@ public class WorldGuardBlockListener extends BlockListener {
         WorldConfiguration wcfg = cfg.get(world);
 
         if (wcfg.useRegions) {
-            if (!plugin.getGlobalRegionManager().canBuild(player, blockPlaced.getLocation())) {
+            if (!plugin.getGlobalRegionManager().canBuild(player, blockPlaced)) {
                 player.sendMessage(ChatColor.DARK_RED + "You don't have permission for this area.");
                 event.setCancelled(true);
                 return;
@@ -678,7 +677,7 @@ public class WorldGuardBlockListener extends BlockListener {
 
         if (wcfg.useRegions) {
             if (!plugin.getGlobalRegionManager().allows(DefaultFlag.LEAF_DECAY,
-                    event.getBlock().getLocation())) {
+                    event.getBlock())) {
                 event.setCancelled(true);
             }
         }
@@ -708,7 +707,7 @@ public class WorldGuardBlockListener extends BlockListener {
                 return;
             }
             if (wcfg.useRegions && !plugin.getGlobalRegionManager().allows(
-                    DefaultFlag.ICE_FORM, event.getBlock().getLocation())) {
+                    DefaultFlag.ICE_FORM, event.getBlock())) {
                 event.setCancelled(true);
                 return;
             }
@@ -720,7 +719,7 @@ public class WorldGuardBlockListener extends BlockListener {
                 return;
             }
             if (wcfg.useRegions && !plugin.getGlobalRegionManager().allows(
-                    DefaultFlag.SNOW_FALL, event.getBlock().getLocation())) {
+                    DefaultFlag.SNOW_FALL, event.getBlock())) {
                 event.setCancelled(true);
                 return;
             }
@@ -751,7 +750,7 @@ public class WorldGuardBlockListener extends BlockListener {
                 return;
             }
             if (wcfg.useRegions && !plugin.getGlobalRegionManager().allows(
-                    DefaultFlag.MUSHROOMS, event.getBlock().getLocation())) {
+                    DefaultFlag.MUSHROOMS, event.getBlock())) {
                 event.setCancelled(true);
                 return;
             }
@@ -777,7 +776,7 @@ public class WorldGuardBlockListener extends BlockListener {
                 return;
             }
             if (wcfg.useRegions && !plugin.getGlobalRegionManager().allows(
-                    DefaultFlag.ICE_MELT, event.getBlock().getLocation())) {
+                    DefaultFlag.ICE_MELT, event.getBlock())) {
                 event.setCancelled(true);
                 return;
             }
@@ -789,7 +788,7 @@ public class WorldGuardBlockListener extends BlockListener {
                 return;
             }
             if (wcfg.useRegions && !plugin.getGlobalRegionManager().allows(
-                    DefaultFlag.SNOW_MELT, event.getBlock().getLocation())) {
+                    DefaultFlag.SNOW_MELT, event.getBlock())) {
                 event.setCancelled(true);
                 return;
             }
@@ -808,16 +807,15 @@ public class WorldGuardBlockListener extends BlockListener {
         WorldConfiguration wcfg = cfg.get(event.getBlock().getWorld());
 
         if (wcfg.useRegions) {
-            if (!plugin.getGlobalRegionManager().allows(DefaultFlag.PISTONS, event.getBlock().getLocation())) {
+            List<Block> blocks = new ArrayList<Block>(event.getBlocks().size() + 1);
+            blocks.add(event.getBlock());
+            blocks.addAll(event.getBlocks());
+
+            if (!plugin.getGlobalRegionManager().allowsAll(DefaultFlag.PISTONS,
+                    event.getBlock().getWorld(), blocks)) {
                 event.setCancelled(true);
                 return;
             }
-            for (Block block : event.getBlocks()) {
-                if (!plugin.getGlobalRegionManager().allows(DefaultFlag.PISTONS, block.getLocation())) {
-                    event.setCancelled(true);
-                    return;
-                }
-            }
         }
     }
 
@@ -834,7 +832,7 @@ public class WorldGuardBlockListener extends BlockListener {
 
         if (wcfg.useRegions && event.isSticky()) {
             if (!(plugin.getGlobalRegionManager().allows(DefaultFlag.PISTONS, event.getRetractLocation()))
-                    && !(plugin.getGlobalRegionManager().allows(DefaultFlag.PISTONS, event.getBlock().getLocation()))) {
+                    && !(plugin.getGlobalRegionManager().allows(DefaultFlag.PISTONS, event.getBlock()))) {
                 event.setCancelled(true);
             }
         }
@@ -544,15 +544,10 @@ public class WorldGuardEntityListener extends EntityListener {
             }
 
             if (wcfg.useRegions) {
-                if (wcfg.useRegions) {
-                    RegionManager mgr = plugin.getGlobalRegionManager().get(world);
-
-                    for (Block block : event.blockList()) {
-                        if (!mgr.getApplicableRegions(toVector(block)).allows(DefaultFlag.CREEPER_EXPLOSION)) {
-                            event.setCancelled(true);
-                            return;
-                        }
-                    }
+                if (!plugin.getGlobalRegionManager().allowsAll(DefaultFlag.CREEPER_EXPLOSION,
+                        world, event.blockList())) {
+                    event.setCancelled(true);
+                    return;
                 }
             }
         } else if (ent instanceof TNTPrimed) {
@@ -562,13 +557,10 @@ public class WorldGuardEntityListener extends EntityListener {
             }
 
             if (wcfg.useRegions) {
-                RegionManager mgr = plugin.getGlobalRegionManager().get(world);
-
-                for (Block block : event.blockList()) {
-                    if (!mgr.getApplicableRegions(toVector(block)).allows(DefaultFlag.TNT)) {
-                        event.setCancelled(true);
-                        return;
-                    }
+                if (!plugin.getGlobalRegionManager().allowsAll(DefaultFlag.TNT,
+                        world, event.blockList())) {
+                    event.setCancelled(true);
+                    return;
                 }
             }
         } else if (ent instanceof Fireball) {
@@ -578,13 +570,10 @@ public class WorldGuardEntityListener extends EntityListener {
             }
 
             if (wcfg.useRegions) {
-                RegionManager mgr = plugin.getGlobalRegionManager().get(world);
-
-                for (Block block : event.blockList()) {
-                    if (!mgr.getApplicableRegions(toVector(block)).allows(DefaultFlag.GHAST_FIREBALL)) {
-                        event.setCancelled(true);
-                        return;
-                    }
+                if (!plugin.getGlobalRegionManager().allowsAll(DefaultFlag.GHAST_FIREBALL,
+                        world, event.blockList())) {
+                    event.setCancelled(true);
+                    return;
                 }
             }
         }
@@ -769,7 +758,7 @@ public class WorldGuardEntityListener extends EntityListener {
         }
 
         if (wcfg.useRegions) {
-            if (!plugin.getGlobalRegionManager().canBuild(player, placedOn.getLocation())) {
+            if (!plugin.getGlobalRegionManager().canBuild(player, placedOn)) {
                 player.sendMessage(ChatColor.DARK_RED + "You don't have permission for this area.");
                 event.setCancelled(true);
                 return;
@@ -158,6 +158,8 @@ public class WorldGuardPlayerListener extends PlayerListener {
         Player player = event.getPlayer();
         World world = player.getWorld();
 
+        plugin.trackPlayer(player);
+
         ConfigurationManager cfg = plugin.getGlobalStateManager();
         WorldConfiguration wcfg = cfg.get(world);
 
@@ -227,8 +229,8 @@ public class WorldGuardPlayerListener extends PlayerListener {
                 LocalPlayer localPlayer = plugin.wrapPlayer(player);
                 RegionManager mgr = plugin.getGlobalRegionManager().get(world);
                 Location loc = player.getLocation();
-                Vector pt = new Vector(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
-                ApplicableRegionSet set = mgr.getApplicableRegions(pt);
+                ApplicableRegionSet set = mgr.getApplicableRegions(
+                        loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
 
                 if (state.lastExitAllowed == null) {
                     state.lastExitAllowed = set.allows(DefaultFlag.EXIT, localPlayer);
@@ -306,8 +308,9 @@ public class WorldGuardPlayerListener extends PlayerListener {
                 boolean hasBypass = plugin.getGlobalRegionManager().hasBypass(player, world);
 
                 RegionManager mgr = plugin.getGlobalRegionManager().get(world);
-                Vector pt = new Vector(event.getTo().getBlockX(), event.getTo().getBlockY(), event.getTo().getBlockZ());
-                ApplicableRegionSet set = mgr.getApplicableRegions(pt);
+                Location to = event.getTo();
+                ApplicableRegionSet set = mgr.getApplicableRegions(
+                        to.getBlockX(), to.getBlockY(), to.getBlockZ());
 
                 boolean entryAllowed = set.allows(DefaultFlag.ENTRY, localPlayer);
                 if (!hasBypass && !entryAllowed) {
@@ -423,9 +426,8 @@ public class WorldGuardPlayerListener extends PlayerListener {
         WorldConfiguration wcfg = cfg.get(world);
 
         if (wcfg.useRegions) {
-            Vector pt = toVector(block);
             RegionManager mgr = plugin.getGlobalRegionManager().get(world);
-            ApplicableRegionSet set = mgr.getApplicableRegions(pt);
+            ApplicableRegionSet set = mgr.getApplicableRegions(block.getX(), block.getY(), block.getZ());
             LocalPlayer localPlayer = plugin.wrapPlayer(player);
 
             if (type == Material.STONE_BUTTON
@@ -535,9 +537,8 @@ public class WorldGuardPlayerListener extends PlayerListener {
         }
 
         if (wcfg.useRegions) {
-            Vector pt = toVector(block);
             RegionManager mgr = plugin.getGlobalRegionManager().get(world);
-            ApplicableRegionSet set = mgr.getApplicableRegions(pt);
+            ApplicableRegionSet set = mgr.getApplicableRegions(block.getX(), block.getY(), block.getZ());
             LocalPlayer localPlayer = plugin.wrapPlayer(player);
 
             if (item.getTypeId() == wcfg.regionWand) {
@@ -760,9 +761,8 @@ public class WorldGuardPlayerListener extends PlayerListener {
         }
 
         if (wcfg.useRegions) {
-            Vector pt = toVector(block);
             RegionManager mgr = plugin.getGlobalRegionManager().get(world);
-            ApplicableRegionSet set = mgr.getApplicableRegions(pt);
+            ApplicableRegionSet set = mgr.getApplicableRegions(block.getX(), block.getY(), block.getZ());
             LocalPlayer localPlayer = plugin.wrapPlayer(player);
 
             if (type == Material.STONE_PLATE || type == Material.WOOD_PLATE) {
@@ -1047,7 +1047,7 @@ public class WorldGuardPlayerListener extends PlayerListener {
             Vector pt = toVector(player.getLocation());
             RegionManager mgr = plugin.getGlobalRegionManager().get(world);
             ApplicableRegionSet set = mgr.getApplicableRegions(pt);
-            ProtectedRegion globalRegion = mgr.getRegion("__global__");
+            ProtectedRegion globalRegion = mgr.getGlobalRegion();
 
             String[] parts = event.getMessage().split(" ");
 
@@ -27,6 +27,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Filter;
 import java.util.logging.Logger;
 
@@ -56,6 +58,7 @@ import com.sk89q.worldguard.TickSyncDelayLoggerFilter;
 import com.sk89q.worldguard.bukkit.commands.GeneralCommands;
 import com.sk89q.worldguard.bukkit.commands.ProtectionCommands;
 import com.sk89q.worldguard.bukkit.commands.ToggleCommands;
+import com.sk89q.worldguard.domains.MembershipCache;
 import com.sk89q.worldguard.protection.GlobalRegionManager;
 import com.sk89q.worldguard.protection.managers.RegionManager;
 
@@ -100,6 +103,13 @@ public class WorldGuardPlugin extends JavaPlugin {
      */
     private FlagStateManager flagStateManager;
 
+    /**
+     * Wrappers of the players that are online by name, so that their cached
+     * groups and permissions are kept between events.
+     */
+    private final Map<String, BukkitPlayer> localPlayers =
+            new ConcurrentHashMap<String, BukkitPlayer>();
+
     /**
      * Construct objects. Actual loading occurs when the plugin is enabled, so
      * this merely instantiates the objects.
@@ -178,6 +188,7 @@ public class WorldGuardPlugin extends JavaPlugin {
 
         // Check god mode for existing players, if any
         for (Player player : getServer().getOnlinePlayers()) {
+            trackPlayer(player);
             if (inGroup(player, "wg-invincible") ||
                     (configuration.autoGodMode && hasPermission(player, "worldguard.auto-invincible"))) {
                 configuration.enableGodMode(player);
@@ -660,7 +671,41 @@ public class WorldGuardPlugin extends JavaPlugin {
      * @return
      */
     public LocalPlayer wrapPlayer(Player player) {
-        return new BukkitPlayer(this, player);
+        BukkitPlayer localPlayer = localPlayers.get(player.getName());
+
+        if (localPlayer == null) {
+            return new BukkitPlayer(this, player);
+        }
+
+        // The server may have replaced the player object, such as on respawn
+        if (localPlayer.getPlayer() != player) {
+            localPlayer = new BukkitPlayer(this, player);
+            localPlayers.put(player.getName(), localPlayer);
+        }
+
+        return localPlayer;
+    }
+
+    /**
+     * Keep a wrapper for a player that has joined, which is returned by
+     * {@link #wrapPlayer(Player)} until the player is forgotten.
+     * 
+     * @param player
+     */
+    public void trackPlayer(Player player) {
+        localPlayers.put(player.getName(), new BukkitPlayer(this, player));
+    }
+
+    /**
+     * Forget the cached groups, permissions and region memberships of every
+     * player, such as after permissions have been reloaded.
+     */
+    public void refreshPlayers() {
+        MembershipCache.invalidateAll();
+
+        for (BukkitPlayer localPlayer : localPlayers.values()) {
+            localPlayer.refresh();
+        }
     }
     
     /**
@@ -738,6 +783,7 @@ public class WorldGuardPlugin extends JavaPlugin {
      */
     public void forgetPlayer(Player player) {
         flagStateManager.forget(player);
+        localPlayers.remove(player.getName());
     }
     
     /**
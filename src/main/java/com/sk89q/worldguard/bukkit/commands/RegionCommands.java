@@ -21,7 +21,11 @@ package com.sk89q.worldguard.bukkit.commands;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.bukkit.ChatColor;
 import org.bukkit.World;
@@ -84,7 +88,7 @@ public class RegionCommands {
             throw new CommandException("Select a region with WorldEdit first.");
         }
         
-        RegionManager mgr = plugin.getGlobalRegionManager().get(sel.getWorld());
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(sel.getWorld());
         if (mgr.hasRegion(id)) {
             throw new CommandException("That region is already defined. Use redefine instead.");
         }
@@ -139,7 +143,7 @@ public class RegionCommands {
             throw new CommandException("The region cannot be named __global__");
         }
 
-        RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
         ProtectedRegion existing = mgr.getRegion(id);
 
         if (existing == null) {
@@ -227,7 +231,7 @@ public class RegionCommands {
             throw new CommandException("Select a region with WorldEdit first.");
         }
         
-        RegionManager mgr = plugin.getGlobalRegionManager().get(sel.getWorld());
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(sel.getWorld());
 
         if (mgr.hasRegion(id)) {
             throw new CommandException("That region already exists. Please choose a different name.");
@@ -346,7 +350,7 @@ public class RegionCommands {
         
         String id = args.getString(0);
 
-        RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
         ProtectedRegion region = mgr.getRegion(id);
 
         if (region == null) {
@@ -404,7 +408,7 @@ public class RegionCommands {
             id = args.getString(1).toLowerCase();
         }
         
-        RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
         
         if (!mgr.hasRegion(id)) {
             if (!ProtectedRegion.isValidId(id)) {
@@ -457,6 +461,29 @@ public class RegionCommands {
         sender.sendMessage(ChatColor.BLUE + "Flags: " + s.toString());
         sender.sendMessage(ChatColor.BLUE + "Parent: "
                 + (region.getParent() == null ? "(none)" : region.getParent().getId()));
+
+        List<ProtectedRegion> children = mgr.getChildren(region);
+        s = new StringBuilder();
+
+        for (ProtectedRegion child : children) {
+            if (s.length() > 0) {
+                s.append(", ");
+            }
+
+            s.append(child.getId());
+        }
+
+        if (children.isEmpty()) {
+            s.append("(none)");
+        } else {
+            int descendants = mgr.getDescendants(region).size();
+
+            if (descendants > children.size()) {
+                s.append(" (" + descendants + " regions in total)");
+            }
+        }
+
+        sender.sendMessage(ChatColor.BLUE + "Children: " + s.toString());
         sender.sendMessage(ChatColor.LIGHT_PURPLE + "Owners: "
                 + owners.toUserFriendlyString());
         sender.sendMessage(ChatColor.LIGHT_PURPLE + "Members: "
@@ -510,16 +537,27 @@ public class RegionCommands {
         
         int listSize = 10;
 
-        RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
         Map<String, ProtectedRegion> regions = mgr.getRegions();
 
-        int size = regions.size();
+        // Regions listing another player by name come straight from the
+        // ownership index
+        Collection<String> ids;
+        if (!name.isEmpty() && !own) {
+            Set<String> matched = new HashSet<String>(mgr.getOwnedRegionIds(name));
+            matched.addAll(mgr.getMemberRegionIds(name));
+            ids = matched;
+        } else {
+            ids = regions.keySet();
+        }
+
+        int size = ids.size();
 
         String[] regionIDList = new String[size];
         int index = 0;
         boolean show = false;
         String prefix = "";
-        for (String id : regions.keySet()) {
+        for (String id : ids) {
             show = false;
             prefix = "";
             if (name.isEmpty()) {
@@ -592,7 +630,7 @@ public class RegionCommands {
             value = args.getJoinedStrings(2);
         }
 
-        RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
         ProtectedRegion region = mgr.getRegion(id);
 
         if (region == null) {
@@ -725,7 +763,7 @@ public class RegionCommands {
             throw new CommandException("The region cannot be named __global__");
         }
         
-        RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
         ProtectedRegion region = mgr.getRegion(id);
 
         if (region == null) {
@@ -770,7 +808,7 @@ public class RegionCommands {
             throw new CommandException("The region cannot be named __global__");
         }
         
-        RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
         ProtectedRegion region = mgr.getRegion(id);
         
         if (args.argsLength() == 1) {
@@ -841,7 +879,7 @@ public class RegionCommands {
         
         String id = args.getString(0);
 
-        RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
         ProtectedRegion region = mgr.getRegion(id);
 
         if (region == null) {
@@ -856,10 +894,17 @@ public class RegionCommands {
             plugin.checkPermission(sender, "worldguard.region.remove." + id.toLowerCase());
         }
         
+        int children = mgr.getDescendants(region).size();
         mgr.removeRegion(id);
         
-        sender.sendMessage(ChatColor.YELLOW
-                + "Region '" + id + "' removed.");
+        if (children > 0) {
+            sender.sendMessage(ChatColor.YELLOW
+                    + "Region '" + id + "' and " + children
+                    + " child region(s) removed.");
+        } else {
+            sender.sendMessage(ChatColor.YELLOW
+                    + "Region '" + id + "' removed.");
+        }
         
         try {
             mgr.save();
@@ -883,7 +928,7 @@ public class RegionCommands {
         }
 
         if (world != null) {
-            RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+            RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
             
             try {
                 mgr.load();
@@ -895,7 +940,7 @@ public class RegionCommands {
             }
         } else {
             for (World w : plugin.getServer().getWorlds()) {
-                RegionManager mgr = plugin.getGlobalRegionManager().get(w);
+                RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(w);
                 
                 try {
                     mgr.load();
@@ -924,7 +969,7 @@ public class RegionCommands {
         }
 
         if (world != null) {
-            RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+            RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
             
             try {
                 mgr.save();
@@ -936,7 +981,7 @@ public class RegionCommands {
             }
         } else {
             for (World w : plugin.getServer().getWorlds()) {
-                RegionManager mgr = plugin.getGlobalRegionManager().get(w);
+                RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(w);
                 
                 try {
                     mgr.save();
@@ -52,7 +52,7 @@ public class RegionMemberCommands {
         
         String id = args.getString(0);
 
-        RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
         ProtectedRegion region = mgr.getRegion(id);
 
         if (region == null) {
@@ -93,7 +93,7 @@ public class RegionMemberCommands {
         
         String id = args.getString(0);
 
-        RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
         ProtectedRegion region = mgr.getRegion(id);
 
         if (region == null) {
@@ -134,7 +134,7 @@ public class RegionMemberCommands {
         
         String id = args.getString(0);
 
-        RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
         ProtectedRegion region = mgr.getRegion(id);
 
         if (region == null) {
@@ -175,7 +175,7 @@ public class RegionMemberCommands {
         
         String id = args.getString(0);
 
-        RegionManager mgr = plugin.getGlobalRegionManager().get(world);
+        RegionManager mgr = plugin.getGlobalRegionManager().getLoaded(world);
         ProtectedRegion region = mgr.getRegion(id);
 
         if (region == null) {
@@ -75,6 +75,7 @@ public class WorldGuardCommands {
             plugin.getGlobalRegionManager().unload();
             plugin.getGlobalStateManager().load();
             plugin.getGlobalRegionManager().preload();
+            plugin.refreshPlayers();
             sender.sendMessage("WorldGuard configuration reloaded.");
         } catch (Throwable t) {
             sender.sendMessage("Error while reloading: "
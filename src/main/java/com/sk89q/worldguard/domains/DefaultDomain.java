@@ -32,6 +32,7 @@ import com.sk89q.worldguard.LocalPlayer;
 public class DefaultDomain implements Domain {
     private Set<String> groups;
     private Set<String> players;
+    private volatile DomainChangeListener[] listeners = new DomainChangeListener[0];
     
     public DefaultDomain() {
         this.groups = new LinkedHashSet<String>();
@@ -39,27 +40,35 @@ public class DefaultDomain implements Domain {
     }
     
     public void addPlayer(String name) {
-        players.add(name.toLowerCase());
+        if (players.add(name.toLowerCase())) {
+            fireChanged();
+        }
     }
     
     public void addPlayer(LocalPlayer player) {
-        players.add(player.getName().toLowerCase());
+        addPlayer(player.getName());
     }
     
     public void removePlayer(String name) {
-        players.remove(name.toLowerCase());
+        if (players.remove(name.toLowerCase())) {
+            fireChanged();
+        }
     }
     
     public void removePlayer(LocalPlayer player) {
-        players.remove(player.getName().toLowerCase());
+        removePlayer(player.getName());
     }
     
     public void addGroup(String name) {
-        groups.add(name.toLowerCase());
+        if (groups.add(name.toLowerCase())) {
+            fireChanged();
+        }
     }
     
     public void removeGroup(String name) {
-        groups.remove(name.toLowerCase());
+        if (groups.remove(name.toLowerCase())) {
+            fireChanged();
+        }
     }
     
     public Set<String> getGroups() {
@@ -71,12 +80,14 @@ public class DefaultDomain implements Domain {
     }
 
     public boolean contains(LocalPlayer player) {
-        if (players.contains(player.getName().toLowerCase())) {
+        MembershipCache cache = player.getMembershipCache();
+        
+        if (players.contains(cache.getName())) {
             return true;
         }
         
         for (String group : groups) {
-            if (player.hasGroup(group)) {
+            if (cache.hasGroup(group)) {
                 return true;
             }
         }
@@ -84,6 +95,48 @@ public class DefaultDomain implements Domain {
         return false;
     }
     
+    /**
+     * Add a listener to be notified when this domain changes. Adding a
+     * listener that is already registered has no effect.
+     * 
+     * @param listener
+     */
+    public synchronized void addChangeListener(DomainChangeListener listener) {
+        for (DomainChangeListener existing : listeners) {
+            if (existing == listener) {
+                return;
+            }
+        }
+
+        DomainChangeListener[] newListeners = new DomainChangeListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+
+    /**
+     * Remove a listener.
+     * 
+     * @param listener
+     */
+    public synchronized void removeChangeListener(DomainChangeListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                DomainChangeListener[] newListeners = new DomainChangeListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, newListeners.length - i);
+                listeners = newListeners;
+                return;
+            }
+        }
+    }
+
+    private void fireChanged() {
+        for (DomainChangeListener listener : listeners) {
+            listener.domainChanged(this);
+        }
+    }
+    
     public int size() {
         return groups.size() + players.size();
     }
@@ -41,8 +41,10 @@ public class GroupDomain implements Domain {
     }
 
     public boolean contains(LocalPlayer player) {
+        MembershipCache cache = player.getMembershipCache();
+        
         for (String group : groups) {
-            if (player.hasGroup(group)) {
+            if (cache.hasGroup(group)) {
                 return true;
             }
         }
@@ -0,0 +1,172 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldguard.domains;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import com.sk89q.worldguard.LocalPlayer;
+
+/**
+ * Remembers the lowercase name of a player, the groups that the player was
+ * found to be in and the result of membership checks, so that checking the
+ * same player against many regions doesn't go to the permissions plugin for
+ * every region and flag.
+ * 
+ * <p>Membership results are stored against an object that stands for a
+ * fixed set of players and groups, such as an
+ * {@link com.sk89q.worldguard.protection.regions.EffectiveRegion}, which
+ * is replaced when the owners or members of its region change. Group
+ * results are kept until {@link #invalidate()} or {@link #invalidateAll()}
+ * is called, which must happen when permissions are reloaded.</p>
+ */
+public class MembershipCache {
+
+    /**
+     * Bumped by {@link #invalidateAll()}. Caches that were filled under an
+     * older generation are cleared on their next use.
+     */
+    private static volatile int generation;
+
+    private final LocalPlayer player;
+    private String name;
+    private int cachedGeneration = generation;
+    private final Map<String, Boolean> groups = new HashMap<String, Boolean>();
+
+    /**
+     * Results by key. Each value has two bits per index: whether the
+     * result is known and what it is.
+     */
+    private final Map<Object, Integer> results = new WeakHashMap<Object, Integer>();
+
+    /**
+     * Construct the cache. The player isn't queried until the cache is
+     * first used.
+     * 
+     * @param player
+     */
+    public MembershipCache(LocalPlayer player) {
+        this.player = player;
+    }
+
+    /**
+     * Get the lowercase name of the player.
+     * 
+     * @return lowercase name
+     */
+    public String getName() {
+        String name = this.name;
+
+        if (name == null) {
+            name = player.getName().toLowerCase();
+            this.name = name;
+        }
+
+        return name;
+    }
+
+    /**
+     * Checks whether the player is in a group.
+     * 
+     * @param group
+     * @return whether the player is in the group
+     */
+    public synchronized boolean hasGroup(String group) {
+        checkGeneration();
+        Boolean result = groups.get(group);
+
+        if (result == null) {
+            result = player.hasGroup(group);
+            groups.put(group, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks whether the player is either in a set of lowercase player names
+     * or in one of a set of groups, and remembers the result under a key.
+     * The sets must not change for as long as the key is in use.
+     * 
+     * @param key object that the sets belong to
+     * @param index number of the pair of sets of that object, from 0 to 15
+     * @param players lowercase player names
+     * @param groups group names
+     * @return whether the player is in one of the sets
+     */
+    public synchronized boolean contains(Object key, int index,
+            Set<String> players, Set<String> groups) {
+        checkGeneration();
+        Integer bits = results.get(key);
+        int known = 1 << (index * 2);
+        int value = known << 1;
+
+        if (bits != null && (bits & known) != 0) {
+            return (bits & value) != 0;
+        }
+
+        boolean result = contains(players, groups);
+        int newBits = (bits != null ? bits : 0) | known | (result ? value : 0);
+        results.put(key, newBits);
+        return result;
+    }
+
+    private boolean contains(Set<String> players, Set<String> groups) {
+        if (!players.isEmpty() && players.contains(getName())) {
+            return true;
+        }
+
+        for (String group : groups) {
+            if (hasGroup(group)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Forget everything that was cached for this player.
+     */
+    public synchronized void invalidate() {
+        groups.clear();
+        results.clear();
+    }
+
+    /**
+     * Forget the cached groups and membership results of every player, such
+     * as after permissions have been reloaded.
+     */
+    public static synchronized void invalidateAll() {
+        generation++;
+    }
+
+    private void checkGeneration() {
+        int current = generation;
+
+        if (cachedGeneration != current) {
+            cachedGeneration = current;
+            groups.clear();
+            results.clear();
+        }
+    }
+}
@@ -44,7 +44,7 @@ public class PlayerDomain implements Domain {
     }
     
     public boolean contains(LocalPlayer player) {
-        return players.contains(player.getName().toLowerCase());
+        return players.contains(player.getMembershipCache().getName());
     }
     
     public int size() {
@@ -18,13 +18,9 @@
  */
 package com.sk89q.worldguard.protection;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Set;
 
 import com.sk89q.worldguard.LocalPlayer;
 import com.sk89q.worldguard.protection.flags.DefaultFlag;
@@ -32,6 +28,7 @@ import com.sk89q.worldguard.protection.flags.Flag;
 import com.sk89q.worldguard.protection.flags.RegionGroupFlag;
 import com.sk89q.worldguard.protection.flags.StateFlag;
 import com.sk89q.worldguard.protection.flags.StateFlag.State;
+import com.sk89q.worldguard.protection.regions.EffectiveRegion;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
 
 /**
@@ -46,11 +43,27 @@ import com.sk89q.worldguard.protection.regions.ProtectedRegion;
  */
 public class ApplicableRegionSet implements Iterable<ProtectedRegion> {
 
+    /**
+     * Per-thread bit sets used while resolving flags, indexed by the
+     * position of a region in this set. They are reused between calls so
+     * that resolving a flag does not create garbage.
+     */
+    private static final ThreadLocal<long[][]> scratch = new ThreadLocal<long[][]>() {
+        @Override
+        protected long[][] initialValue() {
+            return new long[2][1];
+        }
+    };
+
     private Collection<ProtectedRegion> applicable;
+    private ProtectedRegion[] regions;
     private ProtectedRegion globalRegion;
+    private volatile boolean shared;
+    private volatile StateTable stateTable;
 
     /**
-     * Construct the object.
+     * Construct the object. The collection should be in order of priority
+     * and must not be changed afterwards.
      * 
      * @param applicable
      * @param globalRegion 
@@ -58,9 +71,20 @@ public class ApplicableRegionSet implements Iterable<ProtectedRegion> {
     public ApplicableRegionSet(Collection<ProtectedRegion> applicable,
             ProtectedRegion globalRegion) {
         this.applicable = applicable;
+        this.regions = applicable.toArray(new ProtectedRegion[applicable.size()]);
         this.globalRegion = globalRegion;
     }
     
+    /**
+     * Mark this set as shared between queries, such as when it is cached
+     * by a region manager, so that the results of {@link #allows(StateFlag)}
+     * are kept and reused. Other sets are used for a single query and
+     * resolve every flag directly.
+     */
+    public void setShared() {
+        shared = true;
+    }
+
     /**
      * Checks if a player can build in an area.
      * 
@@ -93,7 +117,27 @@ public class ApplicableRegionSet implements Iterable<ProtectedRegion> {
         if (flag == DefaultFlag.BUILD) {
             throw new IllegalArgumentException("Can't use build flag with allows()");
         }
-        return internalGetState(flag, null, null, null);
+
+        if (!shared) {
+            return internalGetState(flag, null, null, null);
+        }
+
+        // The answer only depends on the regions in this set and their
+        // ancestors, so it is worked out once per flag and kept until one
+        // of them changes
+        StateTable table = stateTable;
+        if (table == null || !table.isCurrent()) {
+            table = new StateTable();
+        }
+
+        int ordinal = flag.getOrdinal();
+        if (table.isCompiled(ordinal)) {
+            return table.isAllowed(ordinal);
+        }
+
+        boolean allowed = internalGetState(flag, null, null, null);
+        stateTable = table.with(ordinal, allowed);
+        return allowed;
     }
     
     /**
@@ -118,7 +162,7 @@ public class ApplicableRegionSet implements Iterable<ProtectedRegion> {
      * @return whether the player is an owner of all regions
      */
     public boolean isOwnerOfAll(LocalPlayer player) {
-        for (ProtectedRegion region : applicable) {
+        for (ProtectedRegion region : regions) {
             if (!region.isOwner(player)) {
                 return false;
             }
@@ -135,7 +179,7 @@ public class ApplicableRegionSet implements Iterable<ProtectedRegion> {
      * @return whether the player is a member of all regions
      */
     public boolean isMemberOfAll(LocalPlayer player) {
-        for (ProtectedRegion region : applicable) {
+        for (ProtectedRegion region : regions) {
             if (!region.isMember(player)) {
                 return false;
             }
@@ -205,15 +249,15 @@ public class ApplicableRegionSet implements Iterable<ProtectedRegion> {
         // needsClear. At the end, if needsClear is not empty, that means that
         // permission should not be given. If a parent has multiple children
         // and one child does not allow permissions, then it will be placed into
-        // needsClear just like as if was a parent.
+        // needsClear just like as if was a parent. Both sets are bit sets
+        // indexed by the position of a region in this set.
 
-        Set<ProtectedRegion> needsClear = new HashSet<ProtectedRegion>();
-        Set<ProtectedRegion> hasCleared = new HashSet<ProtectedRegion>();
+        long[][] sets = getScratch();
+        long[] needsClear = sets[0];
+        long[] hasCleared = sets[1];
 
-        Iterator<ProtectedRegion> it = applicable.iterator();
-        
-        while (it.hasNext()) {
-            ProtectedRegion region = it.next();
+        for (int i = 0; i < regions.length; i++) {
+            ProtectedRegion region = regions[i];
 
             // Ignore lower priority regions
             if (hasFlagDefined && region.getPriority() < lastPriority) {
@@ -261,11 +305,11 @@ public class ApplicableRegionSet implements Iterable<ProtectedRegion> {
             if (player != null) {
                 hasFlagDefined = true;
 
-                if (hasCleared.contains(region)) {
+                if (isSet(hasCleared, i)) {
                     // Already cleared, so do nothing
                 } else {
                     if (!region.isMember(player)) {
-                        needsClear.add(region);
+                        set(needsClear, i);
                     } else {
                         // Need to clear all parents
                         clearParents(needsClear, hasCleared, region);
@@ -277,27 +321,7 @@ public class ApplicableRegionSet implements Iterable<ProtectedRegion> {
         }
 
         return found == false ? def :
-                (allowed || (player != null && needsClear.size() == 0));
-    }
-
-    /**
-     * Clear a region's parents for isFlagAllowed().
-     * 
-     * @param needsClear
-     * @param hasCleared
-     * @param region
-     */
-    private void clearParents(Set<ProtectedRegion> needsClear,
-            Set<ProtectedRegion> hasCleared, ProtectedRegion region) {
-        ProtectedRegion parent = region.getParent();
-
-        while (parent != null) {
-            if (!needsClear.remove(parent)) {
-                hasCleared.add(parent);
-            }
-
-            parent = parent.getParent();
-        }
+                (allowed || (player != null && firstSet(needsClear) == -1));
     }
 
     /**
@@ -318,61 +342,134 @@ public class ApplicableRegionSet implements Iterable<ProtectedRegion> {
         int lastPriority = 0;
         boolean found = false;
 
-        Map<ProtectedRegion, V> needsClear = new HashMap<ProtectedRegion, V>();
-        Set<ProtectedRegion> hasCleared = new HashSet<ProtectedRegion>();
+        long[][] sets = getScratch();
+        long[] needsClear = sets[0];
+        long[] hasCleared = sets[1];
 
-        Iterator<ProtectedRegion> it = applicable.iterator();
-
-        while (it.hasNext()) {
-            ProtectedRegion region = it.next();
+        for (int i = 0; i < regions.length; i++) {
+            ProtectedRegion region = regions[i];
 
             // Ignore lower priority regions
             if (found && region.getPriority() < lastPriority) {
                 break;
             }
 
-            if (hasCleared.contains(region)) {
+            if (isSet(hasCleared, i)) {
                 // Already cleared, so do nothing
             } else if (region.getFlag(flag) != null){
                 clearParents(needsClear, hasCleared, region);
                 
-                needsClear.put(region, region.getFlag(flag));
+                set(needsClear, i);
                 
                 found = true;
             }
 
             lastPriority = region.getPriority();
         }
-        
-        try {
-            return needsClear.values().iterator().next();
-        } catch (NoSuchElementException e) {
-            if (globalRegion != null) {
-                V gFlag = globalRegion.getFlag(flag);
-                if (gFlag != null) return gFlag;
-            }
-            return null;
+
+        // Of the regions that were not overridden by a child, use the
+        // value of the first one
+        int index = firstSet(needsClear);
+        if (index != -1) {
+            return regions[index].getFlag(flag);
         }
+
+        if (globalRegion != null) {
+            V gFlag = globalRegion.getFlag(flag);
+            if (gFlag != null) return gFlag;
+        }
+        return null;
     }
 
     /**
-     * Clear a region's parents for getFlag().
+     * Clear a region's parents. Parents that are in needsClear are removed
+     * from it, and the others are put into hasCleared. Parents that are not
+     * in this set are ignored, as they will never be looked at.
      * 
      * @param needsClear
      * @param hasCleared
      * @param region
      */
-    private void clearParents(Map<ProtectedRegion, ?> needsClear,
-            Set<ProtectedRegion> hasCleared, ProtectedRegion region) {
-        ProtectedRegion parent = region.getParent();
+    private void clearParents(long[] needsClear, long[] hasCleared,
+            ProtectedRegion region) {
+        EffectiveRegion effective = region.getEffective();
+
+        for (int i = 0; i < effective.getAncestorCount(); i++) {
+            int index = indexOf(effective.getAncestor(i));
+
+            if (index != -1) {
+                if (isSet(needsClear, index)) {
+                    clear(needsClear, index);
+                } else {
+                    set(hasCleared, index);
+                }
+            }
+        }
+    }
 
-        while (parent != null) {
-            if (needsClear.remove(parent) == null) {
-                hasCleared.add(parent);
+    /**
+     * Get the position of a region in this set.
+     * 
+     * @param region
+     * @return position or -1 if it is not in this set
+     */
+    private int indexOf(ProtectedRegion region) {
+        for (int i = 0; i < regions.length; i++) {
+            if (regions[i] == region || regions[i].equals(region)) {
+                return i;
             }
+        }
+
+        return -1;
+    }
 
-            parent = parent.getParent();
+    /**
+     * Get the two scratch bit sets for this thread, cleared and large
+     * enough to hold a bit for every region in this set.
+     * 
+     * @return two bit sets
+     */
+    private long[][] getScratch() {
+        long[][] sets = scratch.get();
+        int words = (regions.length >> 6) + 1;
+
+        if (sets[0].length < words) {
+            sets[0] = new long[words];
+            sets[1] = new long[words];
+        } else {
+            Arrays.fill(sets[0], 0, words, 0);
+            Arrays.fill(sets[1], 0, words, 0);
         }
+
+        return sets;
+    }
+
+    private static boolean isSet(long[] bits, int index) {
+        return (bits[index >> 6] & (1L << index)) != 0;
+    }
+
+    private static void set(long[] bits, int index) {
+        bits[index >> 6] |= 1L << index;
+    }
+
+    private static void clear(long[] bits, int index) {
+        bits[index >> 6] &= ~(1L << index);
+    }
+
+    /**
+     * Find the first set bit.
+     * 
+     * @param bits
+     * @return position or -1 if no bit is set
+     */
+    private int firstSet(long[] bits) {
+        for (int i = 0; i < regions.length; i++) {
+            if (isSet(bits, i)) {
+                return i;
+            }
+        }
+
+        return -1;
     }
     
     /**
@@ -392,4 +489,68 @@ public class ApplicableRegionSet implements Iterable<ProtectedRegion> {
     public Iterator<ProtectedRegion> iterator() {
         return applicable.iterator();
     }
+
+    /**
+     * Compiled results of {@link #allows(StateFlag)} for this set, as one
+     * bit per flag ordinal. A table is only valid for the effective views
+     * of the regions that it was compiled against, which change when a
+     * region or one of its ancestors changes. Tables are never modified
+     * once published; adding a result creates a new table.
+     */
+    private class StateTable {
+        private final EffectiveRegion[] views;
+        private final long[] compiled;
+        private final long[] allowed;
+
+        StateTable() {
+            views = new EffectiveRegion[regions.length + 1];
+            for (int i = 0; i < regions.length; i++) {
+                views[i] = regions[i].getEffective();
+            }
+            views[regions.length] = globalRegion != null
+                    ? globalRegion.getEffective() : null;
+            compiled = new long[0];
+            allowed = new long[0];
+        }
+
+        private StateTable(EffectiveRegion[] views, long[] compiled, long[] allowed) {
+            this.views = views;
+            this.compiled = compiled;
+            this.allowed = allowed;
+        }
+
+        /**
+         * Checks whether none of the regions or their ancestors have
+         * changed since this table was created.
+         * 
+         * @return whether the table can still be used
+         */
+        boolean isCurrent() {
+            for (EffectiveRegion view : views) {
+                if (view != null && !view.isCurrent()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isCompiled(int ordinal) {
+            return (ordinal >> 6) < compiled.length && isSet(compiled, ordinal);
+        }
+
+        boolean isAllowed(int ordinal) {
+            return isSet(allowed, ordinal);
+        }
+
+        StateTable with(int ordinal, boolean value) {
+            int words = Math.max(compiled.length, (ordinal >> 6) + 1);
+            long[] newCompiled = Arrays.copyOf(compiled, words);
+            long[] newAllowed = Arrays.copyOf(allowed, words);
+            newCompiled[ordinal >> 6] |= 1L << ordinal;
+            if (value) {
+                newAllowed[ordinal >> 6] |= 1L << ordinal;
+            }
+            return new StateTable(views, newCompiled, newAllowed);
+        }
+    }
 }
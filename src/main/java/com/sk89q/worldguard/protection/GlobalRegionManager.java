@@ -23,7 +23,23 @@ import static com.sk89q.worldguard.bukkit.BukkitUtil.toVector;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.bukkit.Location;
@@ -31,14 +47,26 @@ import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 
+import com.sk89q.worldedit.Vector;
 import com.sk89q.worldguard.LocalPlayer;
 import com.sk89q.worldguard.bukkit.BukkitUtil;
 import com.sk89q.worldguard.bukkit.ConfigurationManager;
 import com.sk89q.worldguard.bukkit.WorldConfiguration;
 import com.sk89q.worldguard.bukkit.WorldGuardPlugin;
+import com.sk89q.worldguard.protection.databases.AsyncProtectionDatabase;
+import com.sk89q.worldguard.protection.databases.BinaryDatabase;
+import com.sk89q.worldguard.protection.databases.JournalDatabase;
+import com.sk89q.worldguard.protection.databases.ProtectionDatabase;
+import com.sk89q.worldguard.protection.databases.RegionDBUtil;
+import com.sk89q.worldguard.protection.databases.SQLDatabase;
 import com.sk89q.worldguard.protection.databases.YAMLDatabase;
 import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.managers.CachingRegionManager;
+import com.sk89q.worldguard.protection.managers.ChunkRegionManager;
 import com.sk89q.worldguard.protection.managers.FlatRegionManager;
+import com.sk89q.worldguard.protection.managers.LoadingRegionManager;
+import com.sk89q.worldguard.protection.managers.PRTreeRegionManager;
+import com.sk89q.worldguard.protection.managers.RTreeRegionManager;
 import com.sk89q.worldguard.protection.managers.RegionManager;
 
 /**
@@ -63,15 +91,38 @@ public class GlobalRegionManager {
     private ConfigurationManager config;
     
     /**
-     * Map of managers per-world.
+     * Map of managers per-world. Managers are only put in here once their
+     * regions have been loaded, which may be done by other threads.
      */
-    private HashMap<String, RegionManager> managers;
+    private Map<String, RegionManager> managers;
     
     /**
      * Stores the list of modification dates for the world files. This allows
      * WorldGuard to reload files as needed.
      */
-    private HashMap<String, Long> lastModified;
+    private Map<String, Long> lastModified;
+
+    /**
+     * Worlds whose regions are being loaded in the background.
+     */
+    private Map<String, Future<RegionManager>> loading;
+
+    /**
+     * Managers that deny everything, used for worlds that are still
+     * loading when the preload policy is to fail closed.
+     */
+    private ConcurrentHashMap<String, RegionManager> loadingManagers;
+
+    /**
+     * Databases that save in the background per-world, which have to be
+     * flushed before their worlds are unloaded.
+     */
+    private HashMap<String, AsyncProtectionDatabase> asyncDatabases;
+
+    /**
+     * Writes region files for every world. Its thread stops when idle.
+     */
+    private ScheduledThreadPoolExecutor writer;
 
     /**
      * Construct the object.
@@ -81,14 +132,19 @@ public class GlobalRegionManager {
     public GlobalRegionManager(WorldGuardPlugin plugin) {
         this.plugin = plugin;
         config = plugin.getGlobalStateManager();
-        managers = new HashMap<String, RegionManager>();
-        lastModified = new HashMap<String, Long>();
+        managers = new ConcurrentHashMap<String, RegionManager>();
+        lastModified = new ConcurrentHashMap<String, Long>();
+        loading = new ConcurrentHashMap<String, Future<RegionManager>>();
+        loadingManagers = new ConcurrentHashMap<String, RegionManager>();
+        asyncDatabases = new HashMap<String, AsyncProtectionDatabase>();
     }
 
     /**
      * Unload region information.
      */
     public void unload() {
+        awaitLoadAll();
+        flushAll();
         managers.clear();
         lastModified.clear();
     }
@@ -110,9 +166,11 @@ public class GlobalRegionManager {
      * @param name
      */
     public void unload(String name) {
+        awaitLoad(name);
         RegionManager manager = managers.get(name);
 
         if (manager != null) {
+            flush(name);
             managers.remove(name);
             lastModified.remove(name);
         }
@@ -122,10 +180,140 @@ public class GlobalRegionManager {
      * Unload all region information.
      */
     public void unloadAll() {
+        awaitLoadAll();
+        flushAll();
         managers.clear();
         lastModified.clear();
     }
 
+    /**
+     * Write the pending background saves of a world.
+     * 
+     * @param name
+     */
+    private void flush(String name) {
+        AsyncProtectionDatabase database = asyncDatabases.remove(name);
+
+        if (database != null) {
+            try {
+                database.flush();
+            } catch (IOException e) {
+                logger.warning("WorldGuard: Failed to save regions for world \""
+                        + name + "\": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write the pending background saves of every world.
+     */
+    private void flushAll() {
+        for (String name : new ArrayList<String>(asyncDatabases.keySet())) {
+            flush(name);
+        }
+    }
+
+    /**
+     * Create the database for a world of the configured type. If the world
+     * has no regions file of that type yet but has one of the other type,
+     * its regions are converted.
+     * 
+     * @param name world name
+     * @param file regions file of the world
+     * @return database
+     * @throws IOException
+     */
+    protected ProtectionDatabase createDatabase(String name, File file)
+            throws IOException {
+        flush(name);
+
+        if (config.regionDatabase.equalsIgnoreCase("sql")) {
+            // Only changed regions are written, so this is done in place
+            return new SQLDatabase(config.regionSqlDsn, config.regionSqlUser,
+                    config.regionSqlPass, config.regionSqlTablePrefix, name);
+        }
+
+        File binaryFile = new File(file.getParentFile(), "regions.bin");
+        ProtectionDatabase database;
+
+        if (config.regionDatabase.equalsIgnoreCase("binary")) {
+            database = new BinaryDatabase(binaryFile);
+            convert(name, new YAMLDatabase(file), file, database, binaryFile);
+        } else {
+            database = new YAMLDatabase(file);
+            convert(name, new BinaryDatabase(binaryFile), binaryFile, database, file);
+        }
+
+        if (config.regionDatabase.equalsIgnoreCase("journal")) {
+            // Appending to the journal is cheap enough to do in place
+            return new JournalDatabase(database,
+                    new File(file.getParentFile(), "regions.journal"),
+                    getWriter(), config.regionJournalCompactRecords);
+        } else if (!config.regionDatabase.equalsIgnoreCase("yaml")
+                && !config.regionDatabase.equalsIgnoreCase("binary")) {
+            logger.warning("WorldGuard: Unknown region database type '"
+                    + config.regionDatabase + "', using 'yaml'");
+        }
+
+        if (!config.asyncRegionSaving) {
+            return database;
+        }
+
+        Executor mainThread = new Executor() {
+            public void execute(Runnable task) {
+                plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, task);
+            }
+        };
+
+        AsyncProtectionDatabase asyncDatabase = new AsyncProtectionDatabase(
+                database, mainThread, getWriter(), config.regionSaveWindow);
+        asyncDatabases.put(name, asyncDatabase);
+        return asyncDatabase;
+    }
+
+    /**
+     * Convert the regions of a world to another database when only the
+     * file of the other one exists.
+     * 
+     * @param name world name
+     * @param from database to convert from
+     * @param fromFile file of the database to convert from
+     * @param to database to convert to
+     * @param toFile file of the database to convert to
+     * @throws IOException
+     */
+    private void convert(String name, ProtectionDatabase from, File fromFile,
+            ProtectionDatabase to, File toFile) throws IOException {
+        if (toFile.exists() || !fromFile.exists()) {
+            return;
+        }
+
+        logger.info("WorldGuard: Converting regions of world '" + name
+                + "' from " + fromFile.getName() + " to " + toFile.getName());
+        RegionDBUtil.transfer(from, to);
+    }
+
+    /**
+     * Get the executor that writes region files in the background.
+     * 
+     * @return executor
+     */
+    private ScheduledThreadPoolExecutor getWriter() {
+        if (writer == null) {
+            writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "WorldGuard region writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            writer.setKeepAliveTime(60, TimeUnit.SECONDS);
+            writer.allowCoreThreadTimeOut(true);
+        }
+
+        return writer;
+    }
+
     /**
      * Load region information for a world.
      * 
@@ -135,15 +323,53 @@ public class GlobalRegionManager {
     public RegionManager load(World world) {
         String name = world.getName();
         File file = getPath(name);
-        
+        ProtectionDatabase database;
+
+        awaitLoad(name);
+
+        try {
+            database = createDatabase(name, file);
+        } catch (IOException e) {
+            logger.warning("WorldGuard: Failed to load regions from file "
+                    + file.getAbsolutePath() + " : " + e.getMessage());
+            return null;
+        }
+
+        return load(name, file, config.get(world), database);
+    }
+
+    /**
+     * Load region information for a world from a database. This can be
+     * called from any thread. The manager is only made available once the
+     * regions have been loaded and indexed.
+     * 
+     * @param name world name
+     * @param file regions file of the world
+     * @param wcfg configuration of the world
+     * @param database database to load the regions from
+     * @return manager, or null if loading failed
+     */
+    private RegionManager load(String name, File file, WorldConfiguration wcfg,
+            ProtectionDatabase database) {
+        long start = System.currentTimeMillis();
+
         try {
             // Create a manager
-            RegionManager manager = new FlatRegionManager(new YAMLDatabase(file));
-            managers.put(name, manager);
-            manager.load();
+            RegionManager manager = createManager(wcfg.regionIndex, database);
+            if (wcfg.regionQueryCacheSize > 0) {
+                manager = new CachingRegionManager(manager, wcfg.regionQueryCacheSize);
+            }
+
+            try {
+                manager.load();
+            } finally {
+                // A world without regions yet still gets its manager
+                managers.put(name, manager);
+            }
 
             logger.info("WorldGuard: " + manager.getRegions().size()
-                    + " regions loaded for '" + name + "'");
+                    + " regions loaded for '" + name + "' in "
+                    + (System.currentTimeMillis() - start) + " ms");
 
             // Store the last modification date so we can track changes
             lastModified.put(name, file.lastModified());
@@ -165,15 +391,153 @@ public class GlobalRegionManager {
     }
     
     /**
-     * Preloads region managers for all worlds.
+     * Create a region manager using the given type of index.
+     * 
+     * @param type type of index (rtree, chunk, prtree or flat)
+     * @param database database to load regions from
+     * @return region manager
+     * @throws IOException
+     */
+    protected RegionManager createManager(String type, ProtectionDatabase database)
+            throws IOException {
+        if (type.equalsIgnoreCase("flat")) {
+            return new FlatRegionManager(database);
+        } else if (type.equalsIgnoreCase("prtree")) {
+            return new PRTreeRegionManager(database);
+        } else if (type.equalsIgnoreCase("chunk")) {
+            return new ChunkRegionManager(database);
+        } else {
+            if (!type.equalsIgnoreCase("rtree")) {
+                logger.warning("WorldGuard: Unknown region index type '"
+                        + type + "', using 'rtree'");
+            }
+            return new RTreeRegionManager(database);
+        }
+    }
+    
+    /**
+     * Preloads region managers for all worlds. When configured with more
+     * than one thread, the regions of the worlds are loaded in parallel in
+     * the background, and this returns right away.
      */
     public void preload() {
-        // Load regions
-        for (World world : plugin.getServer().getWorlds()) {
-            load(world);
+        List<World> worlds = plugin.getServer().getWorlds();
+        int threads = Math.min(config.regionPreloadThreads, worlds.size());
+
+        if (threads <= 1) {
+            for (World world : worlds) {
+                load(world);
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "WorldGuard region loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        final long start = System.currentTimeMillis();
+        final AtomicInteger remaining = new AtomicInteger(worlds.size());
+        final int worldCount = worlds.size();
+
+        for (World world : worlds) {
+            final String name = world.getName();
+            final File file = getPath(name);
+            final WorldConfiguration wcfg = config.get(world);
+            final ProtectionDatabase database;
+
+            try {
+                // Databases are created here as they may convert files
+                database = createDatabase(name, file);
+            } catch (IOException e) {
+                logger.warning("WorldGuard: Failed to load regions from file "
+                        + file.getAbsolutePath() + " : " + e.getMessage());
+                remaining.decrementAndGet();
+                continue;
+            }
+
+            FutureTask<RegionManager> task = new FutureTask<RegionManager>(
+                    new Callable<RegionManager>() {
+                public RegionManager call() {
+                    try {
+                        return load(name, file, wcfg, database);
+                    } finally {
+                        loading.remove(name);
+                        loadingManagers.remove(name);
+
+                        if (remaining.decrementAndGet() == 0) {
+                            logger.info("WorldGuard: Regions of " + worldCount
+                                    + " worlds loaded in "
+                                    + (System.currentTimeMillis() - start) + " ms");
+                        }
+                    }
+                }
+            });
+
+            loading.put(name, task);
+            pool.execute(task);
+        }
+
+        // The threads stop once every world is loaded
+        pool.shutdown();
+    }
+
+    /**
+     * Wait for the regions of a world to be loaded if they are being
+     * loaded in the background.
+     * 
+     * @param name world name
+     */
+    private void awaitLoad(String name) {
+        Future<RegionManager> task = loading.get(name);
+
+        if (task == null) {
+            return;
+        }
+
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warning("WorldGuard: Error loading regions for world \""
+                    + name + "\":" + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Wait for all worlds that are being loaded in the background.
+     */
+    private void awaitLoadAll() {
+        for (String name : new ArrayList<String>(loading.keySet())) {
+            awaitLoad(name);
         }
     }
 
+    /**
+     * Get the manager that stands in for a world that is still loading
+     * when protection fails closed. Every world gets its own.
+     * 
+     * @param name world name
+     * @return manager
+     */
+    private RegionManager getLoadingManager(String name) {
+        RegionManager manager = loadingManagers.get(name);
+
+        if (manager == null) {
+            manager = new LoadingRegionManager(name);
+            RegionManager existing = loadingManagers.putIfAbsent(name, manager);
+            if (existing != null) {
+                manager = existing;
+            }
+        }
+
+        return manager;
+    }
+
     /**
      * Reloads the region information from file when region databases
      * have changed.
@@ -208,15 +572,41 @@ public class GlobalRegionManager {
      * @return
      */
     public RegionManager get(World world) {
-        RegionManager manager = managers.get(world.getName());
+        String name = world.getName();
+        RegionManager manager = managers.get(name);
 
         if (manager == null) {
-            manager = load(world);
+            Future<RegionManager> task = loading.get(name);
+
+            if (task != null && !task.isDone()
+                    && config.regionPreloadPolicy.equalsIgnoreCase("deny")) {
+                return getLoadingManager(name);
+            }
+
+            awaitLoad(name);
+
+            // The world may have finished loading in the meantime
+            manager = managers.get(name);
+            if (manager == null) {
+                manager = load(world);
+            }
         }
 
         return manager;
     }
 
+    /**
+     * Get the region manager for a particular world, waiting for its
+     * regions to be loaded if they are still loading.
+     * 
+     * @param world
+     * @return
+     */
+    public RegionManager getLoaded(World world) {
+        awaitLoad(world.getName());
+        return get(world);
+    }
+
     /**
      * Returns whether the player can bypass.
      *
@@ -237,8 +627,7 @@ public class GlobalRegionManager {
      * @return
      */
     public boolean hasBypass(Player player, World world) {
-        return plugin.hasPermission(player, "worldguard.region.bypass."
-                        + world.getName());
+        return hasBypass(plugin.wrapPlayer(player), world);
     }
     
     /**
@@ -249,7 +638,50 @@ public class GlobalRegionManager {
      * @return
      */
     public boolean canBuild(Player player, Block block) {
-        return canBuild(player, block.getLocation());
+        return canBuild(player, block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    /**
+     * Check if a player has permission to build at a block in the world
+     * that the player is in.
+     * 
+     * @param player
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    public boolean canBuild(Player player, int x, int y, int z) {
+        return canBuild(player, player.getWorld(), x, y, z);
+    }
+
+    /**
+     * Check if a player has permission to build at a block.
+     * 
+     * @param player
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    private boolean canBuild(Player player, World world, int x, int y, int z) {
+        WorldConfiguration worldConfig = config.get(world);
+
+        if (!worldConfig.useRegions) {
+            return true;
+        }
+
+        if (!hasBypass(player, world)) {
+            RegionManager mgr = get(world);
+
+            if (!mgr.getApplicableRegions(x, y, z)
+                    .canBuild(plugin.wrapPlayer(player))) {
+                return false;
+            }
+        }
+
+        return true;
     }
     
     /**
@@ -297,6 +729,72 @@ public class GlobalRegionManager {
         }
         
         RegionManager mgr = plugin.getGlobalRegionManager().get(world);
-        return mgr.getApplicableRegions(toVector(loc)).allows(flag);
+        return mgr.allows(flag, toVector(loc));
+    }
+
+    /**
+     * Checks to see whether a flag is allowed at a block.
+     * 
+     * @param flag
+     * @param block
+     * @return
+     */
+    public boolean allows(StateFlag flag, Block block) {
+        return allows(flag, block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    /**
+     * Checks to see whether a flag is allowed at a block.
+     * 
+     * @param flag
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    public boolean allows(StateFlag flag, World world, int x, int y, int z) {
+        WorldConfiguration worldConfig = config.get(world);
+
+        if (!worldConfig.useRegions) {
+            return true;
+        }
+
+        RegionManager mgr = get(world);
+        return mgr.allows(flag, x, y, z);
+    }
+
+    /**
+     * Checks to see whether a flag is allowed at every one of a list of
+     * blocks. The blocks are checked in one batch, which stops at the first
+     * block where the flag is denied. The position of a block is only
+     * created once the batch gets to it.
+     * 
+     * @param flag
+     * @param world
+     * @param blocks
+     * @return
+     */
+    public boolean allowsAll(StateFlag flag, World world, final List<Block> blocks) {
+        WorldConfiguration worldConfig = config.get(world);
+
+        if (!worldConfig.useRegions) {
+            return true;
+        }
+
+        List<Vector> points = new AbstractList<Vector>() {
+            @Override
+            public Vector get(int index) {
+                return toVector(blocks.get(index));
+            }
+
+            @Override
+            public int size() {
+                return blocks.size();
+            }
+        };
+
+        RegionManager mgr = get(world);
+        return mgr.allowsAll(flag, points);
     }
 }
@@ -0,0 +1,253 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection.databases;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+/**
+ * Saves the regions of a region manager without blocking the thread that
+ * modifies them. Saves that are requested within a window of each other
+ * are coalesced: once the window has passed, the regions are copied on the
+ * thread that modifies them and another database writes the copy from a
+ * writer thread.
+ * 
+ * <p>Saves that were requested before a load, and before
+ * {@link #flush()}, are written before it returns, including copies that
+ * are still waiting for the writer.</p>
+ */
+public class AsyncProtectionDatabase implements ProtectionDatabase {
+
+    private static final Logger logger = Logger.getLogger("Minecraft.WorldGuard");
+
+    private final ProtectionDatabase database;
+    private final Executor mainThread;
+    private final ScheduledExecutorService writer;
+    private final long window;
+
+    /**
+     * The manager to save once the window has passed, or null if no save
+     * is pending. Guarded by this object.
+     */
+    private RegionManager pending;
+
+    /**
+     * Number of the last copy that was taken. Guarded by this object.
+     */
+    private long lastCopy;
+
+    /**
+     * The newest copy that was queued but not written yet, and its number,
+     * so that a flush can write it without waiting for the writer. Guarded
+     * by this object.
+     */
+    private Map<String, ProtectedRegion> queued;
+    private long queuedCopy;
+
+    /**
+     * Number of the last copy that was written, so that a copy that was
+     * queued behind a newer write is dropped. Guarded by the database.
+     */
+    private long lastWrite;
+
+    private final Runnable copyTask = new Runnable() {
+        public void run() {
+            copyPending();
+        }
+    };
+
+    private final Runnable windowTask = new Runnable() {
+        public void run() {
+            mainThread.execute(copyTask);
+        }
+    };
+
+    /**
+     * Construct the database.
+     * 
+     * @param database database that loads and writes the regions
+     * @param mainThread runs tasks on the thread that modifies the regions
+     * @param writer runs the writes and times the windows
+     * @param window window for coalescing saves, in milliseconds
+     */
+    public AsyncProtectionDatabase(ProtectionDatabase database,
+            Executor mainThread, ScheduledExecutorService writer, long window) {
+        this.database = database;
+        this.mainThread = mainThread;
+        this.writer = writer;
+        this.window = window;
+    }
+
+    public void load() throws IOException {
+        flush();
+
+        synchronized (database) {
+            database.load();
+        }
+    }
+
+    public void save() throws IOException {
+        synchronized (database) {
+            database.save();
+        }
+    }
+
+    public void load(RegionManager manager) throws IOException {
+        flush();
+
+        synchronized (database) {
+            database.load(manager);
+        }
+    }
+
+    /**
+     * Request the regions of a region manager to be saved. The save happens
+     * in the background, so errors are logged rather than thrown.
+     * 
+     * @param manager
+     */
+    public void save(RegionManager manager) {
+        synchronized (this) {
+            boolean scheduled = pending != null;
+            pending = manager;
+
+            if (scheduled) {
+                return;
+            }
+        }
+
+        writer.schedule(windowTask, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write a pending save now. If there is none, the newest copy that is
+     * still queued for the writer is written instead, so that the queued
+     * writes are superseded rather than lost. This must be called from the
+     * thread that modifies the regions.
+     * 
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        RegionManager manager;
+        Map<String, ProtectedRegion> queuedRegions;
+        long queuedNumber;
+        long copy;
+
+        synchronized (this) {
+            manager = pending;
+            pending = null;
+            queuedRegions = queued;
+            queuedNumber = queuedCopy;
+            queued = null;
+            copy = ++lastCopy;
+        }
+
+        synchronized (database) {
+            if (manager != null) {
+                database.setRegions(manager.getRegions());
+                database.save();
+            } else if (queuedRegions != null && queuedNumber > lastWrite) {
+                database.setRegions(queuedRegions);
+                database.save();
+            }
+
+            lastWrite = copy;
+        }
+    }
+
+    /**
+     * Copy the regions of the pending save and queue the copy to be
+     * written.
+     */
+    private void copyPending() {
+        RegionManager manager;
+        final long copy;
+
+        synchronized (this) {
+            manager = pending;
+            pending = null;
+
+            if (manager == null) {
+                return;
+            }
+
+            copy = ++lastCopy;
+        }
+
+        final Map<String, ProtectedRegion> regions =
+                RegionDBUtil.copyRegions(manager.getRegions());
+
+        synchronized (this) {
+            if (copy > queuedCopy) {
+                queued = regions;
+                queuedCopy = copy;
+            }
+        }
+
+        writer.execute(new Runnable() {
+            public void run() {
+                write(regions, copy);
+            }
+        });
+    }
+
+    private void write(Map<String, ProtectedRegion> regions, long copy) {
+        synchronized (database) {
+            if (copy <= lastWrite) {
+                return;
+            }
+
+            try {
+                database.setRegions(regions);
+                database.save();
+            } catch (IOException e) {
+                logger.warning("WorldGuard: Failed to save regions: "
+                        + e.getMessage());
+            }
+
+            lastWrite = copy;
+        }
+
+        synchronized (this) {
+            if (queuedCopy == copy) {
+                queued = null;
+            }
+        }
+    }
+
+    public Map<String, ProtectedRegion> getRegions() {
+        synchronized (database) {
+            return database.getRegions();
+        }
+    }
+
+    public void setRegions(Map<String, ProtectedRegion> regions) {
+        synchronized (database) {
+            database.setRegions(regions);
+        }
+    }
+}
@@ -0,0 +1,431 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection.databases;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.BlockVector2D;
+import com.sk89q.worldguard.domains.DefaultDomain;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedPolygonalRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion.CircularInheritanceException;
+
+/**
+ * Keeps regions in a binary file that is read through a memory mapping,
+ * which loads much faster and with far less memory than the YAML file.
+ * 
+ * <p>Files of up to {@link #MAX_HEAP_READ} bytes are read into memory
+ * instead, so that no mapping is left open after loading. A mapping is
+ * only released when it is garbage collected, and Windows does not allow
+ * a mapped file to be replaced; saving over a larger file that is still
+ * mapped asks for a garbage collection and tries once more.</p>
+ * 
+ * <p>The file starts with a header, followed by a table of the strings
+ * used for region IDs, players and groups, a fixed-width record for every
+ * region, the points of the polygons, and a blob with the flags and
+ * domains of every region. All numbers are big-endian.</p>
+ */
+public class BinaryDatabase extends AbstractProtectionDatabase {
+
+    private static final Logger logger = Logger.getLogger("Minecraft.WorldGuard");
+
+    private static final int MAGIC = 0x57475242; // WGRB
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    /**
+     * Size of a region record: ID string, type, priority, parent record,
+     * minimum and maximum point, first point and number of points, and
+     * offset and length of the blob.
+     */
+    private static final int RECORD_SIZE = 4 * 14;
+
+    /**
+     * Largest file that is read into memory rather than mapped.
+     */
+    private static final int MAX_HEAP_READ = 16 * 1024 * 1024;
+
+    private final File file;
+    private Map<String, ProtectedRegion> regions = new HashMap<String, ProtectedRegion>();
+
+    public BinaryDatabase(File file) {
+        this.file = file;
+    }
+
+    public void load() throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        ByteBuffer buffer;
+
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+
+            if (size <= MAX_HEAP_READ) {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) == -1) {
+                        throw new IOException("Truncated regions file "
+                                + file.getAbsolutePath());
+                    }
+                }
+                buffer.flip();
+            } else {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        } finally {
+            stream.close();
+        }
+
+        try {
+            this.regions = read(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated regions file " + file.getAbsolutePath());
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt regions file " + file.getAbsolutePath());
+        }
+    }
+
+    private Map<String, ProtectedRegion> read(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a binary regions file: " + file.getAbsolutePath());
+        }
+
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary regions file version " + version);
+        }
+
+        int stringCount = buffer.getInt();
+        int regionCount = buffer.getInt();
+        int pointCount = buffer.getInt();
+        int blobLength = buffer.getInt();
+
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, "UTF-8");
+        }
+
+        int recordStart = buffer.position();
+        int pointStart = recordStart + regionCount * RECORD_SIZE;
+        int blobStart = pointStart + pointCount * 8;
+
+        if (blobStart + blobLength > buffer.limit()) {
+            throw new BufferUnderflowException();
+        }
+
+        Map<String, ProtectedRegion> regions = new HashMap<String, ProtectedRegion>();
+        ProtectedRegion[] byRecord = new ProtectedRegion[regionCount];
+
+        for (int i = 0; i < regionCount; i++) {
+            int offset = recordStart + i * RECORD_SIZE;
+            String id = strings[buffer.getInt(offset)];
+            int type = buffer.getInt(offset + 4);
+            ProtectedRegion region;
+
+            if (type == RegionCodec.CUBOID) {
+                BlockVector min = new BlockVector(buffer.getInt(offset + 16),
+                        buffer.getInt(offset + 20), buffer.getInt(offset + 24));
+                BlockVector max = new BlockVector(buffer.getInt(offset + 28),
+                        buffer.getInt(offset + 32), buffer.getInt(offset + 36));
+                region = new ProtectedCuboidRegion(id, min, max);
+            } else if (type == RegionCodec.POLYGON) {
+                int firstPoint = buffer.getInt(offset + 40);
+                int count = buffer.getInt(offset + 44);
+                List<BlockVector2D> points = new ArrayList<BlockVector2D>(count);
+                for (int j = 0; j < count; j++) {
+                    int pointOffset = pointStart + (firstPoint + j) * 8;
+                    points.add(new BlockVector2D(buffer.getInt(pointOffset),
+                            buffer.getInt(pointOffset + 4)));
+                }
+                region = new ProtectedPolygonalRegion(id, points,
+                        buffer.getInt(offset + 20), buffer.getInt(offset + 32));
+            } else if (type == RegionCodec.GLOBAL) {
+                region = new GlobalProtectedRegion(id);
+            } else {
+                logger.warning("Unknown region type for region '" + id + "'");
+                continue;
+            }
+
+            region.setPriority(buffer.getInt(offset + 8));
+
+            ByteBuffer blob = buffer.duplicate();
+            int blobOffset = blobStart + buffer.getInt(offset + 48);
+            blob.limit(blobOffset + buffer.getInt(offset + 52));
+            blob.position(blobOffset);
+            DataInputStream in = new DataInputStream(new BufferInputStream(blob));
+            RegionCodec.readFlags(in, region);
+            region.setOwners(readDomain(in, strings));
+            region.setMembers(readDomain(in, strings));
+
+            byRecord[i] = region;
+            regions.put(id.toLowerCase(), region);
+        }
+
+        // Relink parents
+        for (int i = 0; i < regionCount; i++) {
+            int parent = buffer.getInt(recordStart + i * RECORD_SIZE + 12);
+            if (byRecord[i] == null || parent < 0) {
+                continue;
+            }
+
+            if (byRecord[parent] == null) {
+                logger.warning("Unknown region parent for region '"
+                        + byRecord[i].getId() + "'");
+                continue;
+            }
+
+            try {
+                byRecord[i].setParent(byRecord[parent]);
+            } catch (CircularInheritanceException e) {
+                logger.warning("Circular inheritance detect with '"
+                        + byRecord[parent].getId() + "' detected as a parent");
+            }
+        }
+
+        return regions;
+    }
+
+    private static DefaultDomain readDomain(DataInputStream in, String[] strings)
+            throws IOException {
+        DefaultDomain domain = new DefaultDomain();
+        int players = in.readInt();
+        for (int i = 0; i < players; i++) {
+            domain.addPlayer(strings[in.readInt()]);
+        }
+        int groups = in.readInt();
+        for (int i = 0; i < groups; i++) {
+            domain.addGroup(strings[in.readInt()]);
+        }
+        return domain;
+    }
+
+    public void save() throws IOException {
+        List<ProtectedRegion> saved = new ArrayList<ProtectedRegion>(regions.size());
+        Map<ProtectedRegion, Integer> records = new IdentityHashMap<ProtectedRegion, Integer>();
+
+        for (ProtectedRegion region : regions.values()) {
+            if (RegionCodec.getType(region) < 0) {
+                logger.warning("Unknown region type for region '"
+                        + region.getId() + "'; it will not be saved");
+                continue;
+            }
+
+            records.put(region, saved.size());
+            saved.add(region);
+        }
+
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream recordData = new ByteArrayOutputStream(saved.size() * RECORD_SIZE);
+        ByteArrayOutputStream pointData = new ByteArrayOutputStream();
+        ByteArrayOutputStream blobData = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(recordData);
+        DataOutputStream pointOut = new DataOutputStream(pointData);
+        DataOutputStream blobOut = new DataOutputStream(blobData);
+        int pointCount = 0;
+
+        for (ProtectedRegion region : saved) {
+            BlockVector min = region.getMinimumPoint();
+            BlockVector max = region.getMaximumPoint();
+            Integer parent = region.getParent() != null ? records.get(region.getParent()) : null;
+            int firstPoint = pointCount;
+            int regionPoints = 0;
+
+            if (region instanceof ProtectedPolygonalRegion) {
+                for (BlockVector2D point : ((ProtectedPolygonalRegion) region).getPoints()) {
+                    pointOut.writeInt(point.getBlockX());
+                    pointOut.writeInt(point.getBlockZ());
+                    regionPoints++;
+                }
+                pointCount += regionPoints;
+            }
+
+            int blobOffset = blobOut.size();
+            RegionCodec.writeFlags(blobOut, region);
+            writeDomain(blobOut, region.getOwners(), strings);
+            writeDomain(blobOut, region.getMembers(), strings);
+
+            recordOut.writeInt(strings.indexOf(region.getId()));
+            recordOut.writeInt(RegionCodec.getType(region));
+            recordOut.writeInt(region.getPriority());
+            recordOut.writeInt(parent != null ? parent : -1);
+            recordOut.writeInt(min.getBlockX());
+            recordOut.writeInt(min.getBlockY());
+            recordOut.writeInt(min.getBlockZ());
+            recordOut.writeInt(max.getBlockX());
+            recordOut.writeInt(max.getBlockY());
+            recordOut.writeInt(max.getBlockZ());
+            recordOut.writeInt(firstPoint);
+            recordOut.writeInt(regionPoints);
+            recordOut.writeInt(blobOffset);
+            recordOut.writeInt(blobOut.size() - blobOffset);
+        }
+
+        File parentDir = file.getParentFile();
+        if (parentDir != null) {
+            parentDir.mkdirs();
+        }
+
+        File tempFile = new File(parentDir, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            out.writeInt(saved.size());
+            out.writeInt(pointCount);
+            out.writeInt(blobOut.size());
+            strings.writeTo(out);
+            recordData.writeTo(out);
+            pointData.writeTo(out);
+            blobData.writeTo(out);
+        } finally {
+            out.close();
+        }
+
+        try {
+            replace(tempFile);
+        } catch (IOException e) {
+            // A mapping of the old file that has not been collected yet
+            // keeps it from being replaced on Windows
+            System.gc();
+            replace(tempFile);
+        }
+    }
+
+    /**
+     * Replace the file with a newly written one.
+     * 
+     * @param tempFile new file
+     * @throws IOException
+     */
+    private void replace(File tempFile) throws IOException {
+        try {
+            Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Not every file system can replace a file atomically
+            Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeDomain(DataOutputStream out, DefaultDomain domain,
+            StringTable strings) throws IOException {
+        out.writeInt(domain.getPlayers().size());
+        for (String player : domain.getPlayers()) {
+            out.writeInt(strings.indexOf(player));
+        }
+        out.writeInt(domain.getGroups().size());
+        for (String group : domain.getGroups()) {
+            out.writeInt(strings.indexOf(group));
+        }
+    }
+
+    public Map<String, ProtectedRegion> getRegions() {
+        return regions;
+    }
+
+    public void setRegions(Map<String, ProtectedRegion> regions) {
+        this.regions = regions;
+    }
+
+    /**
+     * Strings by their index in the string table.
+     */
+    private static class StringTable {
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        private final List<String> strings = new ArrayList<String>();
+
+        int indexOf(String str) {
+            Integer index = indexes.get(str);
+            if (index == null) {
+                index = strings.size();
+                indexes.put(str, index);
+                strings.add(str);
+            }
+            return index;
+        }
+
+        int size() {
+            return strings.size();
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            for (String str : strings) {
+                byte[] bytes = str.getBytes("UTF-8");
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Reads from a byte buffer.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+}
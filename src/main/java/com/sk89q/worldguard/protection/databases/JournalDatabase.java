@@ -0,0 +1,655 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection.databases;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion.CircularInheritanceException;
+import com.sk89q.worldguard.protection.regions.RegionChangeListener;
+
+/**
+ * Saves the changes made to regions as records that are appended to a
+ * journal, so that the cost of a save depends on what has changed rather
+ * than on the number of regions. Regions are loaded from a snapshot, which
+ * is kept by another database, and the journal is replayed over it.
+ * 
+ * <p>Once the journal holds enough records, it is compacted: the journal
+ * is set aside as a numbered segment and a copy of the regions is written
+ * to the snapshot in the background, after which the segments are
+ * deleted. Segments that are left behind are replayed before the journal.
+ * Every record is self-contained, so replaying a segment again over a
+ * snapshot that already includes it gives the same regions.</p>
+ * 
+ * <p>A record that was only partly written, such as after a crash, is
+ * dropped when the journal is loaded.</p>
+ */
+public class JournalDatabase extends AbstractProtectionDatabase {
+
+    private static final Logger logger = Logger.getLogger("Minecraft.WorldGuard");
+
+    private static final int MAGIC = 0x57474a4c; // WGJL
+    private static final int VERSION = 1;
+
+    private static final byte CREATE = 1;
+    private static final byte REMOVE = 2;
+    private static final byte PRIORITY = 3;
+    private static final byte PARENT = 4;
+    private static final byte FLAGS = 5;
+    private static final byte OWNERS = 6;
+    private static final byte MEMBERS = 7;
+
+    private final ProtectionDatabase snapshot;
+    private final File journalFile;
+    private final Executor compactor;
+    private final int compactRecords;
+
+    private Map<String, ProtectedRegion> regions = new HashMap<String, ProtectedRegion>();
+
+    /**
+     * The regions that the journal and snapshot are up to date with, and
+     * the changes made to each of them since, as bits by the ordinal of
+     * the change.
+     */
+    private final Map<ProtectedRegion, Integer> tracked =
+            new IdentityHashMap<ProtectedRegion, Integer>();
+    private final RegionChangeListener changeListener = new RegionChangeListener() {
+        public void regionChanged(ProtectedRegion region, Change change) {
+            markChanged(region, change);
+        }
+    };
+
+    private int recordCount;
+    private boolean compacting;
+
+    /**
+     * Construct the database.
+     * 
+     * @param snapshot database that holds the compacted regions
+     * @param journalFile journal file, next to which segments are kept
+     * @param compactor runs compactions
+     * @param compactRecords number of records after which the journal
+     *         is compacted
+     */
+    public JournalDatabase(ProtectionDatabase snapshot, File journalFile,
+            Executor compactor, int compactRecords) {
+        this.snapshot = snapshot;
+        this.journalFile = journalFile;
+        this.compactor = compactor;
+        this.compactRecords = compactRecords;
+    }
+
+    public synchronized void load() throws IOException {
+        Map<String, ProtectedRegion> regions;
+        int records = 0;
+
+        synchronized (snapshot) {
+            snapshot.load();
+            regions = new HashMap<String, ProtectedRegion>(snapshot.getRegions());
+            Map<String, String> parentIds = new HashMap<String, String>();
+
+            for (Map.Entry<String, ProtectedRegion> entry : regions.entrySet()) {
+                ProtectedRegion parent = entry.getValue().getParent();
+                if (parent != null) {
+                    parentIds.put(entry.getKey(), parent.getId());
+                }
+            }
+
+            for (File segment : getSegments()) {
+                records += replay(segment, regions, parentIds, false);
+            }
+
+            if (journalFile.exists()) {
+                records += replay(journalFile, regions, parentIds, true);
+            }
+
+            linkParents(regions, parentIds);
+        }
+
+        this.regions = regions;
+        recordCount = records;
+        track(regions);
+    }
+
+    /**
+     * Write all regions to the snapshot and clear the journal.
+     */
+    public synchronized void save() throws IOException {
+        synchronized (snapshot) {
+            snapshot.setRegions(regions);
+            snapshot.save();
+
+            for (File segment : getSegments()) {
+                segment.delete();
+            }
+            journalFile.delete();
+        }
+
+        recordCount = 0;
+        track(regions);
+    }
+
+    @Override
+    public synchronized void save(RegionManager manager) throws IOException {
+        Map<String, ProtectedRegion> regions = manager.getRegions();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int records = 0;
+
+        // Regions that were removed, or replaced by other regions
+        Iterator<Map.Entry<ProtectedRegion, Integer>> it = tracked.entrySet().iterator();
+        while (it.hasNext()) {
+            ProtectedRegion region = it.next().getKey();
+            ProtectedRegion current = regions.get(region.getId());
+
+            if (current != region) {
+                region.removeChangeListener(changeListener);
+                it.remove();
+
+                if (current == null) {
+                    RecordWriter record = new RecordWriter(REMOVE, region);
+                    record.writeTo(buffer);
+                    records++;
+                }
+            }
+        }
+
+        for (ProtectedRegion region : regions.values()) {
+            Integer changes = tracked.get(region);
+
+            if (changes == null) {
+                if (RegionCodec.getType(region) < 0) {
+                    logger.warning("WorldGuard: Region '" + region.getId()
+                            + "' is of a type that can't be saved");
+                    continue;
+                }
+
+                RecordWriter record = new RecordWriter(CREATE, region);
+                RegionCodec.writeRegion(record.out, region);
+                writeParent(record, region);
+                record.writeTo(buffer);
+                records++;
+                region.addChangeListener(changeListener);
+                tracked.put(region, 0);
+            } else if (changes != 0) {
+                records += writeChanges(buffer, region, changes);
+                tracked.put(region, 0);
+            }
+        }
+
+        this.regions = regions;
+
+        if (records > 0) {
+            append(buffer.toByteArray());
+            recordCount += records;
+        }
+
+        if (recordCount >= compactRecords) {
+            compact();
+        }
+    }
+
+    /**
+     * Write a record for every kind of change made to a region.
+     * 
+     * @param buffer
+     * @param region
+     * @param changes change bits
+     * @return number of records written
+     * @throws IOException
+     */
+    private int writeChanges(ByteArrayOutputStream buffer, ProtectedRegion region,
+            int changes) throws IOException {
+        int records = 0;
+
+        for (RegionChangeListener.Change change : RegionChangeListener.Change.values()) {
+            if ((changes & (1 << change.ordinal())) == 0) {
+                continue;
+            }
+
+            RecordWriter record;
+
+            switch (change) {
+            case PRIORITY:
+                record = new RecordWriter(PRIORITY, region);
+                record.out.writeInt(region.getPriority());
+                break;
+            case PARENT:
+                record = new RecordWriter(PARENT, region);
+                writeParent(record, region);
+                break;
+            case FLAGS:
+                record = new RecordWriter(FLAGS, region);
+                RegionCodec.writeFlags(record.out, region);
+                break;
+            case OWNERS:
+                record = new RecordWriter(OWNERS, region);
+                RegionCodec.writeDomain(record.out, region.getOwners());
+                break;
+            case MEMBERS:
+                record = new RecordWriter(MEMBERS, region);
+                RegionCodec.writeDomain(record.out, region.getMembers());
+                break;
+            default:
+                continue;
+            }
+
+            record.writeTo(buffer);
+            records++;
+        }
+
+        return records;
+    }
+
+    private static void writeParent(RecordWriter record, ProtectedRegion region)
+            throws IOException {
+        ProtectedRegion parent = region.getParent();
+        record.out.writeBoolean(parent != null);
+        if (parent != null) {
+            record.out.writeUTF(parent.getId());
+        }
+    }
+
+    private synchronized void markChanged(ProtectedRegion region,
+            RegionChangeListener.Change change) {
+        Integer changes = tracked.get(region);
+        if (changes != null) {
+            tracked.put(region, changes | (1 << change.ordinal()));
+        }
+    }
+
+    /**
+     * Start following the changes of a new set of regions.
+     * 
+     * @param regions
+     */
+    private void track(Map<String, ProtectedRegion> regions) {
+        for (ProtectedRegion region : tracked.keySet()) {
+            region.removeChangeListener(changeListener);
+        }
+
+        tracked.clear();
+
+        for (ProtectedRegion region : regions.values()) {
+            region.addChangeListener(changeListener);
+            tracked.put(region, 0);
+        }
+    }
+
+    /**
+     * Set the journal aside as a segment and write a copy of the regions to
+     * the snapshot in the background.
+     * 
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        if (compacting) {
+            return;
+        }
+
+        final File segment = new File(journalFile.getParentFile(),
+                journalFile.getName() + "." + (getLastSegment() + 1));
+
+        if (!journalFile.renameTo(segment)) {
+            logger.warning("WorldGuard: Failed to compact the region journal "
+                    + journalFile.getAbsolutePath());
+            return;
+        }
+
+        final Map<String, ProtectedRegion> copies = RegionDBUtil.copyRegions(regions);
+        compacting = true;
+        recordCount = 0;
+
+        compactor.execute(new Runnable() {
+            public void run() {
+                try {
+                    synchronized (snapshot) {
+                        snapshot.setRegions(copies);
+                        snapshot.save();
+
+                        for (File oldSegment : getSegments()) {
+                            if (getSegmentNumber(oldSegment) <= getSegmentNumber(segment)) {
+                                oldSegment.delete();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.warning("WorldGuard: Failed to compact the region journal: "
+                            + e.getMessage());
+                } finally {
+                    synchronized (JournalDatabase.this) {
+                        compacting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Append records to the journal. The file is only kept open while
+     * writing, so that it can be set aside at any time.
+     * 
+     * @param data
+     * @throws IOException
+     */
+    private void append(byte[] data) throws IOException {
+        File parent = journalFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        boolean empty = journalFile.length() == 0;
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+
+        try {
+            if (empty) {
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                header.flush();
+            }
+
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Apply the records of a journal file to a map of regions.
+     * 
+     * @param file
+     * @param regions regions by lowercase ID
+     * @param parentIds parent IDs by lowercase region ID
+     * @param truncate whether to cut off a partly written record at the end
+     * @return number of records that were applied
+     * @throws IOException
+     */
+    private int replay(File file, Map<String, ProtectedRegion> regions,
+            Map<String, String> parentIds, boolean truncate) throws IOException {
+        InputStream stream = new FileInputStream(file);
+        long validLength = 8;
+        int records = 0;
+
+        try {
+            DataInputStream in = new DataInputStream(stream);
+
+            if (file.length() < 8) {
+                validLength = 0;
+            } else if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a supported region journal: "
+                        + file.getAbsolutePath());
+            } else {
+                while (true) {
+                    byte[] data = readRecord(in);
+                    if (data == null) {
+                        break;
+                    }
+
+                    applyRecord(data, regions, parentIds);
+                    validLength += 8 + data.length;
+                    records++;
+                }
+            }
+        } finally {
+            stream.close();
+        }
+
+        if (validLength < file.length()) {
+            logger.warning("WorldGuard: Dropped an incomplete record at the end of "
+                    + file.getAbsolutePath());
+
+            if (truncate) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Read the next record.
+     * 
+     * @param in
+     * @return record data, or null at the end or at an incomplete record
+     * @throws IOException
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+
+            if (length <= 0 || length > 64 * 1024 * 1024) {
+                return null;
+            }
+
+            byte[] data = new byte[length];
+            in.readFully(data);
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+
+            return data;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void applyRecord(byte[] data, Map<String, ProtectedRegion> regions,
+            Map<String, String> parentIds) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte type = in.readByte();
+        String id = in.readUTF().toLowerCase();
+
+        if (type == CREATE) {
+            ProtectedRegion region = RegionCodec.readRegion(in);
+            regions.put(id, region);
+            readParent(in, id, parentIds);
+            return;
+        } else if (type == REMOVE) {
+            regions.remove(id);
+            parentIds.remove(id);
+            return;
+        }
+
+        ProtectedRegion region = regions.get(id);
+
+        if (region == null) {
+            return;
+        }
+
+        switch (type) {
+        case PRIORITY:
+            region.setPriority(in.readInt());
+            break;
+        case PARENT:
+            readParent(in, id, parentIds);
+            break;
+        case FLAGS:
+            RegionCodec.readFlags(in, region);
+            break;
+        case OWNERS:
+            region.setOwners(RegionCodec.readDomain(in));
+            break;
+        case MEMBERS:
+            region.setMembers(RegionCodec.readDomain(in));
+            break;
+        default:
+            throw new IOException("Unknown region journal record type " + type);
+        }
+    }
+
+    private static void readParent(DataInputStream in, String id,
+            Map<String, String> parentIds) throws IOException {
+        if (in.readBoolean()) {
+            parentIds.put(id, in.readUTF());
+        } else {
+            parentIds.remove(id);
+        }
+    }
+
+    private static void linkParents(Map<String, ProtectedRegion> regions,
+            Map<String, String> parentIds) {
+        for (Map.Entry<String, ProtectedRegion> entry : regions.entrySet()) {
+            String parentId = parentIds.get(entry.getKey());
+            ProtectedRegion parent = parentId != null
+                    ? regions.get(parentId.toLowerCase()) : null;
+
+            if (parentId != null && parent == null) {
+                logger.warning("Unknown region parent: " + parentId);
+            }
+
+            try {
+                entry.getValue().setParent(parent);
+            } catch (CircularInheritanceException e) {
+                logger.warning("Circular inheritance detect with '"
+                        + parentId + "' detected as a parent");
+            }
+        }
+    }
+
+    /**
+     * Get the journal segments that were set aside for compaction, oldest
+     * first.
+     * 
+     * @return segment files
+     */
+    private List<File> getSegments() {
+        List<File> segments = new ArrayList<File>();
+        File parent = journalFile.getAbsoluteFile().getParentFile();
+        File[] files = parent != null ? parent.listFiles() : null;
+
+        if (files == null) {
+            return segments;
+        }
+
+        for (File file : files) {
+            if (getSegmentNumber(file) > 0) {
+                segments.add(file);
+            }
+        }
+
+        Collections.sort(segments, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long na = getSegmentNumber(a);
+                long nb = getSegmentNumber(b);
+                return na < nb ? -1 : (na > nb ? 1 : 0);
+            }
+        });
+
+        return segments;
+    }
+
+    private long getLastSegment() {
+        List<File> segments = getSegments();
+        return segments.isEmpty() ? 0 : getSegmentNumber(segments.get(segments.size() - 1));
+    }
+
+    /**
+     * Get the number of a segment file.
+     * 
+     * @param file
+     * @return number, or 0 if the file isn't a segment of this journal
+     */
+    private long getSegmentNumber(File file) {
+        String prefix = journalFile.getName() + ".";
+        String name = file.getName();
+
+        if (!name.startsWith(prefix) || name.length() == prefix.length()) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public synchronized Map<String, ProtectedRegion> getRegions() {
+        return regions;
+    }
+
+    public synchronized void setRegions(Map<String, ProtectedRegion> regions) {
+        this.regions = regions;
+    }
+
+    /**
+     * A record that is being written. The record starts with its type and
+     * the ID of its region.
+     */
+    private static class RecordWriter {
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(data);
+
+        RecordWriter(byte type, ProtectedRegion region) throws IOException {
+            out.writeByte(type);
+            out.writeUTF(region.getId());
+        }
+
+        /**
+         * Write the record with its length and checksum.
+         * 
+         * @param buffer
+         * @throws IOException
+         */
+        void writeTo(ByteArrayOutputStream buffer) throws IOException {
+            out.flush();
+            byte[] bytes = data.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            DataOutputStream header = new DataOutputStream(buffer);
+            header.writeInt(bytes.length);
+            header.writeInt((int) crc.getValue());
+            header.flush();
+            buffer.write(bytes);
+        }
+    }
+}
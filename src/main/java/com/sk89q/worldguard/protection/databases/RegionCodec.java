@@ -0,0 +1,391 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection.databases;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.BlockVector2D;
+import com.sk89q.worldguard.domains.DefaultDomain;
+import com.sk89q.worldguard.protection.flags.DefaultFlag;
+import com.sk89q.worldguard.protection.flags.Flag;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedPolygonalRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+/**
+ * Reads and writes regions, their flags and their domains in a compact
+ * binary form. Flag values are written in their marshalled form, the same
+ * as in the YAML database, so they survive changes to the flag classes.
+ */
+final class RegionCodec {
+
+    private static final Logger logger = Logger.getLogger("Minecraft.WorldGuard");
+
+    static final byte CUBOID = 0;
+    static final byte POLYGON = 1;
+    static final byte GLOBAL = 2;
+
+    private static final byte NULL_VALUE = 0;
+    private static final byte STRING_VALUE = 1;
+    private static final byte BOOLEAN_VALUE = 2;
+    private static final byte INTEGER_VALUE = 3;
+    private static final byte LONG_VALUE = 4;
+    private static final byte DOUBLE_VALUE = 5;
+    private static final byte LIST_VALUE = 6;
+    private static final byte MAP_VALUE = 7;
+
+    private RegionCodec() {
+    }
+
+    /**
+     * Get the type code of a region.
+     * 
+     * @param region
+     * @return type code, or -1 if the type of region can't be written
+     */
+    static byte getType(ProtectedRegion region) {
+        if (region instanceof ProtectedCuboidRegion) {
+            return CUBOID;
+        } else if (region instanceof ProtectedPolygonalRegion) {
+            return POLYGON;
+        } else if (region instanceof GlobalProtectedRegion) {
+            return GLOBAL;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Write a region with everything but its parent.
+     * 
+     * @param out
+     * @param region
+     * @throws IOException if the type of region can't be written
+     */
+    static void writeRegion(DataOutput out, ProtectedRegion region) throws IOException {
+        byte type = getType(region);
+
+        if (type < 0) {
+            throw new IOException("Unknown region type for region '"
+                    + region.getId() + "'");
+        }
+
+        out.writeUTF(region.getId());
+        out.writeByte(type);
+        writeGeometry(out, region);
+        out.writeInt(region.getPriority());
+        writeFlags(out, region);
+        writeDomain(out, region.getOwners());
+        writeDomain(out, region.getMembers());
+    }
+
+    /**
+     * Read a region written by {@link #writeRegion(DataOutput, ProtectedRegion)}.
+     * 
+     * @param in
+     * @return region
+     * @throws IOException
+     */
+    static ProtectedRegion readRegion(DataInput in) throws IOException {
+        String id = in.readUTF();
+        ProtectedRegion region = readGeometry(in, id, in.readByte());
+        region.setPriority(in.readInt());
+        readFlags(in, region);
+        region.setOwners(readDomain(in));
+        region.setMembers(readDomain(in));
+        return region;
+    }
+
+    /**
+     * Write the shape of a region.
+     * 
+     * @param out
+     * @param region
+     * @throws IOException
+     */
+    static void writeGeometry(DataOutput out, ProtectedRegion region) throws IOException {
+        if (region instanceof ProtectedCuboidRegion) {
+            BlockVector min = region.getMinimumPoint();
+            BlockVector max = region.getMaximumPoint();
+            out.writeInt(min.getBlockX());
+            out.writeInt(min.getBlockY());
+            out.writeInt(min.getBlockZ());
+            out.writeInt(max.getBlockX());
+            out.writeInt(max.getBlockY());
+            out.writeInt(max.getBlockZ());
+        } else if (region instanceof ProtectedPolygonalRegion) {
+            ProtectedPolygonalRegion poly = (ProtectedPolygonalRegion) region;
+            List<BlockVector2D> points = poly.getPoints();
+            out.writeInt(poly.getMinimumPoint().getBlockY());
+            out.writeInt(poly.getMaximumPoint().getBlockY());
+            out.writeInt(points.size());
+            for (BlockVector2D point : points) {
+                out.writeInt(point.getBlockX());
+                out.writeInt(point.getBlockZ());
+            }
+        }
+    }
+
+    /**
+     * Read the shape of a region and create the region.
+     * 
+     * @param in
+     * @param id region ID
+     * @param type type code
+     * @return new region
+     * @throws IOException
+     */
+    static ProtectedRegion readGeometry(DataInput in, String id, byte type) throws IOException {
+        switch (type) {
+        case CUBOID:
+            BlockVector min = new BlockVector(in.readInt(), in.readInt(), in.readInt());
+            BlockVector max = new BlockVector(in.readInt(), in.readInt(), in.readInt());
+            return new ProtectedCuboidRegion(id, min, max);
+        case POLYGON:
+            int minY = in.readInt();
+            int maxY = in.readInt();
+            int count = in.readInt();
+            List<BlockVector2D> points = new ArrayList<BlockVector2D>(count);
+            for (int i = 0; i < count; i++) {
+                points.add(new BlockVector2D(in.readInt(), in.readInt()));
+            }
+            return new ProtectedPolygonalRegion(id, points, minY, maxY);
+        case GLOBAL:
+            return new GlobalProtectedRegion(id);
+        default:
+            throw new IOException("Unknown region type " + type
+                    + " for region '" + id + "'");
+        }
+    }
+
+    /**
+     * Write the flags of a region by name.
+     * 
+     * @param out
+     * @param region
+     * @throws IOException
+     */
+    static void writeFlags(DataOutput out, ProtectedRegion region) throws IOException {
+        Map<String, Object> flagData = new LinkedHashMap<String, Object>();
+
+        for (Map.Entry<Flag<?>, Object> entry : region.getFlags().entrySet()) {
+            Object value = marshal(entry.getKey(), entry.getValue());
+            if (value != null) {
+                flagData.put(entry.getKey().getName(), value);
+            }
+        }
+
+        out.writeInt(flagData.size());
+        for (Map.Entry<String, Object> entry : flagData.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Read flags written by {@link #writeFlags(DataOutput, ProtectedRegion)}
+     * and set them on a region, replacing its current flags. Unknown flags
+     * and values that can't be parsed are skipped.
+     * 
+     * @param in
+     * @param region
+     * @throws IOException
+     */
+    static void readFlags(DataInput in, ProtectedRegion region) throws IOException {
+        Map<Flag<?>, Object> flags = new HashMap<Flag<?>, Object>();
+        int count = in.readInt();
+
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            Object rawValue = readValue(in);
+            Flag<?> flag = getFlag(name);
+
+            if (flag == null) {
+                logger.warning("Unknown flag '" + name + "' for region '"
+                        + region.getId() + "'");
+                continue;
+            }
+
+            Object value = flag.unmarshal(rawValue);
+            if (value == null) {
+                logger.warning("Failed to parse flag '" + name
+                        + "' with value '" + rawValue + "'");
+                continue;
+            }
+
+            flags.put(flag, value);
+        }
+
+        region.setFlags(flags);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> Object marshal(Flag<V> flag, Object value) {
+        if (value == null) {
+            return null;
+        }
+        return flag.marshal((V) value);
+    }
+
+    static Flag<?> getFlag(String name) {
+        for (Flag<?> flag : DefaultFlag.getFlags()) {
+            if (flag.getName().equals(name)) {
+                return flag;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the players and groups of a domain.
+     * 
+     * @param out
+     * @param domain
+     * @throws IOException
+     */
+    static void writeDomain(DataOutput out, DefaultDomain domain) throws IOException {
+        out.writeInt(domain.getPlayers().size());
+        for (String player : domain.getPlayers()) {
+            out.writeUTF(player);
+        }
+        out.writeInt(domain.getGroups().size());
+        for (String group : domain.getGroups()) {
+            out.writeUTF(group);
+        }
+    }
+
+    /**
+     * Read a domain written by {@link #writeDomain(DataOutput, DefaultDomain)}.
+     * 
+     * @param in
+     * @return new domain
+     * @throws IOException
+     */
+    static DefaultDomain readDomain(DataInput in) throws IOException {
+        DefaultDomain domain = new DefaultDomain();
+        int players = in.readInt();
+        for (int i = 0; i < players; i++) {
+            domain.addPlayer(in.readUTF());
+        }
+        int groups = in.readInt();
+        for (int i = 0; i < groups; i++) {
+            domain.addGroup(in.readUTF());
+        }
+        return domain;
+    }
+
+    /**
+     * Write a marshalled flag value. Values are strings, booleans, numbers,
+     * and lists and maps of those. Other objects are written as strings.
+     * 
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    static void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL_VALUE);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN_VALUE);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            out.writeByte(INTEGER_VALUE);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(LONG_VALUE);
+            out.writeLong((Long) value);
+        } else if (value instanceof Number) {
+            out.writeByte(DOUBLE_VALUE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(LIST_VALUE);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP_VALUE);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                out.writeUTF(String.valueOf(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+        } else {
+            out.writeByte(STRING_VALUE);
+            out.writeUTF(value.toString());
+        }
+    }
+
+    /**
+     * Read a value written by {@link #writeValue(DataOutput, Object)}.
+     * 
+     * @param in
+     * @return value
+     * @throws IOException
+     */
+    static Object readValue(DataInput in) throws IOException {
+        byte tag = in.readByte();
+
+        switch (tag) {
+        case NULL_VALUE:
+            return null;
+        case STRING_VALUE:
+            return in.readUTF();
+        case BOOLEAN_VALUE:
+            return in.readBoolean();
+        case INTEGER_VALUE:
+            return in.readInt();
+        case LONG_VALUE:
+            return in.readLong();
+        case DOUBLE_VALUE:
+            return in.readDouble();
+        case LIST_VALUE:
+            int size = in.readInt();
+            List<Object> list = new ArrayList<Object>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readValue(in));
+            }
+            return list;
+        case MAP_VALUE:
+            int entries = in.readInt();
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < entries; i++) {
+                String key = in.readUTF();
+                map.put(key, readValue(in));
+            }
+            return map;
+        default:
+            throw new IOException("Unknown value type " + tag);
+        }
+    }
+}
@@ -19,10 +19,21 @@
 
 package com.sk89q.worldguard.protection.databases;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.sk89q.worldedit.BlockVector2D;
 import com.sk89q.worldguard.domains.DefaultDomain;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedPolygonalRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion.CircularInheritanceException;
 
 /**
  * Various utility functions for parsing region databases.
@@ -98,4 +109,99 @@ public class RegionDBUtil {
 
         return domain;
     }
+
+    /**
+     * Copy a map of regions, such as to save them while the originals
+     * keep changing. The copies are linked to the copies of their parents.
+     * Regions of types that can't be copied are kept as they are.
+     * 
+     * @param regions
+     * @return new map of copies by the same keys
+     */
+    public static Map<String, ProtectedRegion> copyRegions(
+            Map<String, ProtectedRegion> regions) {
+        Map<String, ProtectedRegion> copies = new HashMap<String, ProtectedRegion>();
+        Map<ProtectedRegion, ProtectedRegion> copiesByRegion =
+                new IdentityHashMap<ProtectedRegion, ProtectedRegion>();
+
+        for (Map.Entry<String, ProtectedRegion> entry : regions.entrySet()) {
+            ProtectedRegion region = entry.getValue();
+            ProtectedRegion copy = copyRegion(region);
+            copies.put(entry.getKey(), copy);
+            copiesByRegion.put(region, copy);
+        }
+
+        for (Map.Entry<ProtectedRegion, ProtectedRegion> entry : copiesByRegion.entrySet()) {
+            ProtectedRegion parent = entry.getKey().getParent();
+            ProtectedRegion copy = entry.getValue();
+
+            if (parent == null || copy == entry.getKey()) {
+                continue;
+            }
+
+            ProtectedRegion parentCopy = copiesByRegion.get(parent);
+
+            try {
+                copy.setParent(parentCopy != null ? parentCopy : parent);
+            } catch (CircularInheritanceException e) {
+                // The originals didn't have a cycle, so neither do the copies
+            }
+        }
+
+        return copies;
+    }
+
+    /**
+     * Copy all regions from one database into another, such as to convert
+     * the regions of a world from one format to another.
+     * 
+     * @param from database to load the regions from
+     * @param to database to save the regions to
+     * @throws IOException
+     */
+    public static void transfer(ProtectionDatabase from, ProtectionDatabase to)
+            throws IOException {
+        from.load();
+        to.setRegions(from.getRegions());
+        to.save();
+    }
+
+    private static ProtectedRegion copyRegion(ProtectedRegion region) {
+        ProtectedRegion copy;
+
+        if (region instanceof ProtectedCuboidRegion) {
+            copy = new ProtectedCuboidRegion(region.getId(),
+                    region.getMinimumPoint(), region.getMaximumPoint());
+        } else if (region instanceof ProtectedPolygonalRegion) {
+            ProtectedPolygonalRegion poly = (ProtectedPolygonalRegion) region;
+            copy = new ProtectedPolygonalRegion(region.getId(),
+                    new ArrayList<BlockVector2D>(poly.getPoints()),
+                    poly.getMinimumPoint().getBlockY(),
+                    poly.getMaximumPoint().getBlockY());
+        } else if (region instanceof GlobalProtectedRegion) {
+            copy = new GlobalProtectedRegion(region.getId());
+        } else {
+            return region;
+        }
+
+        copy.setPriority(region.getPriority());
+        copy.setFlags(region.getFlags());
+        copy.setOwners(copyDomain(region.getOwners()));
+        copy.setMembers(copyDomain(region.getMembers()));
+        return copy;
+    }
+
+    private static DefaultDomain copyDomain(DefaultDomain domain) {
+        DefaultDomain copy = new DefaultDomain();
+
+        for (String player : domain.getPlayers()) {
+            copy.addPlayer(player);
+        }
+
+        for (String group : domain.getGroups()) {
+            copy.addGroup(group);
+        }
+
+        return copy;
+    }
 }
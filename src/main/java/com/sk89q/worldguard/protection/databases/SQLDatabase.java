@@ -0,0 +1,593 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection.databases;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.BlockVector2D;
+import com.sk89q.worldguard.domains.DefaultDomain;
+import com.sk89q.worldguard.protection.flags.Flag;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedPolygonalRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion.CircularInheritanceException;
+import com.sk89q.worldguard.protection.regions.RegionChangeListener;
+
+/**
+ * Keeps the regions of a world in an SQL database through JDBC, such as an
+ * embedded H2 or SQLite database. The regions of every world can share the
+ * same tables, which are created on the first connection when missing.
+ * 
+ * <p>Only the regions that were added, changed or removed since the last
+ * save are written when saving through a region manager, in a single
+ * transaction. The rows of a changed region are deleted and inserted
+ * again, which works the same on every database.</p>
+ * 
+ * <p>A connection is only opened while loading or saving.</p>
+ */
+public class SQLDatabase extends AbstractProtectionDatabase {
+
+    private static final Logger logger = Logger.getLogger("Minecraft.WorldGuard");
+
+    private final String dsn;
+    private final String user;
+    private final String pass;
+    private final String prefix;
+    private final String world;
+
+    private Map<String, ProtectedRegion> regions = new HashMap<String, ProtectedRegion>();
+    private boolean schemaCreated;
+
+    /**
+     * The regions that the database is up to date with, and whether each
+     * of them has changed since.
+     */
+    private final Map<ProtectedRegion, Boolean> tracked =
+            new IdentityHashMap<ProtectedRegion, Boolean>();
+    private final RegionChangeListener changeListener = new RegionChangeListener() {
+        public void regionChanged(ProtectedRegion region, Change change) {
+            markChanged(region);
+        }
+    };
+
+    /**
+     * Construct the database.
+     * 
+     * @param dsn JDBC URL
+     * @param user user name, or null
+     * @param pass password, or null
+     * @param prefix prefix of the table names
+     * @param world name of the world that the regions belong to
+     */
+    public SQLDatabase(String dsn, String user, String pass, String prefix,
+            String world) {
+        this.dsn = dsn;
+        this.user = user;
+        this.pass = pass;
+        this.prefix = prefix;
+        this.world = world;
+    }
+
+    /**
+     * Open a connection. The tables that are missing are created on the
+     * first connection only, so that saves only run DML.
+     * 
+     * @return connection
+     * @throws SQLException
+     */
+    private Connection openConnection() throws SQLException {
+        Connection conn = DriverManager.getConnection(dsn, user, pass);
+
+        if (schemaCreated) {
+            return conn;
+        }
+
+        try {
+            Statement stmt = conn.createStatement();
+            try {
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + prefix + "region ("
+                        + "world VARCHAR(64) NOT NULL, id VARCHAR(128) NOT NULL, "
+                        + "type VARCHAR(16) NOT NULL, priority INT NOT NULL, "
+                        + "parent VARCHAR(128), "
+                        + "min_x INT NOT NULL, min_y INT NOT NULL, min_z INT NOT NULL, "
+                        + "max_x INT NOT NULL, max_y INT NOT NULL, max_z INT NOT NULL, "
+                        + "PRIMARY KEY (world, id))");
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + prefix + "region_point ("
+                        + "world VARCHAR(64) NOT NULL, region_id VARCHAR(128) NOT NULL, "
+                        + "idx INT NOT NULL, x INT NOT NULL, z INT NOT NULL, "
+                        + "PRIMARY KEY (world, region_id, idx))");
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + prefix + "region_flag ("
+                        + "world VARCHAR(64) NOT NULL, region_id VARCHAR(128) NOT NULL, "
+                        + "flag VARCHAR(64) NOT NULL, data BLOB NOT NULL, "
+                        + "PRIMARY KEY (world, region_id, flag))");
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + prefix + "region_domain ("
+                        + "world VARCHAR(64) NOT NULL, region_id VARCHAR(128) NOT NULL, "
+                        + "role VARCHAR(8) NOT NULL, kind VARCHAR(8) NOT NULL, "
+                        + "name VARCHAR(64) NOT NULL, "
+                        + "PRIMARY KEY (world, region_id, role, kind, name))");
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+
+        schemaCreated = true;
+        return conn;
+    }
+
+    public synchronized void load() throws IOException {
+        try {
+            Connection conn = openConnection();
+            try {
+                this.regions = read(conn);
+            } finally {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to load regions from " + dsn + ": "
+                    + e.getMessage());
+        }
+
+        track(regions);
+    }
+
+    private Map<String, ProtectedRegion> read(Connection conn)
+            throws SQLException, IOException {
+        Map<String, List<BlockVector2D>> points = new HashMap<String, List<BlockVector2D>>();
+        PreparedStatement stmt = conn.prepareStatement("SELECT region_id, x, z FROM "
+                + prefix + "region_point WHERE world = ? ORDER BY region_id, idx");
+        try {
+            stmt.setString(1, world);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                String id = rs.getString(1);
+                List<BlockVector2D> regionPoints = points.get(id);
+                if (regionPoints == null) {
+                    regionPoints = new ArrayList<BlockVector2D>();
+                    points.put(id, regionPoints);
+                }
+                regionPoints.add(new BlockVector2D(rs.getInt(2), rs.getInt(3)));
+            }
+        } finally {
+            stmt.close();
+        }
+
+        Map<String, ProtectedRegion> regions = new HashMap<String, ProtectedRegion>();
+        Map<String, ProtectedRegion> byId = new HashMap<String, ProtectedRegion>();
+        Map<ProtectedRegion, String> parentIds = new IdentityHashMap<ProtectedRegion, String>();
+
+        stmt = conn.prepareStatement("SELECT id, type, priority, parent, "
+                + "min_x, min_y, min_z, max_x, max_y, max_z FROM "
+                + prefix + "region WHERE world = ?");
+        try {
+            stmt.setString(1, world);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                String id = rs.getString(1);
+                String type = rs.getString(2);
+                ProtectedRegion region;
+
+                if (type.equals("cuboid")) {
+                    region = new ProtectedCuboidRegion(id,
+                            new BlockVector(rs.getInt(5), rs.getInt(6), rs.getInt(7)),
+                            new BlockVector(rs.getInt(8), rs.getInt(9), rs.getInt(10)));
+                } else if (type.equals("poly2d")) {
+                    List<BlockVector2D> regionPoints = points.get(id);
+                    if (regionPoints == null || regionPoints.size() < 3) {
+                        logger.warning("Missing points for region '" + id + "'");
+                        continue;
+                    }
+                    region = new ProtectedPolygonalRegion(id, regionPoints,
+                            rs.getInt(6), rs.getInt(9));
+                } else if (type.equals("global")) {
+                    region = new GlobalProtectedRegion(id);
+                } else {
+                    logger.warning("Unknown region type for region '" + id + "'");
+                    continue;
+                }
+
+                region.setPriority(rs.getInt(3));
+                String parentId = rs.getString(4);
+                if (parentId != null) {
+                    parentIds.put(region, parentId);
+                }
+
+                regions.put(id.toLowerCase(), region);
+                byId.put(id, region);
+            }
+        } finally {
+            stmt.close();
+        }
+
+        Map<ProtectedRegion, Map<Flag<?>, Object>> flags =
+                new IdentityHashMap<ProtectedRegion, Map<Flag<?>, Object>>();
+        stmt = conn.prepareStatement("SELECT region_id, flag, data FROM "
+                + prefix + "region_flag WHERE world = ?");
+        try {
+            stmt.setString(1, world);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                ProtectedRegion region = byId.get(rs.getString(1));
+                if (region == null) {
+                    continue;
+                }
+
+                String name = rs.getString(2);
+                Flag<?> flag = RegionCodec.getFlag(name);
+                if (flag == null) {
+                    logger.warning("Unknown flag '" + name + "' for region '"
+                            + region.getId() + "'");
+                    continue;
+                }
+
+                Object rawValue = RegionCodec.readValue(new DataInputStream(
+                        new ByteArrayInputStream(rs.getBytes(3))));
+                Object value = flag.unmarshal(rawValue);
+                if (value == null) {
+                    logger.warning("Failed to parse flag '" + name
+                            + "' with value '" + rawValue + "'");
+                    continue;
+                }
+
+                Map<Flag<?>, Object> regionFlags = flags.get(region);
+                if (regionFlags == null) {
+                    regionFlags = new HashMap<Flag<?>, Object>();
+                    flags.put(region, regionFlags);
+                }
+                regionFlags.put(flag, value);
+            }
+        } finally {
+            stmt.close();
+        }
+
+        for (Map.Entry<ProtectedRegion, Map<Flag<?>, Object>> entry : flags.entrySet()) {
+            entry.getKey().setFlags(entry.getValue());
+        }
+
+        stmt = conn.prepareStatement("SELECT region_id, role, kind, name FROM "
+                + prefix + "region_domain WHERE world = ?");
+        try {
+            stmt.setString(1, world);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                ProtectedRegion region = byId.get(rs.getString(1));
+                if (region == null) {
+                    continue;
+                }
+
+                DefaultDomain domain = rs.getString(2).equals("owner")
+                        ? region.getOwners() : region.getMembers();
+                if (rs.getString(3).equals("group")) {
+                    domain.addGroup(rs.getString(4));
+                } else {
+                    domain.addPlayer(rs.getString(4));
+                }
+            }
+        } finally {
+            stmt.close();
+        }
+
+        for (Map.Entry<ProtectedRegion, String> entry : parentIds.entrySet()) {
+            ProtectedRegion parent = regions.get(entry.getValue().toLowerCase());
+            if (parent == null) {
+                logger.warning("Unknown region parent: " + entry.getValue());
+                continue;
+            }
+
+            try {
+                entry.getKey().setParent(parent);
+            } catch (CircularInheritanceException e) {
+                logger.warning("Circular inheritance detect with '"
+                        + entry.getValue() + "' detected as a parent");
+            }
+        }
+
+        return regions;
+    }
+
+    /**
+     * Replace all regions of the world in the database.
+     */
+    public synchronized void save() throws IOException {
+        write(new ArrayList<ProtectedRegion>(regions.values()), null, true);
+        track(regions);
+    }
+
+    @Override
+    public synchronized void save(RegionManager manager) throws IOException {
+        Map<String, ProtectedRegion> regions = manager.getRegions();
+        List<ProtectedRegion> removed = new ArrayList<ProtectedRegion>();
+        List<ProtectedRegion> changed = new ArrayList<ProtectedRegion>();
+
+        // Regions that were removed, or replaced by other regions
+        for (ProtectedRegion region : tracked.keySet()) {
+            if (regions.get(region.getId().toLowerCase()) != region) {
+                removed.add(region);
+            }
+        }
+
+        for (ProtectedRegion region : regions.values()) {
+            Boolean dirty = tracked.get(region);
+            if (dirty == null || dirty) {
+                changed.add(region);
+            }
+        }
+
+        if (!removed.isEmpty() || !changed.isEmpty()) {
+            write(changed, removed, false);
+        }
+
+        this.regions = regions;
+
+        for (ProtectedRegion region : removed) {
+            region.removeChangeListener(changeListener);
+            tracked.remove(region);
+        }
+
+        for (ProtectedRegion region : changed) {
+            if (!tracked.containsKey(region)) {
+                region.addChangeListener(changeListener);
+            }
+            tracked.put(region, false);
+        }
+    }
+
+    /**
+     * Write regions in one transaction.
+     * 
+     * @param changed regions to write
+     * @param removed regions to remove, or null
+     * @param replace whether to remove all other regions of the world
+     * @throws IOException
+     */
+    private void write(List<ProtectedRegion> changed, List<ProtectedRegion> removed,
+            boolean replace) throws IOException {
+        try {
+            Connection conn = openConnection();
+            try {
+                conn.setAutoCommit(false);
+
+                try {
+                    if (replace) {
+                        deleteWorld(conn);
+                    } else {
+                        List<ProtectedRegion> deleted = new ArrayList<ProtectedRegion>(changed);
+                        deleted.addAll(removed);
+                        deleteRegions(conn, deleted);
+                    }
+                    insertRegions(conn, changed);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            } finally {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to save regions to " + dsn + ": "
+                    + e.getMessage());
+        }
+    }
+
+    private void deleteWorld(Connection conn) throws SQLException {
+        for (String table : new String[] { "region", "region_point",
+                "region_flag", "region_domain" }) {
+            PreparedStatement stmt = conn.prepareStatement(
+                    "DELETE FROM " + prefix + table + " WHERE world = ?");
+            try {
+                stmt.setString(1, world);
+                stmt.executeUpdate();
+            } finally {
+                stmt.close();
+            }
+        }
+    }
+
+    private void deleteRegions(Connection conn, List<ProtectedRegion> regions)
+            throws SQLException {
+        String[] queries = new String[] {
+                "DELETE FROM " + prefix + "region WHERE world = ? AND id = ?",
+                "DELETE FROM " + prefix + "region_point WHERE world = ? AND region_id = ?",
+                "DELETE FROM " + prefix + "region_flag WHERE world = ? AND region_id = ?",
+                "DELETE FROM " + prefix + "region_domain WHERE world = ? AND region_id = ?",
+        };
+
+        for (String query : queries) {
+            PreparedStatement stmt = conn.prepareStatement(query);
+            try {
+                for (ProtectedRegion region : regions) {
+                    stmt.setString(1, world);
+                    stmt.setString(2, region.getId());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            } finally {
+                stmt.close();
+            }
+        }
+    }
+
+    private void insertRegions(Connection conn, List<ProtectedRegion> regions)
+            throws SQLException, IOException {
+        PreparedStatement regionStmt = conn.prepareStatement("INSERT INTO "
+                + prefix + "region (world, id, type, priority, parent, "
+                + "min_x, min_y, min_z, max_x, max_y, max_z) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement pointStmt = conn.prepareStatement("INSERT INTO "
+                + prefix + "region_point (world, region_id, idx, x, z) "
+                + "VALUES (?, ?, ?, ?, ?)");
+        PreparedStatement flagStmt = conn.prepareStatement("INSERT INTO "
+                + prefix + "region_flag (world, region_id, flag, data) "
+                + "VALUES (?, ?, ?, ?)");
+        PreparedStatement domainStmt = conn.prepareStatement("INSERT INTO "
+                + prefix + "region_domain (world, region_id, role, kind, name) "
+                + "VALUES (?, ?, ?, ?, ?)");
+
+        try {
+            for (ProtectedRegion region : regions) {
+                String type;
+                if (region instanceof ProtectedCuboidRegion) {
+                    type = "cuboid";
+                } else if (region instanceof ProtectedPolygonalRegion) {
+                    type = "poly2d";
+                } else if (region instanceof GlobalProtectedRegion) {
+                    type = "global";
+                } else {
+                    logger.warning("Region '" + region.getId()
+                            + "' is of a type that can't be saved");
+                    continue;
+                }
+
+                String id = region.getId();
+                BlockVector min = region.getMinimumPoint();
+                BlockVector max = region.getMaximumPoint();
+                ProtectedRegion parent = region.getParent();
+
+                regionStmt.setString(1, world);
+                regionStmt.setString(2, id);
+                regionStmt.setString(3, type);
+                regionStmt.setInt(4, region.getPriority());
+                regionStmt.setString(5, parent != null ? parent.getId() : null);
+                regionStmt.setInt(6, min.getBlockX());
+                regionStmt.setInt(7, min.getBlockY());
+                regionStmt.setInt(8, min.getBlockZ());
+                regionStmt.setInt(9, max.getBlockX());
+                regionStmt.setInt(10, max.getBlockY());
+                regionStmt.setInt(11, max.getBlockZ());
+                regionStmt.addBatch();
+
+                if (region instanceof ProtectedPolygonalRegion) {
+                    int index = 0;
+                    for (BlockVector2D point : ((ProtectedPolygonalRegion) region).getPoints()) {
+                        pointStmt.setString(1, world);
+                        pointStmt.setString(2, id);
+                        pointStmt.setInt(3, index++);
+                        pointStmt.setInt(4, point.getBlockX());
+                        pointStmt.setInt(5, point.getBlockZ());
+                        pointStmt.addBatch();
+                    }
+                }
+
+                for (Map.Entry<Flag<?>, Object> entry : region.getFlags().entrySet()) {
+                    Object value = RegionCodec.marshal(entry.getKey(), entry.getValue());
+                    if (value == null) {
+                        continue;
+                    }
+
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    RegionCodec.writeValue(new DataOutputStream(data), value);
+                    flagStmt.setString(1, world);
+                    flagStmt.setString(2, id);
+                    flagStmt.setString(3, entry.getKey().getName());
+                    flagStmt.setBytes(4, data.toByteArray());
+                    flagStmt.addBatch();
+                }
+
+                addDomain(domainStmt, id, "owner", region.getOwners());
+                addDomain(domainStmt, id, "member", region.getMembers());
+            }
+
+            regionStmt.executeBatch();
+            pointStmt.executeBatch();
+            flagStmt.executeBatch();
+            domainStmt.executeBatch();
+        } finally {
+            regionStmt.close();
+            pointStmt.close();
+            flagStmt.close();
+            domainStmt.close();
+        }
+    }
+
+    private void addDomain(PreparedStatement stmt, String id, String role,
+            DefaultDomain domain) throws SQLException {
+        for (String player : domain.getPlayers()) {
+            stmt.setString(1, world);
+            stmt.setString(2, id);
+            stmt.setString(3, role);
+            stmt.setString(4, "player");
+            stmt.setString(5, player);
+            stmt.addBatch();
+        }
+
+        for (String group : domain.getGroups()) {
+            stmt.setString(1, world);
+            stmt.setString(2, id);
+            stmt.setString(3, role);
+            stmt.setString(4, "group");
+            stmt.setString(5, group);
+            stmt.addBatch();
+        }
+    }
+
+    private synchronized void markChanged(ProtectedRegion region) {
+        if (tracked.containsKey(region)) {
+            tracked.put(region, true);
+        }
+    }
+
+    /**
+     * Start following the changes of a new set of regions.
+     * 
+     * @param regions
+     */
+    private void track(Map<String, ProtectedRegion> regions) {
+        for (ProtectedRegion region : tracked.keySet()) {
+            region.removeChangeListener(changeListener);
+        }
+
+        tracked.clear();
+
+        for (ProtectedRegion region : regions.values()) {
+            region.addChangeListener(changeListener);
+            tracked.put(region, false);
+        }
+    }
+
+    public Map<String, ProtectedRegion> getRegions() {
+        return regions;
+    }
+
+    public void setRegions(Map<String, ProtectedRegion> regions) {
+        this.regions = regions;
+    }
+}
@@ -237,7 +237,10 @@ public class YAMLDatabase extends AbstractProtectionDatabase {
                 "#\r\n" +
                 "# REMEMBER TO KEEP PERIODICAL BACKUPS.\r\n" +
                 "#");
-        config.save();
+        
+        if (!config.save()) {
+            throw new IOException("Failed to write the regions file");
+        }
     }
     
     private Map<String, Object> getFlagData(ProtectedRegion region) {
@@ -18,6 +18,9 @@
  */
 package com.sk89q.worldguard.protection.flags;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.bukkit.command.CommandSender;
 
 import com.sk89q.worldguard.bukkit.WorldGuardPlugin;
@@ -29,23 +32,61 @@ import com.sk89q.worldguard.bukkit.WorldGuardPlugin;
  */
 public abstract class Flag<T> {
     
+    /**
+     * Every flag that has been created, indexed by ordinal.
+     */
+    private static final List<Flag<?>> registered = new ArrayList<Flag<?>>();
+    
     private String name;
     private Character legacyCode;
+    private final int ordinal;
     
     public Flag(String name, char legacyCode) {
         this.name = name;
         this.legacyCode = legacyCode;
+        this.ordinal = register(this);
     }
     
     public Flag(String name) {
         this.name = name;
         this.legacyCode = null;
+        this.ordinal = register(this);
+    }
+    
+    private static synchronized int register(Flag<?> flag) {
+        registered.add(flag);
+        return registered.size() - 1;
+    }
+    
+    /**
+     * Get a flag by its ordinal.
+     * 
+     * @param ordinal
+     * @return flag or null if there is no such flag
+     */
+    public static synchronized Flag<?> getByOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= registered.size()) {
+            return null;
+        }
+        
+        return registered.get(ordinal);
     }
     
     public String getName() {
         return name;
     }
     
+    /**
+     * Get the ordinal of the flag. Ordinals are assigned in the order that
+     * flags are created, starting at zero, and are used to store flag
+     * values in arrays.
+     * 
+     * @return ordinal
+     */
+    public final int getOrdinal() {
+        return ordinal;
+    }
+    
     public Character getLegacyCode() {
         return legacyCode;
     }
@@ -0,0 +1,358 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldguard.protection.managers;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldguard.LocalPlayer;
+import com.sk89q.worldguard.protection.ApplicableRegionSet;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.protection.regions.RegionChangeListener;
+
+/**
+ * Wraps another region manager and caches the results of point queries by
+ * block position. Every change to the set of regions, and every change to
+ * the priority, parent, flags or domains of a region, increments a
+ * generation counter that invalidates the cache.
+ */
+public class CachingRegionManager extends RegionManager {
+
+    /**
+     * Largest absolute X or Z coordinate that fits into a cache key.
+     */
+    private static final int MAX_HORIZONTAL = (1 << 25) - 1;
+    /**
+     * Largest Y coordinate that fits into a cache key.
+     */
+    private static final int MAX_VERTICAL = (1 << 12) - 1;
+
+    private final RegionManager index;
+    private final RegionQueryCache cache;
+    private volatile long generation;
+
+    /**
+     * Invalidates the cache when a region changes.
+     */
+    private final RegionChangeListener changeListener = new RegionChangeListener() {
+        public void regionChanged(ProtectedRegion region, Change change) {
+            if (index.getRegion(region.getId()) == region) {
+                invalidate();
+            }
+        }
+    };
+
+    /**
+     * Construct the manager.
+     * 
+     * @param index manager to query on a cache miss
+     * @param capacity maximum number of cached positions
+     */
+    public CachingRegionManager(RegionManager index, int capacity) {
+        super(index.loader);
+        this.index = index;
+        this.cache = new RegionQueryCache(capacity);
+
+        for (ProtectedRegion region : index.getRegions().values()) {
+            region.addChangeListener(changeListener);
+        }
+    }
+
+    /**
+     * Get the manager that queries are passed to on a cache miss.
+     * 
+     * @return
+     */
+    public RegionManager getIndex() {
+        return index;
+    }
+
+    /**
+     * Invalidate all cached results.
+     */
+    public void invalidate() {
+        generation++;
+    }
+
+    /**
+     * Get the number of cached positions.
+     * 
+     * @return
+     */
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * Get the maximum number of cached positions.
+     * 
+     * @return
+     */
+    public int getCacheCapacity() {
+        return cache.getCapacity();
+    }
+
+    /**
+     * Get the number of queries answered from the cache.
+     * 
+     * @return
+     */
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * Get the number of queries that were not in the cache.
+     * 
+     * @return
+     */
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    @Override
+    public Map<String, ProtectedRegion> getRegions() {
+        return index.getRegions();
+    }
+
+    @Override
+    public void setRegions(Map<String, ProtectedRegion> regions) {
+        for (ProtectedRegion region : index.getRegions().values()) {
+            region.removeChangeListener(changeListener);
+        }
+
+        index.setRegions(regions);
+
+        for (ProtectedRegion region : index.getRegions().values()) {
+            region.addChangeListener(changeListener);
+        }
+
+        invalidate();
+    }
+
+    @Override
+    public void addRegion(ProtectedRegion region) {
+        ProtectedRegion existing = index.getRegion(region.getId());
+        if (existing != null) {
+            existing.removeChangeListener(changeListener);
+        }
+
+        index.addRegion(region);
+        region.addChangeListener(changeListener);
+        invalidate();
+    }
+
+    @Override
+    public void addRegions(Collection<ProtectedRegion> regions) {
+        for (ProtectedRegion region : regions) {
+            ProtectedRegion existing = index.getRegion(region.getId());
+            if (existing != null) {
+                existing.removeChangeListener(changeListener);
+            }
+        }
+
+        index.addRegions(regions);
+
+        for (ProtectedRegion region : regions) {
+            region.addChangeListener(changeListener);
+        }
+
+        invalidate();
+    }
+
+    @Override
+    public boolean hasRegion(String id) {
+        return index.hasRegion(id);
+    }
+
+    @Override
+    public ProtectedRegion getRegion(String id) {
+        return index.getRegion(id);
+    }
+
+    @Override
+    public ProtectedRegion getGlobalRegion() {
+        return index.getGlobalRegion();
+    }
+
+    @Override
+    public void removeRegion(String id) {
+        List<ProtectedRegion> targets = getTargets(Collections.singleton(id));
+        index.removeRegion(id);
+        detachRemoved(targets);
+        invalidate();
+    }
+
+    @Override
+    public void removeRegions(Collection<String> ids) {
+        List<ProtectedRegion> targets = getTargets(ids);
+        index.removeRegions(ids);
+        detachRemoved(targets);
+        invalidate();
+    }
+
+    /**
+     * Get the regions that removing regions by ID would remove, which are
+     * the regions themselves and their descendants.
+     * 
+     * @param ids ids of the regions, can be mixed-case
+     * @return regions that may be removed
+     */
+    private List<ProtectedRegion> getTargets(Collection<String> ids) {
+        List<ProtectedRegion> targets = new ArrayList<ProtectedRegion>();
+
+        for (String id : ids) {
+            ProtectedRegion region = index.getRegion(id);
+            if (region != null) {
+                targets.add(region);
+                targets.addAll(index.getDescendants(region));
+            }
+        }
+
+        return targets;
+    }
+
+    /**
+     * Stop listening to regions that are no longer in the index.
+     * 
+     * @param targets regions that a removal may have removed
+     */
+    private void detachRemoved(List<ProtectedRegion> targets) {
+        for (ProtectedRegion region : targets) {
+            if (index.getRegion(region.getId()) != region) {
+                region.removeChangeListener(changeListener);
+            }
+        }
+    }
+
+    /**
+     * Get an object for a point for rules to be applied with. Points whose
+     * coordinates all round to the block that they are in are answered from
+     * the cache; other points can fall into different regions depending on
+     * how a region rounds them, so they are passed on to the index.
+     * 
+     * @param pt
+     * @return
+     */
+    @Override
+    public ApplicableRegionSet getApplicableRegions(Vector pt) {
+        int x = pt.getBlockX();
+        int y = pt.getBlockY();
+        int z = pt.getBlockZ();
+
+        if (x != Math.floor(pt.getX()) || y != Math.floor(pt.getY())
+                || z != Math.floor(pt.getZ())
+                || x > MAX_HORIZONTAL || x < -MAX_HORIZONTAL
+                || z > MAX_HORIZONTAL || z < -MAX_HORIZONTAL
+                || y < 0 || y > MAX_VERTICAL) {
+            return index.getApplicableRegions(pt);
+        }
+
+        return getApplicableRegions(x, y, z);
+    }
+
+    /**
+     * Get an object for a block for rules to be applied with, from the
+     * cache where possible.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    @Override
+    public ApplicableRegionSet getApplicableRegions(int x, int y, int z) {
+        if (x > MAX_HORIZONTAL || x < -MAX_HORIZONTAL
+                || z > MAX_HORIZONTAL || z < -MAX_HORIZONTAL
+                || y < 0 || y > MAX_VERTICAL) {
+            return index.getApplicableRegions(x, y, z);
+        }
+
+        long key = ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | y;
+        long generation = this.generation;
+        ApplicableRegionSet set = cache.get(key, generation);
+
+        if (set == null) {
+            set = index.getApplicableRegions(x, y, z);
+            set.setShared();
+            cache.put(key, generation, set);
+        }
+
+        return set;
+    }
+
+    @Override
+    protected BitSet allows(StateFlag flag, List<? extends Vector> points,
+            boolean stopAtDenied) {
+        return index.allows(flag, points, stopAtDenied);
+    }
+
+    @Override
+    public ApplicableRegionSet getApplicableRegions(ProtectedRegion region) {
+        return index.getApplicableRegions(region);
+    }
+
+    @Override
+    public List<String> getApplicableRegionsIDs(Vector pt) {
+        return index.getApplicableRegionsIDs(pt);
+    }
+
+    @Override
+    public boolean overlapsUnownedRegion(ProtectedRegion region, LocalPlayer player) {
+        return index.overlapsUnownedRegion(region, player);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public int getRegionCountOfPlayer(LocalPlayer player) {
+        return index.getRegionCountOfPlayer(player);
+    }
+
+    @Override
+    public Set<String> getOwnedRegionIds(String name) {
+        return index.getOwnedRegionIds(name);
+    }
+
+    @Override
+    public Set<String> getMemberRegionIds(String name) {
+        return index.getMemberRegionIds(name);
+    }
+
+    @Override
+    public List<ProtectedRegion> getChildren(ProtectedRegion parent) {
+        return index.getChildren(parent);
+    }
+
+    @Override
+    public List<ProtectedRegion> getDescendants(ProtectedRegion parent) {
+        return index.getDescendants(parent);
+    }
+}
@@ -0,0 +1,714 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldguard.protection.managers;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldguard.LocalPlayer;
+import com.sk89q.worldguard.protection.ApplicableRegionSet;
+import com.sk89q.worldguard.protection.databases.ProtectionDatabase;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.protection.regions.RegionChangeListener;
+import com.sk89q.worldguard.util.LongHashMap;
+
+/**
+ * A region manager that buckets regions by the chunk columns that they
+ * overlap. Each bucket is kept sorted by priority, so a point query is one
+ * hash lookup followed by a short scan of the bucket, without sorting.
+ * Regions that cover a very large number of chunks are kept in a separate
+ * sorted list that is scanned alongside the bucket on every query.
+ */
+public class ChunkRegionManager extends RegionManager {
+
+    /**
+     * Regions covering more chunks than this are not bucketed.
+     */
+    private static final int MAX_BUCKETS_PER_REGION = 1024;
+    /**
+     * Number of chunks to keep compiled region sets for.
+     */
+    private static final int MAX_COMPILED_CHUNKS = 4096;
+
+    /**
+     * List of protected regions.
+     */
+    private RegionRegistry regions;
+    /**
+     * Sorted arrays of regions keyed by packed chunk coordinates. Arrays are
+     * replaced rather than modified.
+     */
+    private LongHashMap<ProtectedRegion[]> buckets;
+    /**
+     * Sorted array of regions that are too large to bucket.
+     */
+    private ProtectedRegion[] large;
+    /**
+     * Region sets for the combinations of regions seen at points within a
+     * chunk, keyed by packed chunk coordinates. Sharing the sets means that
+     * the state flags of each combination are only resolved once. Cleared
+     * whenever the buckets change.
+     */
+    private final LongHashMap<CompiledChunk> compiled = new LongHashMap<CompiledChunk>();
+    /**
+     * Re-sorts the buckets of a region when its priority changes.
+     */
+    private final RegionChangeListener changeListener = new RegionChangeListener() {
+        public void regionChanged(ProtectedRegion region, Change change) {
+            if (change == Change.PRIORITY && regions.get(region.getId()) == region) {
+                resort(region);
+            }
+        }
+    };
+
+    /**
+     * Construct the manager.
+     * 
+     * @param regionloader 
+     */
+    public ChunkRegionManager(ProtectionDatabase regionloader) {
+        super(regionloader);
+        regions = new RegionRegistry();
+        buckets = new LongHashMap<ProtectedRegion[]>();
+        large = SortedRegionArrays.EMPTY;
+    }
+
+    /**
+     * Get a list of protected regions.
+     *
+     * @return
+     */
+    @Override
+    public Map<String, ProtectedRegion> getRegions() {
+        return regions;
+    }
+
+    /**
+     * Set a list of protected regions.
+     */
+    @Override
+    public void setRegions(Map<String, ProtectedRegion> regions) {
+        for (ProtectedRegion region : this.regions.values()) {
+            region.removeChangeListener(changeListener);
+        }
+
+        this.regions = new RegionRegistry(regions);
+        ownership.clear();
+        hierarchy.clear();
+        ownership.addAll(this.regions.values());
+        hierarchy.addAll(this.regions.values());
+        buckets = new LongHashMap<ProtectedRegion[]>();
+        large = SortedRegionArrays.EMPTY;
+        clearCompiled();
+
+        for (ProtectedRegion region : this.regions.values()) {
+            index(region);
+        }
+    }
+
+    /**
+     * Adds a region.
+     * 
+     * @param region
+     */
+    @Override
+    public void addRegion(ProtectedRegion region) {
+        ProtectedRegion existing = regions.put(region.getId(), region);
+
+        if (existing != null) {
+            ownership.remove(existing);
+            hierarchy.remove(existing);
+            unindex(existing);
+        }
+
+        ownership.add(region);
+        hierarchy.add(region);
+        index(region);
+    }
+
+    /**
+     * Return whether a region exists by an ID.
+     * 
+     * @param id
+     * @return
+     */
+    @Override
+    public boolean hasRegion(String id) {
+        return regions.containsKey(id);
+    }
+
+    /**
+     * Get a region by its ID.
+     * 
+     * @param id
+     */
+    @Override
+    public ProtectedRegion getRegion(String id) {
+        return regions.get(id);
+    }
+
+    /**
+     * Get the global region.
+     * 
+     * @return
+     */
+    @Override
+    public ProtectedRegion getGlobalRegion() {
+        return regions.getGlobal();
+    }
+
+    /**
+     * Removes a region and its children.
+     * 
+     * @param id
+     */
+    @Override
+    public void removeRegion(String id) {
+        ProtectedRegion region = regions.remove(id);
+
+        if (region != null) {
+            ownership.remove(region);
+            hierarchy.remove(region);
+            unindex(region);
+
+            for (ProtectedRegion child : hierarchy.getChildren(region)) {
+                removeRegion(child.getId());
+            }
+        }
+    }
+
+    /**
+     * Get an object for a point for rules to be applied with.
+     * 
+     * @param pt
+     * @return
+     */
+    @Override
+    public ApplicableRegionSet getApplicableRegions(Vector pt) {
+        if (isBlockPoint(pt)) {
+            return getApplicableRegions(pt.getBlockX(), pt.getBlockY(), pt.getBlockZ());
+        }
+        return new ApplicableRegionSet(findContaining(pt), regions.getGlobal());
+    }
+
+    /**
+     * Get an object for a block for rules to be applied with.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    @Override
+    public ApplicableRegionSet getApplicableRegions(int x, int y, int z) {
+        ApplicableRegionSet set = getCompiledSet(x, y, z);
+        if (set != null) {
+            return set;
+        }
+        return new ApplicableRegionSet(findContaining(x, y, z), regions.getGlobal());
+    }
+
+    /**
+     * Get an object for a region for rules to be applied with.
+     * 
+     * @return
+     */
+    @Override
+    public ApplicableRegionSet getApplicableRegions(ProtectedRegion checkRegion) {
+        return new ApplicableRegionSet(getIntersectingRegions(checkRegion,
+                findOverlapping(checkRegion)), regions.getGlobal());
+    }
+
+    /**
+     * Get a list of region IDs that contain a point.
+     * 
+     * @param pt
+     * @return
+     */
+    @Override
+    public List<String> getApplicableRegionsIDs(Vector pt) {
+        List<String> applicable = new ArrayList<String>();
+
+        for (ProtectedRegion region : findContaining(pt)) {
+            applicable.add(region.getId());
+        }
+
+        return applicable;
+    }
+
+    /**
+     * Find the regions that contain a point, in priority order.
+     * 
+     * @param pt point
+     * @return list of regions
+     */
+    private List<ProtectedRegion> findContaining(Vector pt) {
+        if (isBlockPoint(pt)) {
+            return findContaining(pt.getBlockX(), pt.getBlockY(), pt.getBlockZ());
+        }
+
+        // Cuboids floor the coordinates while polygons round them, so at
+        // the edge of a chunk the point may fall into the next one as well
+        int x = (int) Math.floor(pt.getX());
+        int z = (int) Math.floor(pt.getZ());
+        int chunkX = x >> 4;
+        int chunkZ = z >> 4;
+        int otherChunkX = Math.max(x, pt.getBlockX()) >> 4;
+        int otherChunkZ = Math.max(z, pt.getBlockZ()) >> 4;
+
+        ProtectedRegion[] candidates = getBucket(chunkX, chunkZ);
+
+        if (otherChunkX != chunkX) {
+            candidates = SortedRegionArrays.merge(candidates, getBucket(otherChunkX, chunkZ));
+        }
+        if (otherChunkZ != chunkZ) {
+            candidates = SortedRegionArrays.merge(candidates, getBucket(chunkX, otherChunkZ));
+            if (otherChunkX != chunkX) {
+                candidates = SortedRegionArrays.merge(candidates, getBucket(otherChunkX, otherChunkZ));
+            }
+        }
+
+        List<ProtectedRegion> applicable = new ArrayList<ProtectedRegion>();
+        addContaining(candidates, large, pt, 0, 0, 0, applicable);
+        return applicable;
+    }
+
+    /**
+     * Find the regions that contain a block, in priority order.
+     * 
+     * @param x x coordinate of the block
+     * @param y y coordinate of the block
+     * @param z z coordinate of the block
+     * @return list of regions
+     */
+    private List<ProtectedRegion> findContaining(int x, int y, int z) {
+        List<ProtectedRegion> applicable = new ArrayList<ProtectedRegion>();
+        addContaining(getBucket(x >> 4, z >> 4), large, null, x, y, z, applicable);
+        return applicable;
+    }
+
+    /**
+     * Add the regions of two sorted arrays that contain a point to a list,
+     * in priority order. The arrays are walked side by side rather than
+     * merged, so that no array is allocated per query.
+     * 
+     * @param a sorted array of regions
+     * @param b sorted array of regions
+     * @param pt point, or null to test the block at the given coordinates
+     * @param x x coordinate of the block
+     * @param y y coordinate of the block
+     * @param z z coordinate of the block
+     * @param found list to add the regions to
+     */
+    private static void addContaining(ProtectedRegion[] a, ProtectedRegion[] b,
+            Vector pt, int x, int y, int z, List<ProtectedRegion> found) {
+        int i = 0;
+        int j = 0;
+
+        while (i < a.length || j < b.length) {
+            ProtectedRegion region;
+
+            if (j == b.length) {
+                region = a[i++];
+            } else if (i == a.length) {
+                region = b[j++];
+            } else {
+                int cmp = a[i].compareTo(b[j]);
+                if (cmp < 0) {
+                    region = a[i++];
+                } else if (cmp > 0) {
+                    region = b[j++];
+                } else {
+                    region = a[i++];
+                    j++;
+                }
+            }
+
+            if (pt != null ? region.contains(pt) : region.contains(x, y, z)) {
+                found.add(region);
+            }
+        }
+    }
+
+    /**
+     * Check a state flag at many points at once. Consecutive block points
+     * in the same chunk share one lookup of the compiled chunk: the
+     * candidate regions that contain a point are recorded as a bit mask,
+     * and the flag is resolved once per distinct mask within the run.
+     * Other points, and chunks with more than 64 candidate regions, are
+     * checked one by one.
+     * 
+     * @param flag flag to check, not the build flag
+     * @param points points to check
+     * @param stopAtDenied whether to stop at the first point where the flag
+     *            is denied, leaving the bits of the remaining points clear
+     * @return bit set with bit <code>i</code> set if the flag is allowed at
+     *         the <code>i</code>th point
+     */
+    @Override
+    protected BitSet allows(StateFlag flag, List<? extends Vector> points,
+            boolean stopAtDenied) {
+        BitSet result = new BitSet(points.size());
+        LongHashMap<Boolean> resolved = new LongHashMap<Boolean>();
+        CompiledChunk chunk = null;
+        long lastKey = 0;
+
+        for (int i = 0; i < points.size(); i++) {
+            Vector pt = points.get(i);
+            boolean allowed;
+
+            if (isBlockPoint(pt)) {
+                int x = pt.getBlockX();
+                int y = pt.getBlockY();
+                int z = pt.getBlockZ();
+                long key = toKey(x >> 4, z >> 4);
+
+                if (chunk == null || key != lastKey) {
+                    chunk = getCompiledChunk(x >> 4, z >> 4);
+                    lastKey = key;
+                    resolved.clear();
+                }
+
+                if (chunk.candidates.length > 64) {
+                    allowed = getApplicableRegions(x, y, z).allows(flag);
+                } else {
+                    long mask = getMask(chunk.candidates, x, y, z);
+                    Boolean cached = resolved.get(mask);
+                    if (cached == null) {
+                        cached = getCompiledSet(chunk, mask).allows(flag);
+                        resolved.put(mask, cached);
+                    }
+                    allowed = cached;
+                }
+            } else {
+                allowed = getApplicableRegions(pt).allows(flag);
+            }
+
+            if (allowed) {
+                result.set(i);
+            } else if (stopAtDenied) {
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the shared region set for a block from the compiled sets of its
+     * chunk.
+     * 
+     * @param x x coordinate of the block
+     * @param y y coordinate of the block
+     * @param z z coordinate of the block
+     * @return region set, or null if the chunk has too many regions
+     */
+    private ApplicableRegionSet getCompiledSet(int x, int y, int z) {
+        CompiledChunk chunk = getCompiledChunk(x >> 4, z >> 4);
+        if (chunk.candidates.length > 64) {
+            return null;
+        }
+        return getCompiledSet(chunk, getMask(chunk.candidates, x, y, z));
+    }
+
+    /**
+     * Get the compiled chunk at a chunk position, compiling it if needed.
+     * 
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @return compiled chunk
+     */
+    private CompiledChunk getCompiledChunk(int chunkX, int chunkZ) {
+        long key = toKey(chunkX, chunkZ);
+
+        synchronized (compiled) {
+            CompiledChunk chunk = compiled.get(key);
+            if (chunk == null) {
+                ProtectedRegion[] candidates = SortedRegionArrays.merge(getBucket(chunkX, chunkZ), large);
+                if (compiled.size() >= MAX_COMPILED_CHUNKS) {
+                    compiled.clear();
+                }
+                chunk = new CompiledChunk(candidates);
+                compiled.put(key, chunk);
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Get the bit mask of the candidate regions that contain a block.
+     * 
+     * @param candidates at most 64 regions
+     * @param x x coordinate of the block
+     * @param y y coordinate of the block
+     * @param z z coordinate of the block
+     * @return mask with bit <code>j</code> set if the <code>j</code>th
+     *         region contains the block
+     */
+    private static long getMask(ProtectedRegion[] candidates, int x, int y, int z) {
+        long mask = 0;
+        for (int j = 0; j < candidates.length; j++) {
+            if (candidates[j].contains(x, y, z)) {
+                mask |= 1L << j;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Get the shared region set for a combination of the candidate regions
+     * of a compiled chunk.
+     * 
+     * @param chunk compiled chunk
+     * @param mask bit mask of the candidate regions
+     * @return region set
+     */
+    private ApplicableRegionSet getCompiledSet(CompiledChunk chunk, long mask) {
+        ProtectedRegion[] candidates = chunk.candidates;
+
+        synchronized (compiled) {
+            ApplicableRegionSet set = chunk.sets.get(mask);
+            if (set == null) {
+                List<ProtectedRegion> applicable = new ArrayList<ProtectedRegion>();
+                for (int j = 0; j < candidates.length; j++) {
+                    if ((mask & (1L << j)) != 0) {
+                        applicable.add(candidates[j]);
+                    }
+                }
+                set = new ApplicableRegionSet(applicable, regions.getGlobal());
+                set.setShared();
+                chunk.sets.put(mask, set);
+            }
+            return set;
+        }
+    }
+
+    /**
+     * Forget all compiled region sets.
+     */
+    private void clearCompiled() {
+        synchronized (compiled) {
+            compiled.clear();
+        }
+    }
+
+    private ProtectedRegion[] getBucket(int chunkX, int chunkZ) {
+        ProtectedRegion[] bucket = buckets.get(toKey(chunkX, chunkZ));
+        return bucket != null ? bucket : SortedRegionArrays.EMPTY;
+    }
+
+    /**
+     * Add a region to the buckets of the chunks that it overlaps.
+     * 
+     * @param region
+     */
+    private void index(ProtectedRegion region) {
+        region.addChangeListener(changeListener);
+        clearCompiled();
+
+        if (isLarge(region)) {
+            large = SortedRegionArrays.insert(large, region);
+            return;
+        }
+
+        BlockVector min = region.getMinimumPoint();
+        BlockVector max = region.getMaximumPoint();
+
+        for (int cx = min.getBlockX() >> 4; cx <= max.getBlockX() >> 4; cx++) {
+            for (int cz = min.getBlockZ() >> 4; cz <= max.getBlockZ() >> 4; cz++) {
+                long key = toKey(cx, cz);
+                ProtectedRegion[] bucket = buckets.get(key);
+                if (bucket == null) {
+                    bucket = SortedRegionArrays.EMPTY;
+                }
+                buckets.put(key, SortedRegionArrays.insert(bucket, region));
+            }
+        }
+    }
+
+    /**
+     * Remove a region from the buckets of the chunks that it overlaps.
+     * 
+     * @param region
+     */
+    private void unindex(ProtectedRegion region) {
+        region.removeChangeListener(changeListener);
+        clearCompiled();
+
+        if (isLarge(region)) {
+            large = SortedRegionArrays.remove(large, region);
+            return;
+        }
+
+        BlockVector min = region.getMinimumPoint();
+        BlockVector max = region.getMaximumPoint();
+
+        for (int cx = min.getBlockX() >> 4; cx <= max.getBlockX() >> 4; cx++) {
+            for (int cz = min.getBlockZ() >> 4; cz <= max.getBlockZ() >> 4; cz++) {
+                long key = toKey(cx, cz);
+                ProtectedRegion[] bucket = buckets.get(key);
+                if (bucket == null) {
+                    continue;
+                }
+
+                bucket = SortedRegionArrays.remove(bucket, region);
+                if (bucket.length == 0) {
+                    buckets.remove(key);
+                } else {
+                    buckets.put(key, bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sort the buckets containing a region again after its priority
+     * has changed.
+     * 
+     * @param region
+     */
+    private void resort(ProtectedRegion region) {
+        clearCompiled();
+
+        if (isLarge(region)) {
+            large = SortedRegionArrays.sorted(large);
+            return;
+        }
+
+        BlockVector min = region.getMinimumPoint();
+        BlockVector max = region.getMaximumPoint();
+
+        for (int cx = min.getBlockX() >> 4; cx <= max.getBlockX() >> 4; cx++) {
+            for (int cz = min.getBlockZ() >> 4; cz <= max.getBlockZ() >> 4; cz++) {
+                long key = toKey(cx, cz);
+                ProtectedRegion[] bucket = buckets.get(key);
+                if (bucket != null) {
+                    buckets.put(key, SortedRegionArrays.sorted(bucket));
+                }
+            }
+        }
+    }
+
+    /**
+     * The candidate regions of a chunk and the region sets compiled for
+     * the combinations of them, keyed by bit mask over the candidates.
+     */
+    private static class CompiledChunk {
+        final ProtectedRegion[] candidates;
+        final LongHashMap<ApplicableRegionSet> sets = new LongHashMap<ApplicableRegionSet>();
+
+        CompiledChunk(ProtectedRegion[] candidates) {
+            this.candidates = candidates;
+        }
+    }
+
+    private static boolean isLarge(ProtectedRegion region) {
+        BlockVector min = region.getMinimumPoint();
+        BlockVector max = region.getMaximumPoint();
+        long width = (max.getBlockX() >> 4) - (min.getBlockX() >> 4) + 1;
+        long length = (max.getBlockZ() >> 4) - (min.getBlockZ() >> 4) + 1;
+        return width * length > MAX_BUCKETS_PER_REGION;
+    }
+
+    private static long toKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Find the regions whose bounding boxes overlap a region, in order
+     * of priority. Areas covering more chunks than there are regions are
+     * cheaper to check against every region than bucket by bucket.
+     * 
+     * @param checkRegion
+     * @return list of regions
+     */
+    @Override
+    protected List<ProtectedRegion> findOverlapping(ProtectedRegion checkRegion) {
+        List<ProtectedRegion> overlapping = new ArrayList<ProtectedRegion>();
+        BlockVector min = checkRegion.getMinimumPoint();
+        BlockVector max = checkRegion.getMaximumPoint();
+        int minChunkX = min.getBlockX() >> 4;
+        int minChunkZ = min.getBlockZ() >> 4;
+        int maxChunkX = max.getBlockX() >> 4;
+        int maxChunkZ = max.getBlockZ() >> 4;
+        long chunks = ((long) maxChunkX - minChunkX + 1) * ((long) maxChunkZ - minChunkZ + 1);
+
+        if (chunks > regions.size()) {
+            for (ProtectedRegion region : regions.values()) {
+                if (boundsOverlap(checkRegion, region)) {
+                    overlapping.add(region);
+                }
+            }
+        } else {
+            Set<ProtectedRegion> seen = Collections.newSetFromMap(
+                    new IdentityHashMap<ProtectedRegion, Boolean>());
+
+            for (int cx = minChunkX; cx <= maxChunkX; cx++) {
+                for (int cz = minChunkZ; cz <= maxChunkZ; cz++) {
+                    for (ProtectedRegion region : getBucket(cx, cz)) {
+                        if (seen.add(region) && boundsOverlap(checkRegion, region)) {
+                            overlapping.add(region);
+                        }
+                    }
+                }
+            }
+
+            for (ProtectedRegion region : large) {
+                if (boundsOverlap(checkRegion, region)) {
+                    overlapping.add(region);
+                }
+            }
+        }
+
+        Collections.sort(overlapping);
+        return overlapping;
+    }
+
+    /**
+     * Returns true if the provided region overlaps with any other region that
+     * is not owned by the player.
+     * 
+     * @param player
+     * @return
+     */
+    @Override
+    public boolean overlapsUnownedRegion(ProtectedRegion checkRegion, LocalPlayer player) {
+        List<ProtectedRegion> candidates = removeOwnedBy(findOverlapping(checkRegion), player);
+        return getIntersectingRegions(checkRegion, candidates).size() > 0;
+    }
+
+    /**
+     * Get the number of regions.
+     * 
+     * @return
+     */
+    @Override
+    public int size() {
+        return regions.size();
+    }
+}
@@ -19,18 +19,15 @@
 package com.sk89q.worldguard.protection.managers;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldguard.LocalPlayer;
 import com.sk89q.worldguard.protection.ApplicableRegionSet;
-import com.sk89q.worldguard.protection.UnsupportedIntersectionException;
 import com.sk89q.worldguard.protection.databases.ProtectionDatabase;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.protection.regions.RegionChangeListener;
 
 /**
  * A very simple implementation of the region manager that uses a flat list
@@ -44,7 +41,24 @@ public class FlatRegionManager extends RegionManager {
     /**
      * List of protected regions.
      */
-    private Map<String, ProtectedRegion> regions;
+    private RegionRegistry regions;
+
+    /**
+     * Regions in order of priority. The array is replaced rather than
+     * modified.
+     */
+    private ProtectedRegion[] sortedRegions = SortedRegionArrays.EMPTY;
+
+    /**
+     * Re-sorts the regions when the priority of one changes.
+     */
+    private final RegionChangeListener changeListener = new RegionChangeListener() {
+        public void regionChanged(ProtectedRegion region, Change change) {
+            if (change == Change.PRIORITY && regions.get(region.getId()) == region) {
+                sortedRegions = SortedRegionArrays.sorted(sortedRegions);
+            }
+        }
+    };
 
     /**
      * Construct the manager.
@@ -53,7 +67,7 @@ public class FlatRegionManager extends RegionManager {
      */
     public FlatRegionManager(ProtectionDatabase regionloader) {
         super(regionloader);
-        regions = new TreeMap<String, ProtectedRegion>();
+        regions = new RegionRegistry();
     }
 
     /**
@@ -71,7 +85,22 @@ public class FlatRegionManager extends RegionManager {
      */
     @Override
     public void setRegions(Map<String, ProtectedRegion> regions) {
-        this.regions = new TreeMap<String, ProtectedRegion>(regions);
+        for (ProtectedRegion region : sortedRegions) {
+            region.removeChangeListener(changeListener);
+        }
+
+        this.regions = new RegionRegistry(regions);
+        ownership.clear();
+        hierarchy.clear();
+        ownership.addAll(this.regions.values());
+        hierarchy.addAll(this.regions.values());
+
+        for (ProtectedRegion region : this.regions.values()) {
+            region.addChangeListener(changeListener);
+        }
+
+        sortedRegions = SortedRegionArrays.sorted(
+                this.regions.values().toArray(SortedRegionArrays.EMPTY));
     }
 
     /**
@@ -81,7 +110,19 @@ public class FlatRegionManager extends RegionManager {
      */
     @Override
     public void addRegion(ProtectedRegion region) {
-        regions.put(region.getId().toLowerCase(), region);
+        ProtectedRegion existing = regions.put(region.getId(), region);
+
+        if (existing != null) {
+            existing.removeChangeListener(changeListener);
+            ownership.remove(existing);
+            hierarchy.remove(existing);
+            sortedRegions = SortedRegionArrays.remove(sortedRegions, existing);
+        }
+
+        region.addChangeListener(changeListener);
+        ownership.add(region);
+        hierarchy.add(region);
+        sortedRegions = SortedRegionArrays.insert(sortedRegions, region);
     }
 
     /**
@@ -91,21 +132,17 @@ public class FlatRegionManager extends RegionManager {
      */
     @Override
     public void removeRegion(String id) {
-        ProtectedRegion region = regions.get(id.toLowerCase());
-        regions.remove(id.toLowerCase());
+        ProtectedRegion region = regions.get(id);
+        regions.remove(id);
 
         if (region != null) {
-            List<String> removeRegions = new ArrayList<String>();
-            Iterator<ProtectedRegion> iter = regions.values().iterator();
-            while (iter.hasNext()) {
-                ProtectedRegion curRegion = iter.next();
-                if (curRegion.getParent() == region) {
-                    removeRegions.add(curRegion.getId().toLowerCase());
-                }
-            }
+            region.removeChangeListener(changeListener);
+            ownership.remove(region);
+            hierarchy.remove(region);
+            sortedRegions = SortedRegionArrays.remove(sortedRegions, region);
 
-            for (String remId : removeRegions) {
-                removeRegion(remId);
+            for (ProtectedRegion child : hierarchy.getChildren(region)) {
+                removeRegion(child.getId());
             }
         }
     }
@@ -118,7 +155,7 @@ public class FlatRegionManager extends RegionManager {
      */
     @Override
     public boolean hasRegion(String id) {
-        return regions.containsKey(id.toLowerCase());
+        return regions.containsKey(id);
     }
 
     /**
@@ -128,37 +165,62 @@ public class FlatRegionManager extends RegionManager {
      */
     @Override
     public ProtectedRegion getRegion(String id) {
-        return regions.get(id.toLowerCase());
+        return regions.get(id);
+    }
+
+    /**
+     * Get the global region.
+     * 
+     * @return
+     */
+    @Override
+    public ProtectedRegion getGlobalRegion() {
+        return regions.getGlobal();
     }
 
     /**
-     * Get an object for a point for rules to be applied with.
+     * Get an object for a point for rules to be applied with. The regions
+     * are kept in order of priority, so the result needs no sorting.
      * 
      * @param pt
      * @return
      */
     @Override
     public ApplicableRegionSet getApplicableRegions(Vector pt) {
-        TreeSet<ProtectedRegion> appRegions =
-                new TreeSet<ProtectedRegion>();
+        if (isBlockPoint(pt)) {
+            return getApplicableRegions(pt.getBlockX(), pt.getBlockY(), pt.getBlockZ());
+        }
+
+        List<ProtectedRegion> appRegions = new ArrayList<ProtectedRegion>();
 
-        for (ProtectedRegion region : regions.values()) {
+        for (ProtectedRegion region : sortedRegions) {
             if (region.contains(pt)) {
                 appRegions.add(region);
-                
-                ProtectedRegion parent = region.getParent();
-                
-                while (parent != null) {
-                    if (!appRegions.contains(parent)) {
-                        appRegions.add(region);
-                    }
-                    
-                    parent = parent.getParent();
-                }       
             }
         }
 
-        return new ApplicableRegionSet(appRegions, regions.get("__global__"));
+        return new ApplicableRegionSet(appRegions, regions.getGlobal());
+    }
+
+    /**
+     * Get an object for a block for rules to be applied with.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    @Override
+    public ApplicableRegionSet getApplicableRegions(int x, int y, int z) {
+        List<ProtectedRegion> appRegions = new ArrayList<ProtectedRegion>();
+
+        for (ProtectedRegion region : sortedRegions) {
+            if (region.contains(x, y, z)) {
+                appRegions.add(region);
+            }
+        }
+
+        return new ApplicableRegionSet(appRegions, regions.getGlobal());
     }
 
     /**
@@ -179,7 +241,7 @@ public class FlatRegionManager extends RegionManager {
             intersectRegions = new ArrayList<ProtectedRegion>();
         }
 
-        return new ApplicableRegionSet(intersectRegions, regions.get("__global__"));
+        return new ApplicableRegionSet(intersectRegions, regions.getGlobal());
     }*/
 
     /**
@@ -191,9 +253,14 @@ public class FlatRegionManager extends RegionManager {
     @Override
     public List<String> getApplicableRegionsIDs(Vector pt) {
         List<String> applicable = new ArrayList<String>();
+        boolean block = isBlockPoint(pt);
+        int x = pt.getBlockX();
+        int y = pt.getBlockY();
+        int z = pt.getBlockZ();
 
         for (Map.Entry<String, ProtectedRegion> entry : regions.entrySet()) {
-            if (entry.getValue().contains(pt)) {
+            ProtectedRegion region = entry.getValue();
+            if (block ? region.contains(x, y, z) : region.contains(pt)) {
                 applicable.add(entry.getKey());
             }
         }
@@ -208,19 +275,28 @@ public class FlatRegionManager extends RegionManager {
      */
     @Override
     public ApplicableRegionSet getApplicableRegions(ProtectedRegion checkRegion) {
+        return new ApplicableRegionSet(getIntersectingRegions(checkRegion,
+                findOverlapping(checkRegion)), regions.getGlobal());
+    }
 
-        List<ProtectedRegion> appRegions = new ArrayList<ProtectedRegion>();
-        appRegions.addAll(regions.values());
+    /**
+     * Find the regions whose bounding boxes overlap a region, in order
+     * of priority.
+     * 
+     * @param checkRegion
+     * @return list of regions
+     */
+    @Override
+    protected List<ProtectedRegion> findOverlapping(ProtectedRegion checkRegion) {
+        List<ProtectedRegion> overlapping = new ArrayList<ProtectedRegion>();
 
-        List<ProtectedRegion> intersectRegions;
-        
-        try {
-            intersectRegions = checkRegion.getIntersectingRegions(appRegions);
-        } catch (Exception e) {
-            intersectRegions = new ArrayList<ProtectedRegion>();
+        for (ProtectedRegion region : sortedRegions) {
+            if (boundsOverlap(checkRegion, region)) {
+                overlapping.add(region);
+            }
         }
 
-        return new ApplicableRegionSet(intersectRegions, regions.get("__global__"));
+        return overlapping;
     }
 
     /**
@@ -232,24 +308,8 @@ public class FlatRegionManager extends RegionManager {
      */
     @Override
     public boolean overlapsUnownedRegion(ProtectedRegion checkRegion, LocalPlayer player) {
-        List<ProtectedRegion> appRegions = new ArrayList<ProtectedRegion>();
-
-        for (ProtectedRegion other : regions.values()) {
-            if (other.getOwners().contains(player)) {
-                continue;
-            }
-
-            appRegions.add(other);
-        }
-
-        List<ProtectedRegion> intersectRegions;
-        try {
-            intersectRegions = checkRegion.getIntersectingRegions(appRegions);
-        } catch (UnsupportedIntersectionException e) {
-            intersectRegions = new ArrayList<ProtectedRegion>();
-        }
-
-        return intersectRegions.size() > 0;
+        List<ProtectedRegion> candidates = removeOwnedBy(findOverlapping(checkRegion), player);
+        return getIntersectingRegions(checkRegion, candidates).size() > 0;
     }
 
     /**
@@ -261,17 +321,4 @@ public class FlatRegionManager extends RegionManager {
     public int size() {
         return regions.size();
     }
-
-    @Override
-    public int getRegionCountOfPlayer(LocalPlayer player) {
-        int count = 0;
-
-        for (ProtectedRegion region : regions.values()) {
-            if (region.getOwners().contains(player)) {
-                count++;
-            }
-        }
-
-        return count;
-    }
 }
@@ -0,0 +1,132 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection.managers;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sk89q.worldguard.protection.databases.ProtectionDatabase;
+import com.sk89q.worldguard.protection.flags.DefaultFlag;
+import com.sk89q.worldguard.protection.flags.Flag;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+/**
+ * Stands in for the region manager of a world whose regions are still
+ * loading, so that protection fails closed. Its global region denies every
+ * flag that is allowed by default, except for moving in and out of regions.
+ * Regions can't be added, removed, loaded or saved.
+ */
+public class LoadingRegionManager extends FlatRegionManager {
+
+    private final String world;
+    private boolean ready;
+
+    /**
+     * Construct the manager.
+     * 
+     * @param world name of the world that is loading
+     */
+    public LoadingRegionManager(String world) {
+        super(new LoadingDatabase(world));
+        this.world = world;
+
+        GlobalProtectedRegion global = new GlobalProtectedRegion("__global__");
+        for (Flag<?> flag : DefaultFlag.getFlags()) {
+            if (flag instanceof StateFlag && ((StateFlag) flag).getDefault()
+                    && flag != DefaultFlag.ENTRY && flag != DefaultFlag.EXIT) {
+                global.setFlag((StateFlag) flag, StateFlag.State.DENY);
+            }
+        }
+
+        Map<String, ProtectedRegion> regions = new HashMap<String, ProtectedRegion>();
+        regions.put(global.getId(), global);
+        super.setRegions(regions);
+        ready = true;
+    }
+
+    /**
+     * Get the name of the world that is loading.
+     * 
+     * @return world name
+     */
+    public String getWorld() {
+        return world;
+    }
+
+    @Override
+    public void setRegions(Map<String, ProtectedRegion> regions) {
+        if (ready) {
+            throw new IllegalStateException(getLoadingMessage(world));
+        }
+        super.setRegions(regions);
+    }
+
+    @Override
+    public void addRegion(ProtectedRegion region) {
+        throw new IllegalStateException(getLoadingMessage(world));
+    }
+
+    @Override
+    public void removeRegion(String id) {
+        throw new IllegalStateException(getLoadingMessage(world));
+    }
+
+    private static String getLoadingMessage(String world) {
+        return "The regions of world '" + world + "' are still loading";
+    }
+
+    /**
+     * Refuses to load or save anything.
+     */
+    private static class LoadingDatabase implements ProtectionDatabase {
+        private final String world;
+
+        LoadingDatabase(String world) {
+            this.world = world;
+        }
+
+        public void load() throws IOException {
+            throw new IOException(getLoadingMessage(world));
+        }
+
+        public void save() throws IOException {
+            throw new IOException(getLoadingMessage(world));
+        }
+
+        public void load(RegionManager manager) throws IOException {
+            throw new IOException(getLoadingMessage(world));
+        }
+
+        public void save(RegionManager manager) throws IOException {
+            throw new IOException(getLoadingMessage(world));
+        }
+
+        public Map<String, ProtectedRegion> getRegions() {
+            return new HashMap<String, ProtectedRegion>();
+        }
+
+        public void setRegions(Map<String, ProtectedRegion> regions) {
+            throw new IllegalStateException(getLoadingMessage(world));
+        }
+    }
+}
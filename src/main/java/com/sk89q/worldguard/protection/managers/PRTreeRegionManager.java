@@ -20,15 +20,25 @@ package com.sk89q.worldguard.protection.managers;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.khelekore.prtree.MBRConverter;
 import org.khelekore.prtree.PRTree;
 
+import com.sk89q.worldedit.BlockVector;
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldguard.LocalPlayer;
 import com.sk89q.worldguard.protection.ApplicableRegionSet;
@@ -36,13 +46,37 @@ import com.sk89q.worldguard.protection.databases.ProtectionDatabase;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
 import com.sk89q.worldguard.protection.regions.ProtectedRegionMBRConverter;
 
+/**
+ * A region manager that uses a bulk-loaded priority R-tree. Because the
+ * tree cannot be changed once loaded, regions that are added or removed
+ * afterwards are kept in a small delta buffer that is checked alongside the
+ * tree. Once the buffer grows too large, a new tree is built in the
+ * background and swapped in when it is ready.
+ */
 public class PRTreeRegionManager extends RegionManager {
 
+    private static final Logger logger = Logger.getLogger("Minecraft.WorldGuard");
+
     private static final int BRANCH_FACTOR = 30;
+    /**
+     * Number of buffered changes after which the tree is rebuilt.
+     */
+    private static final int MAX_PENDING_CHANGES = 128;
+    /**
+     * Builds trees in the background.
+     */
+    private static final ExecutorService rebuildExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "WorldGuard region index builder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
     /**
      * List of protected regions.
      */
-    private Map<String, ProtectedRegion> regions;
+    private RegionRegistry regions;
     /**
      * Converter to get coordinates of the tree.
      */
@@ -51,6 +85,22 @@ public class PRTreeRegionManager extends RegionManager {
      * Priority R-tree.
      */
     private PRTree<ProtectedRegion> tree;
+    /**
+     * Regions that are not in the tree but have been added since it was built.
+     */
+    private Set<ProtectedRegion> added = createIdentitySet();
+    /**
+     * Regions that are in the tree but have been removed since it was built.
+     */
+    private Set<ProtectedRegion> removed = createIdentitySet();
+    /**
+     * Tree being built in the background, or null.
+     */
+    private Future<PRTree<ProtectedRegion>> rebuild;
+    /**
+     * Changes made since the regions for the background rebuild were copied.
+     */
+    private List<PendingChange> changesSinceRebuild = new ArrayList<PendingChange>();
 
     /**
      * Construct the manager.
@@ -60,7 +110,7 @@ public class PRTreeRegionManager extends RegionManager {
      */
     public PRTreeRegionManager(ProtectionDatabase regionloader) throws IOException {
         super(regionloader);
-        regions = new TreeMap<String, ProtectedRegion>();
+        regions = new RegionRegistry();
         tree = new PRTree<ProtectedRegion>(converter, BRANCH_FACTOR);
         this.load();
     }
@@ -80,9 +130,12 @@ public class PRTreeRegionManager extends RegionManager {
      */
     @Override
     public void setRegions(Map<String, ProtectedRegion> regions) {
-        this.regions = new TreeMap<String, ProtectedRegion>(regions);
-        tree = new PRTree<ProtectedRegion>(converter, BRANCH_FACTOR);
-        tree.load(regions.values());
+        this.regions = new RegionRegistry(regions);
+        ownership.clear();
+        hierarchy.clear();
+        ownership.addAll(this.regions.values());
+        hierarchy.addAll(this.regions.values());
+        rebuildNow();
     }
 
     /**
@@ -92,9 +145,31 @@ public class PRTreeRegionManager extends RegionManager {
      */
     @Override
     public void addRegion(ProtectedRegion region) {
-        regions.put(region.getId().toLowerCase(), region);
-        tree = new PRTree<ProtectedRegion>(converter, BRANCH_FACTOR);
-        tree.load(regions.values());
+        applyRebuild();
+        putRegion(region);
+        checkPendingChanges();
+    }
+
+    /**
+     * Adds several regions and rebuilds the tree once.
+     * 
+     * @param regions
+     */
+    @Override
+    public void addRegions(Collection<ProtectedRegion> regions) {
+        for (ProtectedRegion region : regions) {
+            ProtectedRegion existing = this.regions.put(region.getId(), region);
+
+            if (existing != null) {
+                ownership.remove(existing);
+                hierarchy.remove(existing);
+            }
+
+            ownership.add(region);
+            hierarchy.add(region);
+        }
+
+        rebuildNow();
     }
 
     /**
@@ -105,7 +180,7 @@ public class PRTreeRegionManager extends RegionManager {
      */
     @Override
     public boolean hasRegion(String id) {
-        return regions.containsKey(id.toLowerCase());
+        return regions.containsKey(id);
     }
 
     /**
@@ -115,7 +190,17 @@ public class PRTreeRegionManager extends RegionManager {
      */
     @Override
     public ProtectedRegion getRegion(String id) {
-        return regions.get(id.toLowerCase());
+        return regions.get(id);
+    }
+
+    /**
+     * Get the global region.
+     * 
+     * @return
+     */
+    @Override
+    public ProtectedRegion getGlobalRegion() {
+        return regions.getGlobal();
     }
 
     /**
@@ -125,27 +210,65 @@ public class PRTreeRegionManager extends RegionManager {
      */
     @Override
     public void removeRegion(String id) {
-        ProtectedRegion region = regions.get(id.toLowerCase());
+        applyRebuild();
+
+        for (ProtectedRegion region : removeWithChildren(id)) {
+            bufferRemoval(region);
+        }
 
-        regions.remove(id.toLowerCase());
+        checkPendingChanges();
+    }
 
-        if (region != null) {
-            List<String> removeRegions = new ArrayList<String>();
-            Iterator<ProtectedRegion> iter = regions.values().iterator();
-            while (iter.hasNext()) {
-                ProtectedRegion curRegion = iter.next();
-                if (curRegion.getParent() == region) {
-                    removeRegions.add(curRegion.getId().toLowerCase());
-                }
+    /**
+     * Removes several regions, including their children, and rebuilds
+     * the tree once.
+     * 
+     * @param ids
+     */
+    @Override
+    public void removeRegions(Collection<String> ids) {
+        boolean changed = false;
+
+        for (String id : ids) {
+            if (!removeWithChildren(id).isEmpty()) {
+                changed = true;
             }
+        }
+
+        if (changed) {
+            rebuildNow();
+        }
+    }
+
+    /**
+     * Remove a region and its children from the map of regions.
+     * 
+     * @param id
+     * @return the removed regions
+     */
+    private List<ProtectedRegion> removeWithChildren(String id) {
+        List<ProtectedRegion> removedRegions = new ArrayList<ProtectedRegion>();
+        ProtectedRegion region = regions.remove(id);
+
+        if (region == null) {
+            return removedRegions;
+        }
+
+        removedRegions.add(region);
 
-            for (String remId : removeRegions) {
-                removeRegion(remId);
+        for (int i = 0; i < removedRegions.size(); i++) {
+            for (ProtectedRegion child : hierarchy.getChildren(removedRegions.get(i))) {
+                regions.remove(child.getId());
+                removedRegions.add(child);
             }
         }
 
-    tree = new PRTree<ProtectedRegion>(converter, BRANCH_FACTOR);
-        tree.load(regions.values());
+        for (ProtectedRegion removedRegion : removedRegions) {
+            ownership.remove(removedRegion);
+            hierarchy.remove(removedRegion);
+        }
+
+        return removedRegions;
     }
 
     /**
@@ -156,36 +279,26 @@ public class PRTreeRegionManager extends RegionManager {
      */
     @Override
     public ApplicableRegionSet getApplicableRegions(Vector pt) {
-        List<ProtectedRegion> appRegions =
-                new ArrayList<ProtectedRegion>();
-
-        int x = pt.getBlockX();
-        int z = pt.getBlockZ();
-
-        for (ProtectedRegion region : tree.find(x, z, x, z)) {
-            if (region.contains(pt)) {
-                appRegions.add(region);
-            }
-        }
-        
-        Collections.sort(appRegions);
+        return new ApplicableRegionSet(findContaining(pt), regions.getGlobal());
+    }
 
-        return new ApplicableRegionSet(appRegions, regions.get("__global__"));
+    /**
+     * Get an object for a block for rules to be applied with.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    @Override
+    public ApplicableRegionSet getApplicableRegions(int x, int y, int z) {
+        return new ApplicableRegionSet(findContaining(x, y, z), regions.getGlobal());
     }
 
     @Override
     public ApplicableRegionSet getApplicableRegions(ProtectedRegion checkRegion) {
-        List<ProtectedRegion> appRegions = new ArrayList<ProtectedRegion>();
-        appRegions.addAll(regions.values());
-
-        List<ProtectedRegion> intersectRegions;
-        try {
-            intersectRegions = checkRegion.getIntersectingRegions(appRegions);
-        } catch (Exception e) {
-            intersectRegions = new ArrayList<ProtectedRegion>();
-        }
-
-        return new ApplicableRegionSet(intersectRegions, regions.get("__global__"));
+        return new ApplicableRegionSet(getIntersectingRegions(checkRegion,
+                findOverlapping(checkRegion)), regions.getGlobal());
     }
 
     /**
@@ -198,12 +311,44 @@ public class PRTreeRegionManager extends RegionManager {
     public List<String> getApplicableRegionsIDs(Vector pt) {
         List<String> applicable = new ArrayList<String>();
 
-        int x = pt.getBlockX();
-        int z = pt.getBlockZ();
+        for (ProtectedRegion region : findContaining(pt)) {
+            applicable.add(region.getId());
+        }
 
-        for (ProtectedRegion region : tree.find(x, z, x, z)) {
+        return applicable;
+    }
+
+    /**
+     * Find the regions that contain a point, in order of priority, checking
+     * both the tree and the buffered changes.
+     * 
+     * @param pt
+     * @return list of regions
+     */
+    private List<ProtectedRegion> findContaining(Vector pt) {
+        if (isBlockPoint(pt)) {
+            return findContaining(pt.getBlockX(), pt.getBlockY(), pt.getBlockZ());
+        }
+
+        applyRebuild();
+
+        List<ProtectedRegion> applicable = new ArrayList<ProtectedRegion>();
+
+        // Cuboids floor the coordinates while polygons round them, so
+        // look at both columns that the point could fall into
+        int x = (int) Math.floor(pt.getX());
+        int z = (int) Math.floor(pt.getZ());
+
+        for (ProtectedRegion region : tree.find(x, z,
+                Math.max(x, pt.getBlockX()), Math.max(z, pt.getBlockZ()))) {
+            if (!removed.contains(region) && region.contains(pt)) {
+                SortedRegionArrays.addInOrder(applicable, region);
+            }
+        }
+
+        for (ProtectedRegion region : added) {
             if (region.contains(pt)) {
-                applicable.add(region.getId());
+                SortedRegionArrays.addInOrder(applicable, region);
             }
         }
 
@@ -211,32 +356,201 @@ public class PRTreeRegionManager extends RegionManager {
     }
 
     /**
-     * Returns true if the provided region overlaps with any other region that
-     * is not owned by the player.
+     * Find the regions that contain a block, in order of priority, checking
+     * both the tree and the buffered changes.
      * 
-     * @param player
-     * @return
+     * @param x x coordinate of the block
+     * @param y y coordinate of the block
+     * @param z z coordinate of the block
+     * @return list of regions
      */
-    @Override
-    public boolean overlapsUnownedRegion(ProtectedRegion checkRegion, LocalPlayer player) {
-        List<ProtectedRegion> appRegions = new ArrayList<ProtectedRegion>();
+    private List<ProtectedRegion> findContaining(int x, int y, int z) {
+        applyRebuild();
 
-        for (ProtectedRegion other : regions.values()) {
-            if (other.getOwners().contains(player)) {
-                continue;
+        List<ProtectedRegion> applicable = new ArrayList<ProtectedRegion>();
+
+        for (ProtectedRegion region : tree.find(x, z, x, z)) {
+            if (!removed.contains(region) && region.contains(x, y, z)) {
+                SortedRegionArrays.addInOrder(applicable, region);
             }
+        }
+
+        for (ProtectedRegion region : added) {
+            if (region.contains(x, y, z)) {
+                SortedRegionArrays.addInOrder(applicable, region);
+            }
+        }
+
+        return applicable;
+    }
+
+    /**
+     * Put a region into the map, buffering the change for the tree.
+     * 
+     * @param region
+     */
+    private void putRegion(ProtectedRegion region) {
+        ProtectedRegion existing = regions.put(region.getId(), region);
 
-            appRegions.add(other);
+        if (existing != null) {
+            ownership.remove(existing);
+            hierarchy.remove(existing);
+            bufferRemoval(existing);
         }
 
-        List<ProtectedRegion> intersectRegions;
+        ownership.add(region);
+        hierarchy.add(region);
+        bufferAddition(region);
+    }
+
+    private void bufferAddition(ProtectedRegion region) {
+        if (!removed.remove(region)) {
+            added.add(region);
+        }
+
+        if (rebuild != null) {
+            changesSinceRebuild.add(new PendingChange(region, true));
+        }
+    }
+
+    private void bufferRemoval(ProtectedRegion region) {
+        if (!added.remove(region)) {
+            removed.add(region);
+        }
+
+        if (rebuild != null) {
+            changesSinceRebuild.add(new PendingChange(region, false));
+        }
+    }
+
+    /**
+     * Start a background rebuild of the tree if enough changes have been
+     * buffered.
+     */
+    private void checkPendingChanges() {
+        if (rebuild != null || added.size() + removed.size() <= MAX_PENDING_CHANGES) {
+            return;
+        }
+
+        final List<ProtectedRegion> snapshot =
+                new ArrayList<ProtectedRegion>(regions.values());
+        final MBRConverter<ProtectedRegion> converter = this.converter;
+
+        rebuild = rebuildExecutor.submit(new Callable<PRTree<ProtectedRegion>>() {
+            public PRTree<ProtectedRegion> call() {
+                PRTree<ProtectedRegion> newTree =
+                        new PRTree<ProtectedRegion>(converter, BRANCH_FACTOR);
+                newTree.load(snapshot);
+                return newTree;
+            }
+        });
+    }
+
+    /**
+     * Swap in the tree built in the background if it is ready. Changes
+     * that were made after the rebuild started are buffered again against
+     * the new tree.
+     */
+    private void applyRebuild() {
+        if (rebuild == null || !rebuild.isDone()) {
+            return;
+        }
+
+        PRTree<ProtectedRegion> newTree;
+
         try {
-            intersectRegions = checkRegion.getIntersectingRegions(appRegions);
-        } catch (Exception e) {
-            intersectRegions = new ArrayList<ProtectedRegion>();
+            newTree = rebuild.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rebuildNow();
+            return;
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "WorldGuard: Failed to rebuild region index", e.getCause());
+            rebuildNow();
+            return;
+        }
+
+        List<PendingChange> changes = changesSinceRebuild;
+        tree = newTree;
+        added.clear();
+        removed.clear();
+        rebuild = null;
+        changesSinceRebuild = new ArrayList<PendingChange>();
+
+        for (PendingChange change : changes) {
+            if (change.addition) {
+                bufferAddition(change.region);
+            } else {
+                bufferRemoval(change.region);
+            }
         }
 
-        return intersectRegions.size() > 0;
+        checkPendingChanges();
+    }
+
+    /**
+     * Rebuild the tree right away, discarding any buffered changes.
+     */
+    private void rebuildNow() {
+        if (rebuild != null) {
+            rebuild.cancel(false);
+            rebuild = null;
+        }
+
+        changesSinceRebuild.clear();
+        added.clear();
+        removed.clear();
+        tree = new PRTree<ProtectedRegion>(converter, BRANCH_FACTOR);
+        tree.load(regions.values());
+    }
+
+    private static Set<ProtectedRegion> createIdentitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<ProtectedRegion, Boolean>());
+    }
+
+    /**
+     * Find the regions whose bounding boxes overlap a region, in order
+     * of priority, checking both the tree and the buffered changes.
+     * 
+     * @param checkRegion
+     * @return list of regions
+     */
+    @Override
+    protected List<ProtectedRegion> findOverlapping(ProtectedRegion checkRegion) {
+        applyRebuild();
+
+        List<ProtectedRegion> overlapping = new ArrayList<ProtectedRegion>();
+        BlockVector min = checkRegion.getMinimumPoint();
+        BlockVector max = checkRegion.getMaximumPoint();
+
+        for (ProtectedRegion region : tree.find(min.getBlockX(), min.getBlockZ(),
+                max.getBlockX(), max.getBlockZ())) {
+            if (!removed.contains(region) && boundsOverlap(checkRegion, region)) {
+                overlapping.add(region);
+            }
+        }
+
+        for (ProtectedRegion region : added) {
+            if (boundsOverlap(checkRegion, region)) {
+                overlapping.add(region);
+            }
+        }
+
+        Collections.sort(overlapping);
+        return overlapping;
+    }
+
+    /**
+     * Returns true if the provided region overlaps with any other region that
+     * is not owned by the player.
+     * 
+     * @param player
+     * @return
+     */
+    @Override
+    public boolean overlapsUnownedRegion(ProtectedRegion checkRegion, LocalPlayer player) {
+        List<ProtectedRegion> candidates = removeOwnedBy(findOverlapping(checkRegion), player);
+        return getIntersectingRegions(checkRegion, candidates).size() > 0;
     }
 
     /**
@@ -249,16 +563,16 @@ public class PRTreeRegionManager extends RegionManager {
         return regions.size();
     }
 
-    @Override
-    public int getRegionCountOfPlayer(LocalPlayer player) {
-        int count = 0;
+    /**
+     * A change made while a tree was being built in the background.
+     */
+    private static class PendingChange {
+        private final ProtectedRegion region;
+        private final boolean addition;
 
-        for (Map.Entry<String, ProtectedRegion> entry : regions.entrySet()) {
-            if (entry.getValue().getOwners().contains(player)) {
-                count++;
-            }
+        public PendingChange(ProtectedRegion region, boolean addition) {
+            this.region = region;
+            this.addition = addition;
         }
-
-        return count;
     }
 }
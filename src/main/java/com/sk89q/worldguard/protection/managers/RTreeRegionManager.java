@@ -0,0 +1,312 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sk89q.worldguard.protection.managers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldguard.LocalPlayer;
+import com.sk89q.worldguard.protection.ApplicableRegionSet;
+import com.sk89q.worldguard.protection.databases.ProtectionDatabase;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+/**
+ * A region manager that keeps regions in a dynamic R-tree. Regions are
+ * inserted into and removed from the tree individually, so changing a
+ * region does not require the index to be rebuilt.
+ */
+public class RTreeRegionManager extends RegionManager {
+
+    /**
+     * List of protected regions.
+     */
+    private RegionRegistry regions;
+    /**
+     * Spatial index of the regions.
+     */
+    private RegionRTree tree;
+
+    /**
+     * Construct the manager.
+     * 
+     * @param regionloader 
+     */
+    public RTreeRegionManager(ProtectionDatabase regionloader) {
+        super(regionloader);
+        regions = new RegionRegistry();
+        tree = new RegionRTree();
+    }
+
+    /**
+     * Get a list of protected regions.
+     *
+     * @return
+     */
+    @Override
+    public Map<String, ProtectedRegion> getRegions() {
+        return regions;
+    }
+
+    /**
+     * Set a list of protected regions.
+     */
+    @Override
+    public void setRegions(Map<String, ProtectedRegion> regions) {
+        this.regions = new RegionRegistry(regions);
+        ownership.clear();
+        hierarchy.clear();
+        ownership.addAll(this.regions.values());
+        hierarchy.addAll(this.regions.values());
+        tree = new RegionRTree();
+        tree.insertAll(this.regions.values());
+    }
+
+    /**
+     * Adds a region.
+     * 
+     * @param region
+     */
+    @Override
+    public void addRegion(ProtectedRegion region) {
+        ProtectedRegion existing = regions.put(region.getId(), region);
+
+        if (existing != null) {
+            ownership.remove(existing);
+            hierarchy.remove(existing);
+            tree.remove(existing);
+        }
+
+        ownership.add(region);
+        hierarchy.add(region);
+        tree.insert(region);
+    }
+
+    /**
+     * Return whether a region exists by an ID.
+     * 
+     * @param id
+     * @return
+     */
+    @Override
+    public boolean hasRegion(String id) {
+        return regions.containsKey(id);
+    }
+
+    /**
+     * Get a region by its ID.
+     * 
+     * @param id
+     */
+    @Override
+    public ProtectedRegion getRegion(String id) {
+        return regions.get(id);
+    }
+
+    /**
+     * Get the global region.
+     * 
+     * @return
+     */
+    @Override
+    public ProtectedRegion getGlobalRegion() {
+        return regions.getGlobal();
+    }
+
+    /**
+     * Removes a region and its children.
+     * 
+     * @param id
+     */
+    @Override
+    public void removeRegion(String id) {
+        ProtectedRegion region = regions.remove(id);
+
+        if (region != null) {
+            ownership.remove(region);
+            hierarchy.remove(region);
+            tree.remove(region);
+
+            for (ProtectedRegion child : hierarchy.getChildren(region)) {
+                removeRegion(child.getId());
+            }
+        }
+    }
+
+    /**
+     * Get an object for a point for rules to be applied with.
+     * 
+     * @param pt
+     * @return
+     */
+    @Override
+    public ApplicableRegionSet getApplicableRegions(Vector pt) {
+        return new ApplicableRegionSet(findContaining(pt), regions.getGlobal());
+    }
+
+    /**
+     * Get an object for a block for rules to be applied with.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    @Override
+    public ApplicableRegionSet getApplicableRegions(int x, int y, int z) {
+        return new ApplicableRegionSet(findContaining(x, y, z), regions.getGlobal());
+    }
+
+    /**
+     * Get an object for a region for rules to be applied with.
+     * 
+     * @return
+     */
+    @Override
+    public ApplicableRegionSet getApplicableRegions(ProtectedRegion checkRegion) {
+        return new ApplicableRegionSet(getIntersectingRegions(checkRegion,
+                findOverlapping(checkRegion)), regions.getGlobal());
+    }
+
+    /**
+     * Get a list of region IDs that contain a point.
+     * 
+     * @param pt
+     * @return
+     */
+    @Override
+    public List<String> getApplicableRegionsIDs(Vector pt) {
+        List<String> applicable = new ArrayList<String>();
+
+        for (ProtectedRegion region : findContaining(pt)) {
+            applicable.add(region.getId());
+        }
+
+        return applicable;
+    }
+
+    /**
+     * Find the regions that contain a point, in order of priority.
+     * 
+     * @param pt point
+     * @return list of regions
+     */
+    private List<ProtectedRegion> findContaining(Vector pt) {
+        if (isBlockPoint(pt)) {
+            return findContaining(pt.getBlockX(), pt.getBlockY(), pt.getBlockZ());
+        }
+
+        List<ProtectedRegion> candidates = new ArrayList<ProtectedRegion>();
+
+        // Cuboids floor the coordinates while polygons round them, so
+        // look at both columns that the point could fall into
+        int x = (int) Math.floor(pt.getX());
+        int z = (int) Math.floor(pt.getZ());
+        tree.find(x, z, Math.max(x, pt.getBlockX()), Math.max(z, pt.getBlockZ()),
+                candidates);
+
+        List<ProtectedRegion> applicable =
+                new ArrayList<ProtectedRegion>(candidates.size());
+
+        for (ProtectedRegion region : candidates) {
+            if (region.contains(pt)) {
+                SortedRegionArrays.addInOrder(applicable, region);
+            }
+        }
+
+        return applicable;
+    }
+
+    /**
+     * Find the regions that contain a block, in order of priority.
+     * 
+     * @param x x coordinate of the block
+     * @param y y coordinate of the block
+     * @param z z coordinate of the block
+     * @return list of regions
+     */
+    private List<ProtectedRegion> findContaining(int x, int y, int z) {
+        List<ProtectedRegion> candidates = new ArrayList<ProtectedRegion>();
+        tree.find(x, z, x, z, candidates);
+
+        List<ProtectedRegion> applicable =
+                new ArrayList<ProtectedRegion>(candidates.size());
+
+        for (ProtectedRegion region : candidates) {
+            if (region.contains(x, y, z)) {
+                SortedRegionArrays.addInOrder(applicable, region);
+            }
+        }
+
+        return applicable;
+    }
+
+    /**
+     * Find the regions whose bounding boxes overlap a region, in order
+     * of priority.
+     * 
+     * @param checkRegion
+     * @return list of regions
+     */
+    @Override
+    protected List<ProtectedRegion> findOverlapping(ProtectedRegion checkRegion) {
+        List<ProtectedRegion> candidates = new ArrayList<ProtectedRegion>();
+        BlockVector min = checkRegion.getMinimumPoint();
+        BlockVector max = checkRegion.getMaximumPoint();
+        tree.find(min.getBlockX(), min.getBlockZ(), max.getBlockX(), max.getBlockZ(),
+                candidates);
+
+        List<ProtectedRegion> overlapping = new ArrayList<ProtectedRegion>();
+
+        for (ProtectedRegion region : candidates) {
+            if (boundsOverlap(checkRegion, region)) {
+                overlapping.add(region);
+            }
+        }
+
+        Collections.sort(overlapping);
+        return overlapping;
+    }
+
+    /**
+     * Returns true if the provided region overlaps with any other region that
+     * is not owned by the player.
+     * 
+     * @param player
+     * @return
+     */
+    @Override
+    public boolean overlapsUnownedRegion(ProtectedRegion checkRegion, LocalPlayer player) {
+        List<ProtectedRegion> candidates = removeOwnedBy(findOverlapping(checkRegion), player);
+        return getIntersectingRegions(checkRegion, candidates).size() > 0;
+    }
+
+    /**
+     * Get the number of regions.
+     * 
+     * @return
+     */
+    @Override
+    public int size() {
+        return regions.size();
+    }
+}
@@ -0,0 +1,194 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldguard.protection.managers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.protection.regions.RegionChangeListener;
+
+/**
+ * Maps regions to their children, so that the subtree below a region can
+ * be found without going through every region. The index listens to the
+ * regions that it holds and follows changes made to their parents.
+ */
+class RegionHierarchy implements RegionChangeListener {
+
+    /**
+     * The parent that each region was indexed under, or null.
+     */
+    private final Map<ProtectedRegion, ProtectedRegion> parents =
+            new IdentityHashMap<ProtectedRegion, ProtectedRegion>();
+    private final Map<ProtectedRegion, Set<ProtectedRegion>> children =
+            new IdentityHashMap<ProtectedRegion, Set<ProtectedRegion>>();
+
+    /**
+     * Add a region. A region that replaces another one by the same ID must
+     * be added after the other one has been removed.
+     * 
+     * @param region
+     */
+    public void add(ProtectedRegion region) {
+        if (parents.containsKey(region)) {
+            return;
+        }
+
+        ProtectedRegion parent = region.getParent();
+        parents.put(region, parent);
+        link(region, parent);
+        region.addChangeListener(this);
+    }
+
+    /**
+     * Add several regions.
+     * 
+     * @param regions
+     */
+    public void addAll(Collection<ProtectedRegion> regions) {
+        for (ProtectedRegion region : regions) {
+            add(region);
+        }
+    }
+
+    /**
+     * Remove a region. Its children stay indexed under it until they are
+     * removed or moved to another parent themselves.
+     * 
+     * @param region
+     */
+    public void remove(ProtectedRegion region) {
+        if (!parents.containsKey(region)) {
+            return;
+        }
+
+        region.removeChangeListener(this);
+        unlink(region, parents.remove(region));
+    }
+
+    /**
+     * Remove every region.
+     */
+    public void clear() {
+        for (ProtectedRegion region : parents.keySet()) {
+            region.removeChangeListener(this);
+        }
+
+        parents.clear();
+        children.clear();
+    }
+
+    public void regionChanged(ProtectedRegion region, Change change) {
+        if (change != Change.PARENT || !parents.containsKey(region)) {
+            return;
+        }
+
+        ProtectedRegion parent = region.getParent();
+        ProtectedRegion old = parents.put(region, parent);
+
+        if (old != parent) {
+            unlink(region, old);
+            link(region, parent);
+        }
+    }
+
+    /**
+     * Get the regions that have the given region as their direct parent.
+     * 
+     * @param parent
+     * @return new list of child regions, in priority and ID order
+     */
+    public List<ProtectedRegion> getChildren(ProtectedRegion parent) {
+        Set<ProtectedRegion> set = children.get(parent);
+
+        if (set == null) {
+            return new ArrayList<ProtectedRegion>();
+        }
+
+        List<ProtectedRegion> list = new ArrayList<ProtectedRegion>(set);
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * Get every region below the given region. Parents come before their
+     * children in the returned list, which doesn't include the region
+     * itself.
+     * 
+     * @param root
+     * @return new list of descendant regions
+     */
+    public List<ProtectedRegion> getDescendants(ProtectedRegion root) {
+        List<ProtectedRegion> descendants = new ArrayList<ProtectedRegion>();
+        Set<ProtectedRegion> seen = Collections.newSetFromMap(
+                new IdentityHashMap<ProtectedRegion, Boolean>());
+        seen.add(root);
+
+        for (int i = -1; i < descendants.size(); i++) {
+            ProtectedRegion parent = i < 0 ? root : descendants.get(i);
+
+            for (ProtectedRegion child : getChildren(parent)) {
+                // Guards against cycles, which setParent() doesn't allow
+                if (seen.add(child)) {
+                    descendants.add(child);
+                }
+            }
+        }
+
+        return descendants;
+    }
+
+    private void link(ProtectedRegion region, ProtectedRegion parent) {
+        if (parent == null) {
+            return;
+        }
+
+        Set<ProtectedRegion> set = children.get(parent);
+
+        if (set == null) {
+            set = Collections.newSetFromMap(
+                    new IdentityHashMap<ProtectedRegion, Boolean>());
+            children.put(parent, set);
+        }
+
+        set.add(region);
+    }
+
+    private void unlink(ProtectedRegion region, ProtectedRegion parent) {
+        if (parent == null) {
+            return;
+        }
+
+        Set<ProtectedRegion> set = children.get(parent);
+
+        if (set != null) {
+            set.remove(region);
+
+            if (set.isEmpty()) {
+                children.remove(parent);
+            }
+        }
+    }
+}
@@ -20,14 +20,25 @@
 package com.sk89q.worldguard.protection.managers;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import com.sk89q.worldedit.BlockVector;
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldguard.LocalPlayer;
 import com.sk89q.worldguard.protection.ApplicableRegionSet;
 import com.sk89q.worldguard.protection.databases.ProtectionDatabase;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.util.LongHashMap;
 
 /**
  * An abstract class for getting, setting, and looking up regions. The most
@@ -41,6 +52,18 @@ public abstract class RegionManager {
     
     protected ProtectionDatabase loader;
 
+    /**
+     * Owners and members of the regions by name. Subclasses must add and
+     * remove regions here as they add and remove them.
+     */
+    protected final RegionOwnershipIndex ownership = new RegionOwnershipIndex();
+
+    /**
+     * Children of the regions. Subclasses must add and remove regions here
+     * as they add and remove them.
+     */
+    protected final RegionHierarchy hierarchy = new RegionHierarchy();
+
     /**
      * Construct the object.
      * 
@@ -93,6 +116,18 @@ public abstract class RegionManager {
      */
     public abstract void addRegion(ProtectedRegion region);
 
+    /**
+     * Adds several regions at once. Managers that maintain an index may
+     * override this to update the index once for the whole batch.
+     * 
+     * @param regions regions to add
+     */
+    public void addRegions(Collection<ProtectedRegion> regions) {
+        for (ProtectedRegion region : regions) {
+            addRegion(region);
+        }
+    }
+
     /**
      * Return whether a region exists by an ID.
      * 
@@ -109,6 +144,15 @@ public abstract class RegionManager {
      */
     public abstract ProtectedRegion getRegion(String id);
 
+    /**
+     * Get the global region, which holds the default flags of the world.
+     * 
+     * @return the global region, or null if it hasn't been defined
+     */
+    public ProtectedRegion getGlobalRegion() {
+        return getRegion("__global__");
+    }
+
     /**
      * Removes a region, including inheriting children.
      * 
@@ -116,6 +160,19 @@ public abstract class RegionManager {
      */
     public abstract void removeRegion(String id);
 
+    /**
+     * Removes several regions at once, including inheriting children.
+     * Managers that maintain an index may override this to update the
+     * index once for the whole batch.
+     * 
+     * @param ids ids of the regions, can be mixed-case
+     */
+    public void removeRegions(Collection<String> ids) {
+        for (String id : ids) {
+            removeRegion(id);
+        }
+    }
+
     /**
      * Get an object for a point for rules to be applied with. Use this in order
      * to query for flag data or membership data for a given point.
@@ -136,6 +193,20 @@ public abstract class RegionManager {
      */
     public abstract ApplicableRegionSet getApplicableRegions(Vector pt);
 
+    /**
+     * Get an object for a block for rules to be applied with. This gives
+     * the same result as {@link #getApplicableRegions(Vector)} for the
+     * block's position without needing a vector.
+     * 
+     * @param x x coordinate of the block
+     * @param y y coordinate of the block
+     * @param z z coordinate of the block
+     * @return applicable region set
+     */
+    public ApplicableRegionSet getApplicableRegions(int x, int y, int z) {
+        return getApplicableRegions(new Vector(x, y, z));
+    }
+
     /**
      * Get an object for a point for rules to be applied with. This gets
      * a set for the given reason.
@@ -156,6 +227,192 @@ public abstract class RegionManager {
      */
     public abstract List<String> getApplicableRegionsIDs(Vector pt);
 
+    /**
+     * Check a state flag at a point. This cannot be used for the build flag.
+     * Region sets remember the state flags they have resolved, so managers
+     * that hand out the same set for points covered by the same regions
+     * answer this with a table lookup.
+     * 
+     * @param flag flag to check, not the build flag
+     * @param pt point
+     * @return whether the flag is allowed
+     */
+    public boolean allows(StateFlag flag, Vector pt) {
+        return getApplicableRegions(pt).allows(flag);
+    }
+
+    /**
+     * Check a state flag at a block. This cannot be used for the build flag.
+     * 
+     * @param flag flag to check, not the build flag
+     * @param x x coordinate of the block
+     * @param y y coordinate of the block
+     * @param z z coordinate of the block
+     * @return whether the flag is allowed
+     */
+    public boolean allows(StateFlag flag, int x, int y, int z) {
+        return getApplicableRegions(x, y, z).allows(flag);
+    }
+
+    /**
+     * Check a state flag at many points at once, such as every block
+     * affected by an explosion. Block points are grouped by chunk: the
+     * regions that overlap a chunk are looked up once, and the points of
+     * the chunk that fall into the same combination of those regions share
+     * one resolved result.
+     * 
+     * @param flag flag to check, not the build flag
+     * @param points points to check
+     * @return bit set with bit <code>i</code> set if the flag is allowed at
+     *         the <code>i</code>th point
+     */
+    public BitSet allows(StateFlag flag, List<? extends Vector> points) {
+        return allows(flag, points, false);
+    }
+
+    /**
+     * Check whether a state flag is allowed at every one of many points,
+     * stopping at the first point where it is denied.
+     * 
+     * @param flag flag to check, not the build flag
+     * @param points points to check
+     * @return whether the flag is allowed at every point
+     */
+    public boolean allowsAll(StateFlag flag, List<? extends Vector> points) {
+        return allows(flag, points, true).cardinality() == points.size();
+    }
+
+    /**
+     * Check a state flag at many points at once.
+     * 
+     * @param flag flag to check, not the build flag
+     * @param points points to check
+     * @param stopAtDenied whether to stop at the first point where the flag
+     *            is denied, leaving the bits of the remaining points clear
+     * @return bit set with bit <code>i</code> set if the flag is allowed at
+     *         the <code>i</code>th point
+     */
+    protected BitSet allows(StateFlag flag, List<? extends Vector> points,
+            boolean stopAtDenied) {
+        BitSet result = new BitSet(points.size());
+        LongHashMap<ChunkQuery> chunks = new LongHashMap<ChunkQuery>();
+        ProtectedRegion global = getGlobalRegion();
+
+        for (int i = 0; i < points.size(); i++) {
+            Vector pt = points.get(i);
+            boolean allowed;
+
+            if (isBlockPoint(pt)) {
+                int x = pt.getBlockX();
+                int z = pt.getBlockZ();
+                long key = ((long) (x >> 4) << 32) | ((z >> 4) & 0xFFFFFFFFL);
+                ChunkQuery chunk = chunks.get(key);
+
+                if (chunk == null) {
+                    chunk = new ChunkQuery(findOverlapping(
+                            getChunkColumn(x >> 4, z >> 4)), global);
+                    chunks.put(key, chunk);
+                }
+
+                allowed = chunk.allows(flag, x, pt.getBlockY(), z);
+            } else {
+                allowed = getApplicableRegions(pt).allows(flag);
+            }
+
+            if (allowed) {
+                result.set(i);
+            } else if (stopAtDenied) {
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Find the regions whose bounding boxes overlap a region, in order
+     * of priority. Managers with a spatial index should override this to
+     * search the index.
+     * 
+     * @param checkRegion
+     * @return list of regions
+     */
+    protected List<ProtectedRegion> findOverlapping(ProtectedRegion checkRegion) {
+        List<ProtectedRegion> overlapping = new ArrayList<ProtectedRegion>();
+
+        for (ProtectedRegion region : getRegions().values()) {
+            if (boundsOverlap(checkRegion, region)) {
+                overlapping.add(region);
+            }
+        }
+
+        Collections.sort(overlapping);
+        return overlapping;
+    }
+
+    /**
+     * Get a region that covers the full height of a chunk column.
+     * 
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @return region
+     */
+    private static ProtectedRegion getChunkColumn(int chunkX, int chunkZ) {
+        return new ProtectedCuboidRegion("__chunk__",
+                new BlockVector(chunkX << 4, Integer.MIN_VALUE, chunkZ << 4),
+                new BlockVector((chunkX << 4) + 15, Integer.MAX_VALUE, (chunkZ << 4) + 15));
+    }
+
+    /**
+     * Resolves a state flag at the blocks of one chunk against the regions
+     * that overlap the chunk. The regions that contain a block are recorded
+     * as a bit mask, and the flag is resolved once per distinct mask.
+     */
+    private static class ChunkQuery {
+        private final ProtectedRegion[] candidates;
+        private final ProtectedRegion global;
+        private final LongHashMap<Boolean> results = new LongHashMap<Boolean>();
+
+        ChunkQuery(List<ProtectedRegion> candidates, ProtectedRegion global) {
+            this.candidates = candidates.toArray(new ProtectedRegion[candidates.size()]);
+            this.global = global;
+        }
+
+        boolean allows(StateFlag flag, int x, int y, int z) {
+            // Too many regions for a mask, so resolve the block on its own
+            if (candidates.length > 64) {
+                List<ProtectedRegion> applicable = new ArrayList<ProtectedRegion>();
+                for (ProtectedRegion region : candidates) {
+                    if (region.contains(x, y, z)) {
+                        applicable.add(region);
+                    }
+                }
+                return new ApplicableRegionSet(applicable, global).allows(flag);
+            }
+
+            long mask = 0;
+            for (int j = 0; j < candidates.length; j++) {
+                if (candidates[j].contains(x, y, z)) {
+                    mask |= 1L << j;
+                }
+            }
+
+            Boolean allowed = results.get(mask);
+            if (allowed == null) {
+                List<ProtectedRegion> applicable = new ArrayList<ProtectedRegion>();
+                for (int j = 0; j < candidates.length; j++) {
+                    if ((mask & (1L << j)) != 0) {
+                        applicable.add(candidates[j]);
+                    }
+                }
+                allowed = new ApplicableRegionSet(applicable, global).allows(flag);
+                results.put(mask, allowed);
+            }
+
+            return allowed;
+        }
+    }
+
     /**
      * Returns true if the provided region overlaps with any other region that
      * is not owned by the player.
@@ -167,6 +424,85 @@ public abstract class RegionManager {
     public abstract boolean overlapsUnownedRegion(ProtectedRegion region,
             LocalPlayer player);
 
+    /**
+     * Checks whether a point is at whole block coordinates, in which case
+     * regions can be tested against it with
+     * {@link ProtectedRegion#contains(int, int, int)}.
+     * 
+     * @param pt point
+     * @return whether the point is at a block position
+     */
+    protected static boolean isBlockPoint(Vector pt) {
+        return pt.getX() == pt.getBlockX() && pt.getY() == pt.getBlockY()
+                && pt.getZ() == pt.getBlockZ();
+    }
+
+    /**
+     * Checks whether the bounding boxes of two regions overlap, which they
+     * must for the regions to intersect. The global region has no area and
+     * never overlaps anything.
+     * 
+     * @param a region
+     * @param b other region
+     * @return whether the bounding boxes overlap
+     */
+    protected static boolean boundsOverlap(ProtectedRegion a, ProtectedRegion b) {
+        if (a instanceof GlobalProtectedRegion || b instanceof GlobalProtectedRegion) {
+            return false;
+        }
+
+        BlockVector minA = a.getMinimumPoint();
+        BlockVector maxA = a.getMaximumPoint();
+        BlockVector minB = b.getMinimumPoint();
+        BlockVector maxB = b.getMaximumPoint();
+
+        return minA.getBlockX() <= maxB.getBlockX() && maxA.getBlockX() >= minB.getBlockX()
+                && minA.getBlockY() <= maxB.getBlockY() && maxA.getBlockY() >= minB.getBlockY()
+                && minA.getBlockZ() <= maxB.getBlockZ() && maxA.getBlockZ() >= minB.getBlockZ();
+    }
+
+    /**
+     * Run the exact intersection test of a region against candidates that
+     * have already passed {@link #boundsOverlap(ProtectedRegion, ProtectedRegion)}.
+     * 
+     * @param checkRegion region to check
+     * @param candidates candidate regions
+     * @return intersecting regions, or an empty list if the shapes
+     *         cannot be compared
+     */
+    protected static List<ProtectedRegion> getIntersectingRegions(
+            ProtectedRegion checkRegion, List<ProtectedRegion> candidates) {
+        if (candidates.size() == 0) {
+            return candidates;
+        }
+
+        try {
+            return checkRegion.getIntersectingRegions(candidates);
+        } catch (Exception e) {
+            return new ArrayList<ProtectedRegion>();
+        }
+    }
+
+    /**
+     * Remove the regions owned by a player from a list of regions.
+     * 
+     * @param regions regions
+     * @param player player to check
+     * @return the same list
+     */
+    protected static List<ProtectedRegion> removeOwnedBy(List<ProtectedRegion> regions,
+            LocalPlayer player) {
+        Iterator<ProtectedRegion> it = regions.iterator();
+
+        while (it.hasNext()) {
+            if (it.next().getOwners().contains(player)) {
+                it.remove();
+            }
+        }
+
+        return regions;
+    }
+
     /**
      * Get the number of regions.
      *
@@ -180,5 +516,50 @@ public abstract class RegionManager {
      * @param player player
      * @return name number of regions that a player owns
      */
-    public abstract int getRegionCountOfPlayer(LocalPlayer player);
+    public int getRegionCountOfPlayer(LocalPlayer player) {
+        return ownership.countOwned(player);
+    }
+
+    /**
+     * Get the IDs of the regions that list a player as an owner by name.
+     * Groups and parent regions are not taken into account.
+     *
+     * @param name player name, can be mixed-case
+     * @return set of lowercase region IDs
+     */
+    public Set<String> getOwnedRegionIds(String name) {
+        return ownership.getOwned(name);
+    }
+
+    /**
+     * Get the IDs of the regions that list a player as a member by name.
+     * Groups and parent regions are not taken into account.
+     *
+     * @param name player name, can be mixed-case
+     * @return set of lowercase region IDs
+     */
+    public Set<String> getMemberRegionIds(String name) {
+        return ownership.getMemberOf(name);
+    }
+
+    /**
+     * Get the regions that have a region as their direct parent.
+     *
+     * @param parent parent region
+     * @return list of child regions, in priority and ID order
+     */
+    public List<ProtectedRegion> getChildren(ProtectedRegion parent) {
+        return hierarchy.getChildren(parent);
+    }
+
+    /**
+     * Get every region below a region, with parents coming before their
+     * children. These are the regions that are removed along with it.
+     *
+     * @param parent parent region
+     * @return list of descendant regions, not including the parent
+     */
+    public List<ProtectedRegion> getDescendants(ProtectedRegion parent) {
+        return hierarchy.getDescendants(parent);
+    }
 }
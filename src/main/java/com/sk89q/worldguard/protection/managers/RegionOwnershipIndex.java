@@ -0,0 +1,248 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldguard.protection.managers;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.sk89q.worldguard.LocalPlayer;
+import com.sk89q.worldguard.domains.DefaultDomain;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.protection.regions.RegionChangeListener;
+
+/**
+ * Maps lowercase player and group names to the IDs of the regions that
+ * list them as owners or members. The index listens to the regions that it
+ * holds and follows changes made to their domains.
+ */
+class RegionOwnershipIndex implements RegionChangeListener {
+
+    private final Map<String, Set<String>> ownersByPlayer = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> ownersByGroup = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> membersByPlayer = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> membersByGroup = new HashMap<String, Set<String>>();
+
+    /**
+     * The names that each region was indexed under, so that they can be
+     * removed again after its domains have changed.
+     */
+    private final Map<ProtectedRegion, Entry> entries =
+            new IdentityHashMap<ProtectedRegion, Entry>();
+
+    /**
+     * Add a region. A region that replaces another one by the same ID must
+     * be added after the other one has been removed.
+     * 
+     * @param region
+     */
+    public void add(ProtectedRegion region) {
+        if (entries.containsKey(region)) {
+            return;
+        }
+
+        Entry entry = new Entry(region);
+        entries.put(region, entry);
+        index(entry);
+        region.addChangeListener(this);
+    }
+
+    /**
+     * Add several regions.
+     * 
+     * @param regions
+     */
+    public void addAll(Collection<ProtectedRegion> regions) {
+        for (ProtectedRegion region : regions) {
+            add(region);
+        }
+    }
+
+    /**
+     * Remove a region.
+     * 
+     * @param region
+     */
+    public void remove(ProtectedRegion region) {
+        Entry entry = entries.remove(region);
+
+        if (entry != null) {
+            region.removeChangeListener(this);
+            unindex(entry);
+        }
+    }
+
+    /**
+     * Remove every region.
+     */
+    public void clear() {
+        for (ProtectedRegion region : entries.keySet()) {
+            region.removeChangeListener(this);
+        }
+
+        entries.clear();
+        ownersByPlayer.clear();
+        ownersByGroup.clear();
+        membersByPlayer.clear();
+        membersByGroup.clear();
+    }
+
+    public void regionChanged(ProtectedRegion region, Change change) {
+        if (change != Change.OWNERS && change != Change.MEMBERS) {
+            return;
+        }
+
+        Entry entry = entries.get(region);
+
+        if (entry != null) {
+            unindex(entry);
+            entry.update(region);
+            index(entry);
+        }
+    }
+
+    /**
+     * Get the number of regions that a player owns, either by name or
+     * through one of its groups.
+     * 
+     * @param player
+     * @return number of regions
+     */
+    public int countOwned(LocalPlayer player) {
+        Set<String> byName = ownersByPlayer.get(player.getName().toLowerCase());
+        Set<String> owned = null;
+
+        for (Map.Entry<String, Set<String>> entry : ownersByGroup.entrySet()) {
+            if (player.hasGroup(entry.getKey())) {
+                if (owned == null) {
+                    owned = new HashSet<String>();
+                    if (byName != null) {
+                        owned.addAll(byName);
+                    }
+                }
+
+                owned.addAll(entry.getValue());
+            }
+        }
+
+        if (owned != null) {
+            return owned.size();
+        }
+
+        return byName != null ? byName.size() : 0;
+    }
+
+    /**
+     * Get the IDs of the regions that list a player as an owner by name.
+     * 
+     * @param name player name, can be mixed-case
+     * @return set of lowercase region IDs
+     */
+    public Set<String> getOwned(String name) {
+        return lookup(ownersByPlayer, name);
+    }
+
+    /**
+     * Get the IDs of the regions that list a player as a member by name.
+     * 
+     * @param name player name, can be mixed-case
+     * @return set of lowercase region IDs
+     */
+    public Set<String> getMemberOf(String name) {
+        return lookup(membersByPlayer, name);
+    }
+
+    private static Set<String> lookup(Map<String, Set<String>> map, String name) {
+        Set<String> ids = map.get(name.toLowerCase());
+
+        if (ids == null) {
+            return Collections.emptySet();
+        }
+
+        return Collections.unmodifiableSet(ids);
+    }
+
+    private void index(Entry entry) {
+        put(ownersByPlayer, entry.ownerPlayers, entry.id);
+        put(ownersByGroup, entry.ownerGroups, entry.id);
+        put(membersByPlayer, entry.memberPlayers, entry.id);
+        put(membersByGroup, entry.memberGroups, entry.id);
+    }
+
+    private void unindex(Entry entry) {
+        remove(ownersByPlayer, entry.ownerPlayers, entry.id);
+        remove(ownersByGroup, entry.ownerGroups, entry.id);
+        remove(membersByPlayer, entry.memberPlayers, entry.id);
+        remove(membersByGroup, entry.memberGroups, entry.id);
+    }
+
+    private static void put(Map<String, Set<String>> map, String[] names, String id) {
+        for (String name : names) {
+            Set<String> ids = map.get(name);
+            if (ids == null) {
+                ids = new HashSet<String>();
+                map.put(name, ids);
+            }
+            ids.add(id);
+        }
+    }
+
+    private static void remove(Map<String, Set<String>> map, String[] names, String id) {
+        for (String name : names) {
+            Set<String> ids = map.get(name);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    map.remove(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * The names that a region is indexed under. Domains store their names
+     * in lowercase already.
+     */
+    private static class Entry {
+        private final String id;
+        private String[] ownerPlayers;
+        private String[] ownerGroups;
+        private String[] memberPlayers;
+        private String[] memberGroups;
+
+        public Entry(ProtectedRegion region) {
+            id = region.getId().toLowerCase();
+            update(region);
+        }
+
+        public void update(ProtectedRegion region) {
+            DefaultDomain owners = region.getOwners();
+            DefaultDomain members = region.getMembers();
+            ownerPlayers = owners.getPlayers().toArray(new String[0]);
+            ownerGroups = owners.getGroups().toArray(new String[0]);
+            memberPlayers = members.getPlayers().toArray(new String[0]);
+            memberGroups = members.getGroups().toArray(new String[0]);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldguard.protection.managers;
+
+import com.sk89q.worldguard.protection.ApplicableRegionSet;
+import com.sk89q.worldguard.util.LongHashMap;
+
+/**
+ * A bounded cache of query results keyed by packed block positions. Entries
+ * are evicted using the clock algorithm: every entry has a reference bit
+ * that is set when it is hit, and the clock hand clears bits until it finds
+ * an entry that has not been used since the hand last passed it.
+ */
+class RegionQueryCache {
+
+    private final Entry[] ring;
+    private final LongHashMap<Entry> entries;
+    private int hand;
+    private int size;
+    private long generation;
+    private long hits;
+    private long misses;
+
+    /**
+     * Construct the cache.
+     * 
+     * @param capacity maximum number of entries
+     */
+    public RegionQueryCache(int capacity) {
+        ring = new Entry[capacity];
+        entries = new LongHashMap<Entry>(capacity);
+    }
+
+    /**
+     * Get a cached result.
+     * 
+     * @param key packed block position
+     * @param generation generation of the regions that the caller is querying
+     * @return result or null if it is not cached
+     */
+    public synchronized ApplicableRegionSet get(long key, long generation) {
+        checkGeneration(generation);
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        entry.referenced = true;
+        return entry.set;
+    }
+
+    /**
+     * Store a result. Results computed for an older generation of the
+     * regions are dropped.
+     * 
+     * @param key packed block position
+     * @param generation generation of the regions when the result was computed
+     * @param set result
+     */
+    public synchronized void put(long key, long generation, ApplicableRegionSet set) {
+        checkGeneration(generation);
+
+        if (generation != this.generation || entries.containsKey(key)) {
+            return;
+        }
+
+        Entry entry = new Entry(key, set);
+
+        if (size < ring.length) {
+            ring[size++] = entry;
+        } else {
+            while (ring[hand].referenced) {
+                ring[hand].referenced = false;
+                hand = (hand + 1) % ring.length;
+            }
+
+            entries.remove(ring[hand].key);
+            ring[hand] = entry;
+            hand = (hand + 1) % ring.length;
+        }
+
+        entries.put(key, entry);
+    }
+
+    /**
+     * Drop all entries if the regions have changed since they were cached.
+     * 
+     * @param generation
+     */
+    private void checkGeneration(long generation) {
+        if (generation > this.generation) {
+            this.generation = generation;
+            clear();
+        }
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < size; i++) {
+            ring[i] = null;
+        }
+
+        entries.clear();
+        size = 0;
+        hand = 0;
+    }
+
+    /**
+     * Get the number of cached entries.
+     * 
+     * @return
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the maximum number of entries.
+     * 
+     * @return
+     */
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * Get the number of lookups that found a result.
+     * 
+     * @return
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups that did not find a result.
+     * 
+     * @return
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private static class Entry {
+        private final long key;
+        private final ApplicableRegionSet set;
+        private boolean referenced;
+
+        public Entry(long key, ApplicableRegionSet set) {
+            this.key = key;
+            this.set = set;
+        }
+    }
+}
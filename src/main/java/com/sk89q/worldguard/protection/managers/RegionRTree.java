@@ -0,0 +1,563 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sk89q.worldguard.protection.managers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+/**
+ * A dynamic R-tree over the 2D (X/Z) bounding boxes of regions. Unlike the
+ * bulk-loaded PR-tree, regions can be inserted and removed one at a time
+ * without rebuilding the tree. Node splits use Guttman's quadratic split.
+ * 
+ * <p>Each region is mapped to the leaf that holds it, so removing a region
+ * does not have to search the tree.</p>
+ */
+final class RegionRTree {
+
+    private static final int MAX_ENTRIES = 16;
+    private static final int MIN_ENTRIES = 6;
+
+    /**
+     * Root node.
+     */
+    private Node root = new Node(true);
+
+    /**
+     * Map of regions to the leaf node that holds them.
+     */
+    private final Map<ProtectedRegion, Node> leaves =
+            new IdentityHashMap<ProtectedRegion, Node>();
+
+    /**
+     * Get the number of regions in the tree.
+     * 
+     * @return number of regions
+     */
+    public int size() {
+        return leaves.size();
+    }
+
+    /**
+     * Returns whether the given region instance is in the tree.
+     * 
+     * @param region region
+     * @return whether it is in the tree
+     */
+    public boolean contains(ProtectedRegion region) {
+        return leaves.containsKey(region);
+    }
+
+    /**
+     * Remove all regions.
+     */
+    public void clear() {
+        root = new Node(true);
+        leaves.clear();
+    }
+
+    /**
+     * Insert a region. If the region is already in the tree, its bounds are
+     * updated.
+     * 
+     * @param region region to insert
+     */
+    public void insert(ProtectedRegion region) {
+        if (leaves.containsKey(region)) {
+            remove(region);
+        }
+
+        BlockVector min = region.getMinimumPoint();
+        BlockVector max = region.getMaximumPoint();
+        insertEntry(region, min.getBlockX(), min.getBlockZ(),
+                max.getBlockX(), max.getBlockZ());
+    }
+
+    /**
+     * Insert all the given regions.
+     * 
+     * @param regions regions to insert
+     */
+    public void insertAll(Collection<ProtectedRegion> regions) {
+        for (ProtectedRegion region : regions) {
+            insert(region);
+        }
+    }
+
+    /**
+     * Remove a region.
+     * 
+     * @param region region to remove
+     * @return whether the region was in the tree
+     */
+    public boolean remove(ProtectedRegion region) {
+        Node leaf = leaves.remove(region);
+
+        if (leaf == null) {
+            return false;
+        }
+
+        leaf.removeEntry(leaf.indexOf(region));
+        condense(leaf);
+        return true;
+    }
+
+    /**
+     * Find the regions whose bounding boxes contain the given column.
+     * 
+     * @param x x coordinate
+     * @param z z coordinate
+     * @param found list to add the found regions to
+     */
+    public void find(int x, int z, List<ProtectedRegion> found) {
+        find(x, z, x, z, found);
+    }
+
+    /**
+     * Find the regions whose bounding boxes overlap the given area.
+     * 
+     * @param minX minimum x
+     * @param minZ minimum z
+     * @param maxX maximum x
+     * @param maxZ maximum z
+     * @param found list to add the found regions to
+     */
+    public void find(int minX, int minZ, int maxX, int maxZ,
+            List<ProtectedRegion> found) {
+        if (root.size > 0) {
+            find(root, minX, minZ, maxX, maxZ, found);
+        }
+    }
+
+    private void find(Node node, int minX, int minZ, int maxX, int maxZ,
+            List<ProtectedRegion> found) {
+        for (int i = 0; i < node.size; i++) {
+            if (node.minX[i] > maxX || node.maxX[i] < minX
+                    || node.minZ[i] > maxZ || node.maxZ[i] < minZ) {
+                continue;
+            }
+
+            if (node.leaf) {
+                found.add((ProtectedRegion) node.entries[i]);
+            } else {
+                find((Node) node.entries[i], minX, minZ, maxX, maxZ, found);
+            }
+        }
+    }
+
+    private void insertEntry(ProtectedRegion region,
+            int minX, int minZ, int maxX, int maxZ) {
+        Node node = root;
+
+        // Descend to the leaf that needs the least enlargement
+        while (!node.leaf) {
+            int best = 0;
+            long bestEnlargement = Long.MAX_VALUE;
+            long bestArea = Long.MAX_VALUE;
+
+            for (int i = 0; i < node.size; i++) {
+                long area = area(node.minX[i], node.minZ[i],
+                        node.maxX[i], node.maxZ[i]);
+                long enlarged = area(Math.min(minX, node.minX[i]),
+                        Math.min(minZ, node.minZ[i]),
+                        Math.max(maxX, node.maxX[i]),
+                        Math.max(maxZ, node.maxZ[i]));
+                long enlargement = enlarged - area;
+
+                if (enlargement < bestEnlargement
+                        || (enlargement == bestEnlargement && area < bestArea)) {
+                    best = i;
+                    bestEnlargement = enlargement;
+                    bestArea = area;
+                }
+            }
+
+            node = (Node) node.entries[best];
+        }
+
+        node.addEntry(region, minX, minZ, maxX, maxZ);
+        leaves.put(region, node);
+
+        if (node.size > MAX_ENTRIES) {
+            split(node);
+        } else {
+            adjustUpwards(node);
+        }
+    }
+
+    /**
+     * Split an overflowing node, propagating splits up the tree.
+     * 
+     * @param node node to split
+     */
+    private void split(Node node) {
+        int count = node.size;
+        Object[] entries = new Object[count];
+        int[] minX = new int[count];
+        int[] minZ = new int[count];
+        int[] maxX = new int[count];
+        int[] maxZ = new int[count];
+        System.arraycopy(node.entries, 0, entries, 0, count);
+        System.arraycopy(node.minX, 0, minX, 0, count);
+        System.arraycopy(node.minZ, 0, minZ, 0, count);
+        System.arraycopy(node.maxX, 0, maxX, 0, count);
+        System.arraycopy(node.maxZ, 0, maxZ, 0, count);
+
+        // Pick the two seeds that would waste the most area together
+        int seedA = 0;
+        int seedB = 1;
+        long worst = Long.MIN_VALUE;
+
+        for (int i = 0; i < count; i++) {
+            long areaI = area(minX[i], minZ[i], maxX[i], maxZ[i]);
+            for (int j = i + 1; j < count; j++) {
+                long waste = area(Math.min(minX[i], minX[j]),
+                        Math.min(minZ[i], minZ[j]),
+                        Math.max(maxX[i], maxX[j]),
+                        Math.max(maxZ[i], maxZ[j]))
+                        - areaI - area(minX[j], minZ[j], maxX[j], maxZ[j]);
+                if (waste > worst) {
+                    worst = waste;
+                    seedA = i;
+                    seedB = j;
+                }
+            }
+        }
+
+        Node sibling = new Node(node.leaf);
+        node.clear();
+        node.addEntry(entries[seedA], minX[seedA], minZ[seedA], maxX[seedA], maxZ[seedA]);
+        sibling.addEntry(entries[seedB], minX[seedB], minZ[seedB], maxX[seedB], maxZ[seedB]);
+
+        boolean[] assigned = new boolean[count];
+        assigned[seedA] = true;
+        assigned[seedB] = true;
+        int remaining = count - 2;
+
+        while (remaining > 0) {
+            // Make sure that both nodes end up with the minimum entry count
+            if (node.size + remaining <= MIN_ENTRIES) {
+                for (int i = 0; i < count; i++) {
+                    if (!assigned[i]) {
+                        node.addEntry(entries[i], minX[i], minZ[i], maxX[i], maxZ[i]);
+                        assigned[i] = true;
+                    }
+                }
+                break;
+            }
+
+            if (sibling.size + remaining <= MIN_ENTRIES) {
+                for (int i = 0; i < count; i++) {
+                    if (!assigned[i]) {
+                        sibling.addEntry(entries[i], minX[i], minZ[i], maxX[i], maxZ[i]);
+                        assigned[i] = true;
+                    }
+                }
+                break;
+            }
+
+            // Pick the entry with the greatest preference for one group
+            int next = -1;
+            long nextDiff = -1;
+            long nextCostA = 0;
+            long nextCostB = 0;
+
+            for (int i = 0; i < count; i++) {
+                if (assigned[i]) {
+                    continue;
+                }
+
+                long costA = node.enlargement(minX[i], minZ[i], maxX[i], maxZ[i]);
+                long costB = sibling.enlargement(minX[i], minZ[i], maxX[i], maxZ[i]);
+                long diff = Math.abs(costA - costB);
+
+                if (diff > nextDiff) {
+                    next = i;
+                    nextDiff = diff;
+                    nextCostA = costA;
+                    nextCostB = costB;
+                }
+            }
+
+            Node target;
+            if (nextCostA < nextCostB) {
+                target = node;
+            } else if (nextCostB < nextCostA) {
+                target = sibling;
+            } else if (node.area() != sibling.area()) {
+                target = node.area() < sibling.area() ? node : sibling;
+            } else {
+                target = node.size <= sibling.size ? node : sibling;
+            }
+
+            target.addEntry(entries[next], minX[next], minZ[next], maxX[next], maxZ[next]);
+            assigned[next] = true;
+            remaining--;
+        }
+
+        // Re-point the moved entries at their new node
+        for (int i = 0; i < sibling.size; i++) {
+            if (sibling.leaf) {
+                leaves.put((ProtectedRegion) sibling.entries[i], sibling);
+            } else {
+                ((Node) sibling.entries[i]).parent = sibling;
+            }
+        }
+
+        if (node == root) {
+            Node newRoot = new Node(false);
+            newRoot.addEntry(node, node.bMinX, node.bMinZ, node.bMaxX, node.bMaxZ);
+            newRoot.addEntry(sibling, sibling.bMinX, sibling.bMinZ, sibling.bMaxX, sibling.bMaxZ);
+            node.parent = newRoot;
+            sibling.parent = newRoot;
+            root = newRoot;
+            return;
+        }
+
+        Node parent = node.parent;
+        parent.updateEntry(parent.indexOf(node), node);
+        parent.addEntry(sibling, sibling.bMinX, sibling.bMinZ, sibling.bMaxX, sibling.bMaxZ);
+        sibling.parent = parent;
+
+        if (parent.size > MAX_ENTRIES) {
+            split(parent);
+        } else {
+            adjustUpwards(parent);
+        }
+    }
+
+    /**
+     * Refresh the bounds stored for a node in its ancestors.
+     * 
+     * @param node node that changed
+     */
+    private void adjustUpwards(Node node) {
+        while (node.parent != null) {
+            Node parent = node.parent;
+            parent.updateEntry(parent.indexOf(node), node);
+            node = parent;
+        }
+    }
+
+    /**
+     * Remove underfull nodes after a deletion and reinsert their regions.
+     * 
+     * @param leaf leaf that an entry was removed from
+     */
+    private void condense(Node leaf) {
+        List<ProtectedRegion> orphans = new ArrayList<ProtectedRegion>();
+        Node node = leaf;
+
+        while (node != root) {
+            Node parent = node.parent;
+
+            if (node.size < MIN_ENTRIES) {
+                parent.removeEntry(parent.indexOf(node));
+                collect(node, orphans);
+            } else {
+                parent.updateEntry(parent.indexOf(node), node);
+            }
+
+            node = parent;
+        }
+
+        root.recalculateBounds();
+
+        // Shorten the tree while the root has only one child
+        while (!root.leaf && root.size == 1) {
+            root = (Node) root.entries[0];
+            root.parent = null;
+        }
+
+        if (!root.leaf && root.size == 0) {
+            root = new Node(true);
+        }
+
+        for (ProtectedRegion region : orphans) {
+            leaves.remove(region);
+        }
+
+        for (ProtectedRegion region : orphans) {
+            insert(region);
+        }
+    }
+
+    /**
+     * Check that the bounds of every node are exactly those of its entries,
+     * that every child node is stored with its own bounds, and that no
+     * entries are kept past the size of a node.
+     * 
+     * @throws IllegalStateException if the tree is inconsistent
+     */
+    void verify() {
+        verify(root);
+    }
+
+    private static void verify(Node node) {
+        int minX = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxZ = Integer.MIN_VALUE;
+
+        for (int i = 0; i < node.size; i++) {
+            minX = Math.min(minX, node.minX[i]);
+            minZ = Math.min(minZ, node.minZ[i]);
+            maxX = Math.max(maxX, node.maxX[i]);
+            maxZ = Math.max(maxZ, node.maxZ[i]);
+
+            if (!node.leaf) {
+                Node child = (Node) node.entries[i];
+                if (child.parent != node || child.bMinX != node.minX[i]
+                        || child.bMinZ != node.minZ[i] || child.bMaxX != node.maxX[i]
+                        || child.bMaxZ != node.maxZ[i]) {
+                    throw new IllegalStateException("R-tree child entry is stale");
+                }
+                verify(child);
+            }
+        }
+
+        if (node.bMinX != minX || node.bMinZ != minZ
+                || node.bMaxX != maxX || node.bMaxZ != maxZ) {
+            throw new IllegalStateException("R-tree node bounds are not tight");
+        }
+
+        for (int i = node.size; i < node.entries.length; i++) {
+            if (node.entries[i] != null) {
+                throw new IllegalStateException("R-tree node keeps a removed entry");
+            }
+        }
+    }
+
+    private static void collect(Node node, List<ProtectedRegion> found) {
+        for (int i = 0; i < node.size; i++) {
+            if (node.leaf) {
+                found.add((ProtectedRegion) node.entries[i]);
+            } else {
+                collect((Node) node.entries[i], found);
+            }
+        }
+    }
+
+    private static long area(int minX, int minZ, int maxX, int maxZ) {
+        return ((long) maxX - minX + 1) * ((long) maxZ - minZ + 1);
+    }
+
+    /**
+     * A node in the tree. Entries are either child nodes or, for leaves,
+     * regions, with their bounds stored in parallel arrays.
+     */
+    private static final class Node {
+        final boolean leaf;
+        Node parent;
+        int size;
+        final Object[] entries = new Object[MAX_ENTRIES + 1];
+        final int[] minX = new int[MAX_ENTRIES + 1];
+        final int[] minZ = new int[MAX_ENTRIES + 1];
+        final int[] maxX = new int[MAX_ENTRIES + 1];
+        final int[] maxZ = new int[MAX_ENTRIES + 1];
+        int bMinX = Integer.MAX_VALUE;
+        int bMinZ = Integer.MAX_VALUE;
+        int bMaxX = Integer.MIN_VALUE;
+        int bMaxZ = Integer.MIN_VALUE;
+
+        Node(boolean leaf) {
+            this.leaf = leaf;
+        }
+
+        int indexOf(Object entry) {
+            for (int i = 0; i < size; i++) {
+                if (entries[i] == entry) {
+                    return i;
+                }
+            }
+
+            throw new IllegalStateException("R-tree entry is missing from its node");
+        }
+
+        void addEntry(Object entry, int minX, int minZ, int maxX, int maxZ) {
+            entries[size] = entry;
+            this.minX[size] = minX;
+            this.minZ[size] = minZ;
+            this.maxX[size] = maxX;
+            this.maxZ[size] = maxZ;
+            size++;
+            include(minX, minZ, maxX, maxZ);
+        }
+
+        void updateEntry(int index, Node child) {
+            minX[index] = child.bMinX;
+            minZ[index] = child.bMinZ;
+            maxX[index] = child.bMaxX;
+            maxZ[index] = child.bMaxZ;
+            recalculateBounds();
+        }
+
+        void removeEntry(int index) {
+            size--;
+            entries[index] = entries[size];
+            minX[index] = minX[size];
+            minZ[index] = minZ[size];
+            maxX[index] = maxX[size];
+            maxZ[index] = maxZ[size];
+            entries[size] = null;
+            recalculateBounds();
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                entries[i] = null;
+            }
+            size = 0;
+            recalculateBounds();
+        }
+
+        void recalculateBounds() {
+            bMinX = Integer.MAX_VALUE;
+            bMinZ = Integer.MAX_VALUE;
+            bMaxX = Integer.MIN_VALUE;
+            bMaxZ = Integer.MIN_VALUE;
+
+            for (int i = 0; i < size; i++) {
+                include(minX[i], minZ[i], maxX[i], maxZ[i]);
+            }
+        }
+
+        void include(int minX, int minZ, int maxX, int maxZ) {
+            bMinX = Math.min(bMinX, minX);
+            bMinZ = Math.min(bMinZ, minZ);
+            bMaxX = Math.max(bMaxX, maxX);
+            bMaxZ = Math.max(bMaxZ, maxZ);
+        }
+
+        long area() {
+            return size == 0 ? 0 : RegionRTree.area(bMinX, bMinZ, bMaxX, bMaxZ);
+        }
+
+        long enlargement(int minX, int minZ, int maxX, int maxZ) {
+            return RegionRTree.area(Math.min(bMinX, minX), Math.min(bMinZ, minZ),
+                    Math.max(bMaxX, maxX), Math.max(bMaxZ, maxZ)) - area();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sk89q.worldguard.protection.managers;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+/**
+ * Maps region IDs to regions, ignoring case. Keys are stored in lowercase,
+ * but lookups fold the case of the given ID while hashing and comparing it,
+ * so looking up a region does not create a lowercase copy of the ID. The
+ * global region is also kept in a field of its own.
+ * 
+ * <p>The map iterates in the order of the IDs. Its views can't be
+ * modified; use {@link #put(String, ProtectedRegion)} and
+ * {@link #remove(Object)} instead.</p>
+ */
+class RegionRegistry extends AbstractMap<String, ProtectedRegion> {
+
+    private static final String GLOBAL_ID = "__global__";
+
+    private final Map<String, ProtectedRegion> sorted = new TreeMap<String, ProtectedRegion>();
+    private final Map<String, ProtectedRegion> view = Collections.unmodifiableMap(sorted);
+    /**
+     * Open addressing hash table with linear probing, keyed by the folded
+     * hash of the lowercase IDs.
+     */
+    private String[] keys = new String[16];
+    private ProtectedRegion[] values = new ProtectedRegion[16];
+    private ProtectedRegion global;
+
+    /**
+     * Construct an empty registry.
+     */
+    public RegionRegistry() {
+    }
+
+    /**
+     * Construct a registry holding the given regions.
+     * 
+     * @param regions
+     */
+    public RegionRegistry(Map<String, ProtectedRegion> regions) {
+        for (Map.Entry<String, ProtectedRegion> entry : regions.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Get the global region.
+     * 
+     * @return the global region, or null if there is none
+     */
+    public ProtectedRegion getGlobal() {
+        return global;
+    }
+
+    @Override
+    public ProtectedRegion get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int index = find((String) key);
+        return index != -1 ? values[index] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && find((String) key) != -1;
+    }
+
+    /**
+     * Add a region under an ID, replacing any region with the same ID
+     * in any case.
+     * 
+     * @param id
+     * @param region
+     * @return the replaced region, or null
+     */
+    @Override
+    public ProtectedRegion put(String id, ProtectedRegion region) {
+        String key = toKey(id);
+        ProtectedRegion existing = sorted.put(key, region);
+
+        if (existing != null) {
+            values[find(key)] = region;
+        } else {
+            if ((sorted.size() << 1) > keys.length) {
+                resize(keys.length << 1);
+            }
+            insert(key, region);
+        }
+
+        if (key.equals(GLOBAL_ID)) {
+            global = region;
+        }
+
+        return existing;
+    }
+
+    @Override
+    public ProtectedRegion remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+
+        int index = find((String) key);
+        if (index == -1) {
+            return null;
+        }
+
+        String storedKey = keys[index];
+        ProtectedRegion region = values[index];
+        delete(index);
+        sorted.remove(storedKey);
+
+        if (storedKey.equals(GLOBAL_ID)) {
+            global = null;
+        }
+
+        return region;
+    }
+
+    @Override
+    public void clear() {
+        sorted.clear();
+        keys = new String[16];
+        values = new ProtectedRegion[16];
+        global = null;
+    }
+
+    @Override
+    public int size() {
+        return sorted.size();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return view.keySet();
+    }
+
+    @Override
+    public Collection<ProtectedRegion> values() {
+        return view.values();
+    }
+
+    @Override
+    public Set<Map.Entry<String, ProtectedRegion>> entrySet() {
+        return view.entrySet();
+    }
+
+    /**
+     * Find the slot of an ID in the table.
+     * 
+     * @param id ID in any case
+     * @return the slot, or -1
+     */
+    private int find(String id) {
+        int mask = keys.length - 1;
+        int index = hash(id) & mask;
+
+        while (keys[index] != null) {
+            if (equalsFolded(keys[index], id)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    private void insert(String key, ProtectedRegion region) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+
+        while (keys[index] != null) {
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = region;
+    }
+
+    /**
+     * Empty a slot, moving later entries of the same run back so that
+     * every entry stays reachable from its home slot.
+     * 
+     * @param index
+     */
+    private void delete(int index) {
+        int mask = keys.length - 1;
+        int hole = index;
+        int next = (index + 1) & mask;
+
+        while (keys[next] != null) {
+            int home = hash(keys[next]) & mask;
+
+            // Move the entry if the hole lies between its home and its slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        keys[hole] = null;
+        values[hole] = null;
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        ProtectedRegion[] oldValues = values;
+        keys = new String[capacity];
+        values = new ProtectedRegion[capacity];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                insert(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int hash(String id) {
+        int hash = 0;
+        for (int i = 0; i < id.length(); i++) {
+            hash = 31 * hash + fold(id.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Fold the case of an ID the same way as lookups do, independent of
+     * the default locale.
+     * 
+     * @param id ID in any case
+     * @return folded ID
+     */
+    private static String toKey(String id) {
+        char[] chars = new char[id.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = fold(id.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    private static boolean equalsFolded(String a, String b) {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        for (int i = 0; i < a.length(); i++) {
+            if (fold(a.charAt(i)) != fold(b.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char fold(char c) {
+        if (c < 128) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(c);
+    }
+}
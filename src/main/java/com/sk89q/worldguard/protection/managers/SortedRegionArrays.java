@@ -0,0 +1,149 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldguard.protection.managers;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+/**
+ * Helpers for arrays of regions kept in their natural order (descending
+ * priority, then ID). Arrays are never modified; every change returns a
+ * new array, so an array can be read while it is being replaced.
+ */
+final class SortedRegionArrays {
+
+    static final ProtectedRegion[] EMPTY = new ProtectedRegion[0];
+
+    private SortedRegionArrays() {
+    }
+
+    /**
+     * Return a copy of a sorted array with a region inserted in order.
+     * 
+     * @param array sorted array
+     * @param region region to insert
+     * @return sorted array
+     */
+    static ProtectedRegion[] insert(ProtectedRegion[] array, ProtectedRegion region) {
+        int index = Arrays.binarySearch(array, region);
+        if (index >= 0) {
+            if (array[index] == region) {
+                return array;
+            }
+        } else {
+            index = -index - 1;
+        }
+
+        ProtectedRegion[] newArray = new ProtectedRegion[array.length + 1];
+        System.arraycopy(array, 0, newArray, 0, index);
+        newArray[index] = region;
+        System.arraycopy(array, index, newArray, index + 1, array.length - index);
+        return newArray;
+    }
+
+    /**
+     * Return a copy of an array with a region removed.
+     * 
+     * @param array array
+     * @param region region to remove
+     * @return array without the region
+     */
+    static ProtectedRegion[] remove(ProtectedRegion[] array, ProtectedRegion region) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == region) {
+                ProtectedRegion[] newArray = new ProtectedRegion[array.length - 1];
+                System.arraycopy(array, 0, newArray, 0, i);
+                System.arraycopy(array, i + 1, newArray, i, newArray.length - i);
+                return newArray;
+            }
+        }
+
+        return array;
+    }
+
+    /**
+     * Return a sorted copy of an array.
+     * 
+     * @param array array
+     * @return sorted array
+     */
+    static ProtectedRegion[] sorted(ProtectedRegion[] array) {
+        ProtectedRegion[] newArray = array.clone();
+        Arrays.sort(newArray);
+        return newArray;
+    }
+
+    /**
+     * Merge two sorted arrays, dropping regions that appear in both.
+     * 
+     * @param a sorted array
+     * @param b sorted array
+     * @return sorted array
+     */
+    static ProtectedRegion[] merge(ProtectedRegion[] a, ProtectedRegion[] b) {
+        if (a.length == 0) {
+            return b;
+        } else if (b.length == 0) {
+            return a;
+        }
+
+        ProtectedRegion[] merged = new ProtectedRegion[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+
+        while (i < a.length && j < b.length) {
+            int cmp = a[i].compareTo(b[j]);
+            if (cmp < 0) {
+                merged[n++] = a[i++];
+            } else if (cmp > 0) {
+                merged[n++] = b[j++];
+            } else {
+                merged[n++] = a[i++];
+                j++;
+            }
+        }
+
+        while (i < a.length) {
+            merged[n++] = a[i++];
+        }
+        while (j < b.length) {
+            merged[n++] = b[j++];
+        }
+
+        return n == merged.length ? merged : Arrays.copyOf(merged, n);
+    }
+
+    /**
+     * Add a region to a list that is in order, keeping it in order. Query
+     * results hold only a few regions, so this is cheaper than sorting the
+     * list afterwards.
+     * 
+     * @param list sorted list
+     * @param region region to add
+     */
+    static void addInOrder(List<ProtectedRegion> list, ProtectedRegion region) {
+        int i = list.size();
+        while (i > 0 && list.get(i - 1).compareTo(region) > 0) {
+            i--;
+        }
+        list.add(i, region);
+    }
+}
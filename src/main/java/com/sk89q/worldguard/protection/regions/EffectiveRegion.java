@@ -0,0 +1,215 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldguard.protection.regions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.sk89q.worldguard.LocalPlayer;
+import com.sk89q.worldguard.domains.DefaultDomain;
+import com.sk89q.worldguard.protection.flags.Flag;
+
+/**
+ * An immutable view of a region with everything that it inherits from its
+ * parents resolved: the chain of ancestors, the owners and members of the
+ * region and all of its ancestors, and the flag values with the values of
+ * the closest region in the chain taking precedence.
+ * 
+ * <p>Views are obtained from {@link ProtectedRegion#getEffective()}, which
+ * builds a new view when the region or one of its ancestors has changed
+ * since the last one was built.</p>
+ */
+public final class EffectiveRegion {
+
+    /**
+     * Indexes of the owner and member sets in the membership caches of
+     * players. The view itself is the key, so results are dropped along
+     * with the view when the owners or members change.
+     */
+    private static final int OWNERS = 0;
+    private static final int MEMBERS = 1;
+
+    private final ProtectedRegion[] ancestors;
+
+    /**
+     * Versions of the region and its ancestors when the view was built.
+     */
+    private final int[] versions;
+    private final ProtectedRegion region;
+    private final Set<String> ownerPlayers;
+    private final Set<String> ownerGroups;
+    private final Set<String> memberPlayers;
+    private final Set<String> memberGroups;
+    private final FlagArray flags;
+
+    /**
+     * Build the view of a region.
+     * 
+     * @param region
+     */
+    EffectiveRegion(ProtectedRegion region) {
+        List<ProtectedRegion> chain = new ArrayList<ProtectedRegion>();
+        ProtectedRegion curParent = region.getParent();
+        while (curParent != null) {
+            chain.add(curParent);
+            curParent = curParent.getParent();
+        }
+
+        this.region = region;
+        this.ancestors = chain.toArray(new ProtectedRegion[chain.size()]);
+        this.versions = new int[ancestors.length + 1];
+
+        Set<String> ownerPlayers = new HashSet<String>();
+        Set<String> ownerGroups = new HashSet<String>();
+        Set<String> memberPlayers = new HashSet<String>();
+        Set<String> memberGroups = new HashSet<String>();
+        FlagArray flags = FlagArray.EMPTY;
+
+        // Apply the farthest ancestor first so that closer regions override
+        // its flags
+        for (int i = ancestors.length; i >= 0; i--) {
+            ProtectedRegion curRegion = i == 0 ? region : ancestors[i - 1];
+            versions[i] = curRegion.getVersion();
+
+            DefaultDomain owners = curRegion.getOwners();
+            DefaultDomain members = curRegion.getMembers();
+            ownerPlayers.addAll(owners.getPlayers());
+            ownerGroups.addAll(owners.getGroups());
+            memberPlayers.addAll(members.getPlayers());
+            memberGroups.addAll(members.getGroups());
+
+            FlagArray regionFlags = curRegion.getFlagArray();
+            for (int j = 0; j < regionFlags.size(); j++) {
+                flags = flags.with(regionFlags.ordinalAt(j), regionFlags.valueAt(j));
+            }
+        }
+
+        this.ownerPlayers = compact(ownerPlayers);
+        this.ownerGroups = compact(ownerGroups);
+        this.memberPlayers = compact(memberPlayers);
+        this.memberGroups = compact(memberGroups);
+        this.flags = flags;
+    }
+
+    private static Set<String> compact(Set<String> set) {
+        return set.isEmpty() ? Collections.<String>emptySet() : set;
+    }
+
+    /**
+     * Checks whether neither the region nor any of its ancestors has
+     * changed since this view was built.
+     * 
+     * @return whether the view is current
+     */
+    public boolean isCurrent() {
+        if (region.getVersion() != versions[0]) {
+            return false;
+        }
+
+        for (int i = 0; i < ancestors.length; i++) {
+            if (ancestors[i].getVersion() != versions[i + 1]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the region that this is a view of.
+     * 
+     * @return region
+     */
+    public ProtectedRegion getRegion() {
+        return region;
+    }
+
+    /**
+     * Get the number of ancestors.
+     * 
+     * @return number of ancestors
+     */
+    public int getAncestorCount() {
+        return ancestors.length;
+    }
+
+    /**
+     * Get an ancestor. The parent is at index 0, its parent at index 1,
+     * and so on.
+     * 
+     * @param index index
+     * @return ancestor
+     */
+    public ProtectedRegion getAncestor(int index) {
+        return ancestors[index];
+    }
+
+    /**
+     * Checks whether a player is an owner of the region or any of its
+     * ancestors.
+     * 
+     * @param player player to check
+     * @return whether an owner
+     */
+    public boolean isOwner(LocalPlayer player) {
+        return player.getMembershipCache().contains(this, OWNERS,
+                ownerPlayers, ownerGroups);
+    }
+
+    /**
+     * Checks whether a player is a member or owner of the region or any of
+     * its ancestors.
+     * 
+     * @param player player to check
+     * @return whether an owner or member
+     */
+    public boolean isMember(LocalPlayer player) {
+        return isOwner(player) || isMemberOnly(player);
+    }
+
+    /**
+     * Checks whether a player is a member of the region or any of its
+     * ancestors.
+     * 
+     * @param player player to check
+     * @return whether a member
+     */
+    public boolean isMemberOnly(LocalPlayer player) {
+        return player.getMembershipCache().contains(this, MEMBERS,
+                memberPlayers, memberGroups);
+    }
+
+    /**
+     * Get the value of a flag, as set on the region or inherited from the
+     * closest ancestor that sets it.
+     * 
+     * @param <T>
+     * @param <V>
+     * @param flag
+     * @return value or null if neither the region nor an ancestor sets it
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Flag<V>, V> V getFlag(T flag) {
+        return (V) flags.get(flag.getOrdinal());
+    }
+}
@@ -0,0 +1,198 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldguard.protection.regions;
+
+import java.util.Map;
+
+import com.sk89q.worldguard.protection.flags.Flag;
+
+/**
+ * Immutable flag values of a region, indexed by flag ordinal. A bit mask
+ * records which flags are set and the values of the set flags are packed
+ * in ordinal order, so a region only pays for the flags that it has.
+ * Changes return a new array, so the values can be read while they are
+ * being replaced.
+ */
+final class FlagArray {
+
+    static final FlagArray EMPTY = new FlagArray(new long[0], new Object[0]);
+
+    private final long[] mask;
+    private final Object[] values;
+
+    private FlagArray(long[] mask, Object[] values) {
+        this.mask = mask;
+        this.values = values;
+    }
+
+    /**
+     * Build an array from a map of flags.
+     * 
+     * @param flags
+     * @return array
+     */
+    static FlagArray of(Map<Flag<?>, Object> flags) {
+        FlagArray array = EMPTY;
+
+        for (Map.Entry<Flag<?>, Object> entry : flags.entrySet()) {
+            if (entry.getValue() != null) {
+                array = array.with(entry.getKey().getOrdinal(), entry.getValue());
+            }
+        }
+
+        return array;
+    }
+
+    /**
+     * Get the number of set flags.
+     * 
+     * @return number of flags
+     */
+    int size() {
+        return values.length;
+    }
+
+    /**
+     * Get the value of a flag.
+     * 
+     * @param ordinal ordinal of the flag
+     * @return value or null if the flag is not set
+     */
+    Object get(int ordinal) {
+        int word = ordinal >> 6;
+
+        if (word >= mask.length || (mask[word] & (1L << ordinal)) == 0) {
+            return null;
+        }
+
+        return values[rank(ordinal)];
+    }
+
+    /**
+     * Get the ordinal of the set flag at an index.
+     * 
+     * @param index index between 0 and {@link #size()}
+     * @return ordinal
+     */
+    int ordinalAt(int index) {
+        for (int word = 0; word < mask.length; word++) {
+            int count = Long.bitCount(mask[word]);
+
+            if (index < count) {
+                long bits = mask[word];
+                for (int i = 0; i < index; i++) {
+                    bits &= bits - 1;
+                }
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+
+            index -= count;
+        }
+
+        throw new IndexOutOfBoundsException();
+    }
+
+    /**
+     * Get the value of the set flag at an index.
+     * 
+     * @param index index between 0 and {@link #size()}
+     * @return value
+     */
+    Object valueAt(int index) {
+        return values[index];
+    }
+
+    /**
+     * Return a copy with a flag set.
+     * 
+     * @param ordinal ordinal of the flag
+     * @param value value, not null
+     * @return new array
+     */
+    FlagArray with(int ordinal, Object value) {
+        int word = ordinal >> 6;
+        long bit = 1L << ordinal;
+        int index = rank(ordinal);
+
+        if (word < mask.length && (mask[word] & bit) != 0) {
+            Object[] newValues = values.clone();
+            newValues[index] = value;
+            return new FlagArray(mask, newValues);
+        }
+
+        long[] newMask = new long[Math.max(mask.length, word + 1)];
+        System.arraycopy(mask, 0, newMask, 0, mask.length);
+        newMask[word] |= bit;
+
+        Object[] newValues = new Object[values.length + 1];
+        System.arraycopy(values, 0, newValues, 0, index);
+        newValues[index] = value;
+        System.arraycopy(values, index, newValues, index + 1, values.length - index);
+
+        return new FlagArray(newMask, newValues);
+    }
+
+    /**
+     * Return a copy with a flag removed.
+     * 
+     * @param ordinal ordinal of the flag
+     * @return new array, or this array if the flag was not set
+     */
+    FlagArray without(int ordinal) {
+        int word = ordinal >> 6;
+        long bit = 1L << ordinal;
+
+        if (word >= mask.length || (mask[word] & bit) == 0) {
+            return this;
+        }
+
+        if (values.length == 1) {
+            return EMPTY;
+        }
+
+        int index = rank(ordinal);
+        long[] newMask = mask.clone();
+        newMask[word] &= ~bit;
+
+        Object[] newValues = new Object[values.length - 1];
+        System.arraycopy(values, 0, newValues, 0, index);
+        System.arraycopy(values, index + 1, newValues, index, newValues.length - index);
+
+        return new FlagArray(newMask, newValues);
+    }
+
+    /**
+     * Get the number of set flags with a lower ordinal.
+     */
+    private int rank(int ordinal) {
+        int word = ordinal >> 6;
+        int rank = 0;
+
+        for (int i = 0; i < word && i < mask.length; i++) {
+            rank += Long.bitCount(mask[i]);
+        }
+
+        if (word < mask.length) {
+            rank += Long.bitCount(mask[word] & ((1L << ordinal) - 1));
+        }
+
+        return rank;
+    }
+}
@@ -52,6 +52,11 @@ public class GlobalProtectedRegion extends ProtectedRegion {
         return false;
     }
 
+    @Override
+    public boolean contains(int x, int y, int z) {
+        return false;
+    }
+
     @Override
     public String getTypeName() {
         return "global";
@@ -0,0 +1,259 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sk89q.worldguard.protection.regions;
+
+/**
+ * A grid over the chunks covered by a polygon that speeds up containment
+ * tests for polygons with many points. Every cell is either completely
+ * inside the polygon, completely outside of it, or crossed by its outline.
+ * Only points in the last kind of cell need an edge test, and that test
+ * only looks at the edges crossing the cell. The results are the same as
+ * those of {@link RegionIntersection#polygonContains(int[], int[], int, int)}.
+ */
+final class PolygonGrid {
+
+    private static final byte OUTSIDE = 0;
+    private static final byte INSIDE = 1;
+    private static final byte BOUNDARY = 2;
+
+    private final int[] xs;
+    private final int[] zs;
+    private final int originX;
+    private final int originZ;
+    private final int width;
+    private final byte[] states;
+    /**
+     * Indexes of the edges crossing each boundary cell. An edge is given by
+     * the index of its second point.
+     */
+    private final int[][] edges;
+    /**
+     * For each boundary cell, one bit per block column telling whether an
+     * odd number of edges cross the column above the cell.
+     */
+    private final char[] above;
+
+    private PolygonGrid(int[] xs, int[] zs, int originX, int originZ,
+            int width, int length) {
+        this.xs = xs;
+        this.zs = zs;
+        this.originX = originX;
+        this.originZ = originZ;
+        this.width = width;
+        states = new byte[width * length];
+        edges = new int[width * length][];
+        above = new char[width * length];
+    }
+
+    /**
+     * Build a grid for a polygon.
+     * 
+     * @param xs x coordinates of the polygon
+     * @param zs z coordinates of the polygon
+     * @param minX minimum x of the polygon
+     * @param minZ minimum z of the polygon
+     * @param maxX maximum x of the polygon
+     * @param maxZ maximum z of the polygon
+     * @param maxCells the maximum number of cells to use
+     * @return the grid, or null if it would need more cells
+     */
+    static PolygonGrid build(int[] xs, int[] zs, int minX, int minZ,
+            int maxX, int maxZ, int maxCells) {
+        int originX = minX >> 4;
+        int originZ = minZ >> 4;
+        long width = (maxX >> 4) - originX + 1;
+        long length = (maxZ >> 4) - originZ + 1;
+
+        if (width * length > maxCells) {
+            return null;
+        }
+
+        PolygonGrid grid = new PolygonGrid(xs, zs, originX, originZ,
+                (int) width, (int) length);
+        grid.addEdges();
+        grid.classify();
+        return grid;
+    }
+
+    /**
+     * Record every edge in the cells that it crosses.
+     */
+    private void addEdges() {
+        int numPoints = xs.length;
+        int[] counts = new int[states.length];
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0, prev = numPoints - 1; i < numPoints; prev = i++) {
+                int x1 = xs[prev];
+                int z1 = zs[prev];
+                int x2 = xs[i];
+                int z2 = zs[i];
+
+                for (int cx = (Math.min(x1, x2) >> 4) - originX;
+                        cx <= (Math.max(x1, x2) >> 4) - originX; cx++) {
+                    for (int cz = (Math.min(z1, z2) >> 4) - originZ;
+                            cz <= (Math.max(z1, z2) >> 4) - originZ; cz++) {
+                        int cellX = (originX + cx) << 4;
+                        int cellZ = (originZ + cz) << 4;
+
+                        if (!RegionIntersection.segmentIntersectsRectangle(x1, z1, x2, z2,
+                                cellX, cellZ, cellX + 15, cellZ + 15)) {
+                            continue;
+                        }
+
+                        int index = cz * width + cx;
+                        if (pass == 0) {
+                            counts[index]++;
+                        } else {
+                            edges[index][--counts[index]] = i;
+                        }
+                    }
+                }
+            }
+
+            if (pass == 0) {
+                for (int index = 0; index < counts.length; index++) {
+                    if (counts[index] > 0) {
+                        edges[index] = new int[counts[index]];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Work out the state of every cell. A cell that no edge crosses is
+     * entirely on one side of the outline, so testing one of its blocks
+     * is enough.
+     */
+    private void classify() {
+        for (int index = 0; index < states.length; index++) {
+            int cellX = (originX + index % width) << 4;
+            int cellZ = (originZ + index / width) << 4;
+
+            if (edges[index] == null) {
+                states[index] = RegionIntersection.polygonContains(xs, zs, cellX, cellZ)
+                        ? INSIDE : OUTSIDE;
+                continue;
+            }
+
+            states[index] = BOUNDARY;
+
+            char bits = 0;
+            for (int column = 0; column < 16; column++) {
+                if (countCrossings(cellX + column, cellZ + 15) % 2 != 0) {
+                    bits |= 1 << column;
+                }
+            }
+            above[index] = bits;
+        }
+    }
+
+    /**
+     * Count the edges that the ray from a point towards positive z crosses,
+     * with the same rules as the containment test.
+     */
+    private int countCrossings(int x, int z) {
+        int numPoints = xs.length;
+        int count = 0;
+
+        for (int i = 0, prev = numPoints - 1; i < numPoints; prev = i++) {
+            if (crosses(prev, i, x, z)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Checks whether the ray from a point towards positive z crosses an
+     * edge. Each edge covers the columns after its lower x up to and
+     * including its higher x, so a ray through a point is counted once.
+     */
+    private boolean crosses(int prev, int i, int x, int z) {
+        int x1, z1, x2, z2;
+
+        if (xs[i] > xs[prev]) {
+            x1 = xs[prev];
+            z1 = zs[prev];
+            x2 = xs[i];
+            z2 = zs[i];
+        } else {
+            x1 = xs[i];
+            z1 = zs[i];
+            x2 = xs[prev];
+            z2 = zs[prev];
+        }
+
+        return x1 < x && x <= x2 && cross(x1, z1, x2, z2, x, z) < 0;
+    }
+
+    private static long cross(int x1, int z1, int x2, int z2, int x, int z) {
+        return ((long) z - z1) * ((long) x2 - x1) - ((long) z2 - z1) * ((long) x - x1);
+    }
+
+    /**
+     * Checks whether the polygon contains a point. The point must be within
+     * the bounding box of the polygon.
+     * 
+     * @param x x
+     * @param z z
+     * @return whether the point is inside
+     */
+    boolean contains(int x, int z) {
+        int index = ((z >> 4) - originZ) * width + (x >> 4) - originX;
+
+        switch (states[index]) {
+            case INSIDE:
+                return true;
+            case OUTSIDE:
+                return false;
+            default:
+                break;
+        }
+
+        // Crossings above the cell were counted when the grid was built,
+        // so only the edges in this cell are left
+        int top = (z | 15);
+        int numPoints = xs.length;
+        boolean inside = ((above[index] >> (x & 15)) & 1) != 0;
+
+        for (int i : edges[index]) {
+            int prev = i == 0 ? numPoints - 1 : i - 1;
+            int x1 = xs[prev];
+            int z1 = zs[prev];
+            int x2 = xs[i];
+            int z2 = zs[i];
+
+            // On the outline
+            if (x >= Math.min(x1, x2) && x <= Math.max(x1, x2)
+                    && z >= Math.min(z1, z2) && z <= Math.max(z1, z2)
+                    && cross(x1, z1, x2, z2, x, z) == 0) {
+                return true;
+            }
+
+            if (crosses(prev, i, x, z) && !crosses(prev, i, x, top)) {
+                inside = !inside;
+            }
+        }
+
+        return inside;
+    }
+}
@@ -22,7 +22,6 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.sk89q.worldedit.BlockVector;
-import com.sk89q.worldedit.BlockVector2D;
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldguard.protection.UnsupportedIntersectionException;
 
@@ -41,6 +40,12 @@ public class ProtectedCuboidRegion extends ProtectedRegion {
      * Store the second point.
      */
     private BlockVector max;
+    /**
+     * Block coordinates of the two points, so that containment tests
+     * don't go through the vectors.
+     */
+    private int minX, minY, minZ;
+    private int maxX, maxY, maxZ;
 
     /**
      * Construct a new instance of this cuboid region.
@@ -51,8 +56,8 @@ public class ProtectedCuboidRegion extends ProtectedRegion {
      */
     public ProtectedCuboidRegion(String id, BlockVector min, BlockVector max) {
         super(id);
-        this.min = min;
-        this.max = max;
+        setMinimumPoint(min);
+        setMaximumPoint(max);
     }
 
     /**
@@ -72,6 +77,9 @@ public class ProtectedCuboidRegion extends ProtectedRegion {
      */
     public void setMinimumPoint(BlockVector pt) {
         min = pt;
+        minX = pt.getBlockX();
+        minY = pt.getBlockY();
+        minZ = pt.getBlockZ();
     }
 
     /**
@@ -91,6 +99,9 @@ public class ProtectedCuboidRegion extends ProtectedRegion {
      */
     public void setMaximumPoint(BlockVector pt) {
         max = pt;
+        maxX = pt.getBlockX();
+        maxY = pt.getBlockY();
+        maxZ = pt.getBlockZ();
     }
 
     /**
@@ -101,9 +112,19 @@ public class ProtectedCuboidRegion extends ProtectedRegion {
         final double x = pt.getX();
         final double y = pt.getY();
         final double z = pt.getZ();
-        return x >= min.getBlockX() && x < max.getBlockX()+1
-                && y >= min.getBlockY() && y < max.getBlockY()+1
-                && z >= min.getBlockZ() && z < max.getBlockZ()+1;
+        return x >= minX && x < maxX+1
+                && y >= minY && y < maxY+1
+                && z >= minZ && z < maxZ+1;
+    }
+
+    /**
+     * Checks to see if a block is inside this region.
+     */
+    @Override
+    public boolean contains(int x, int y, int z) {
+        return x >= minX && x <= maxX
+                && y >= minY && y <= maxY
+                && z >= minZ && z <= maxZ;
     }
 
 
@@ -134,121 +155,11 @@ public class ProtectedCuboidRegion extends ProtectedRegion {
 
     @Override
     public List<ProtectedRegion> getIntersectingRegions(List<ProtectedRegion> regions) throws UnsupportedIntersectionException {
-        int numRegions = regions.size();
         List<ProtectedRegion> intersectingRegions = new ArrayList<ProtectedRegion>();
-        int i, i2, i3;
-
-        for (i = 0; i < numRegions; i++) {
-            ProtectedRegion region = regions.get(i);
-            BlockVector rMinPoint = region.getMinimumPoint();
-            BlockVector rMaxPoint = region.getMaximumPoint();
-
-            // Check whether the region is outside the min and max vector
-            if ((rMinPoint.getBlockX() < min.getBlockX() && rMaxPoint.getBlockX() < min.getBlockX()) 
-                            || (rMinPoint.getBlockX() > max.getBlockX() && rMaxPoint.getBlockX() > max.getBlockX())
-                    && ((rMinPoint.getBlockY() < min.getBlockY() && rMaxPoint.getBlockY() < min.getBlockY())
-                            || (rMinPoint.getBlockY() > max.getBlockY() && rMaxPoint.getBlockY() > max.getBlockY()))
-                    && ((rMinPoint.getBlockZ() < min.getBlockZ() && rMaxPoint.getBlockZ() < min.getBlockZ())
-                            || (rMinPoint.getBlockZ() > max.getBlockZ() && rMaxPoint.getBlockZ() > max.getBlockZ())) ) {
-                //intersectingRegions.add(regions.get(i));
-                continue;
-            }
-
-            // Check whether the regions points are inside the other region
-            if (region.contains(new Vector(min.getBlockX(), min.getBlockY(), min.getBlockZ()))
-                    || region.contains(new Vector(min.getBlockX(), min.getBlockY(), max.getBlockZ()))
-                    || region.contains(new Vector(min.getBlockX(), max.getBlockY(), max.getBlockZ()))
-                    || region.contains(new Vector(min.getBlockX(), max.getBlockY(), min.getBlockZ()))
-                    || region.contains(new Vector(max.getBlockX(), max.getBlockY(), max.getBlockZ()))
-                    || region.contains(new Vector(max.getBlockX(), max.getBlockY(), min.getBlockZ()))
-                    || region.contains(new Vector(max.getBlockX(), min.getBlockY(), min.getBlockZ()))
-                    || region.contains(new Vector(max.getBlockX(), min.getBlockY(), max.getBlockZ())) ) {
-                intersectingRegions.add(regions.get(i));
-                continue;
-            }
-
-            // Check whether the other regions points are inside the current region
-            if (region instanceof ProtectedPolygonalRegion) {
-                for (i2 = 0; i2 < ((ProtectedPolygonalRegion)region).getPoints().size(); i2++) {
-                    BlockVector2D pt2Dr = ((ProtectedPolygonalRegion)region).getPoints().get(i2);
-                    int minYr = ((ProtectedPolygonalRegion)region).minY;
-                    int maxYr = ((ProtectedPolygonalRegion)region).maxY;
-                    Vector ptr = new Vector(pt2Dr.getBlockX(), minYr, pt2Dr.getBlockZ());
-                    Vector ptr2 = new Vector(pt2Dr.getBlockX(), maxYr, pt2Dr.getBlockZ());
-
-                    if (this.contains(ptr) || this.contains(ptr2)) {
-                        intersectingRegions.add(regions.get(i));
-                        continue;
-                    }
-                }
-            } else if (region instanceof ProtectedCuboidRegion) {
-                BlockVector ptcMin = region.getMinimumPoint(); 
-                BlockVector ptcMax = region.getMaximumPoint();
-
-                if (this.contains(new Vector(ptcMin.getBlockX(), ptcMin.getBlockY(), ptcMin.getBlockZ()))
-                        || this.contains(new Vector(ptcMin.getBlockX(), ptcMin.getBlockY(), ptcMax.getBlockZ()))
-                        || this.contains(new Vector(ptcMin.getBlockX(), ptcMax.getBlockY(), ptcMax.getBlockZ()))
-                        || this.contains(new Vector(ptcMin.getBlockX(), ptcMax.getBlockY(), ptcMin.getBlockZ()))
-                        || this.contains(new Vector(ptcMax.getBlockX(), ptcMax.getBlockY(), ptcMax.getBlockZ()))
-                        || this.contains(new Vector(ptcMax.getBlockX(), ptcMax.getBlockY(), ptcMin.getBlockZ()))
-                        || this.contains(new Vector(ptcMax.getBlockX(), ptcMin.getBlockY(), ptcMin.getBlockZ()))
-                        || this.contains(new Vector(ptcMax.getBlockX(), ptcMin.getBlockY(), ptcMax.getBlockZ())) ) {
-                    intersectingRegions.add(regions.get(i));
-                    continue;
-                }
-            } else {
-                throw new UnsupportedOperationException("Not supported yet."); 
-            }
-
-            // Check whether the current regions edges collide with the regions edges
-            boolean regionIsIntersecting = false;
-            List<BlockVector2D> points = new ArrayList<BlockVector2D>();
-            points.add(new BlockVector2D(min.getBlockX(), min.getBlockZ()));
-            points.add(new BlockVector2D(min.getBlockX(), max.getBlockZ()));
-            points.add(new BlockVector2D(max.getBlockX(), max.getBlockZ()));
-            points.add(new BlockVector2D(max.getBlockX(), min.getBlockZ()));
-
-            for (i2 = 0; i2 < points.size(); i2++) {
-                boolean checkNextPoint = false;
-                BlockVector2D currPoint = points.get(i2);
-                BlockVector2D nextPoint;
-
-                if (i2 == (points.size() - 1)) {
-                    nextPoint = points.get(0);
-                } else {
-                    nextPoint = points.get(i2 + 1);
-                }
-
-                int currX = currPoint.getBlockX();
-                int currZ = currPoint.getBlockZ();
-                while (!checkNextPoint) {
-                    for(i3 = min.getBlockY(); i3 <= max.getBlockY(); i3++) {
-                        if (region.contains(new Vector(currX, i3, currZ))) {
-                            intersectingRegions.add(regions.get(i));
-                            regionIsIntersecting = true;
-                            break;
-                        }
-                    }
-
-                    if (currX == nextPoint.getBlockX() || currZ == nextPoint.getBlockZ() || regionIsIntersecting) {
-                        checkNextPoint = true;
-                    }
-
-                    if (nextPoint.getBlockX() > currPoint.getBlockX()) {
-                        currX++;
-                    } else {
-                        currX--;
-                    }
-                    if (nextPoint.getBlockZ() > currPoint.getBlockZ()) {
-                        currZ++;
-                    } else {
-                        currZ--;
-                    }
-                }
 
-                if (regionIsIntersecting) {
-                    break;
-                }
+        for (ProtectedRegion region : regions) {
+            if (RegionIntersection.intersects(this, region)) {
+                intersectingRegions.add(region);
             }
         }
 
@@ -273,9 +184,9 @@ public class ProtectedCuboidRegion extends ProtectedRegion {
      */
     @Override
     public int volume() {
-        int xLength = max.getBlockX() - min.getBlockX() + 1;
-        int yLength = max.getBlockY() - min.getBlockY() + 1;
-        int zLength = max.getBlockZ() - min.getBlockZ() + 1;
+        int xLength = maxX - minX + 1;
+        int yLength = maxY - minY + 1;
+        int zLength = maxZ - minZ + 1;
 
         int volume = xLength * yLength * zLength;
         return volume;
@@ -28,11 +28,33 @@ import com.sk89q.worldguard.protection.UnsupportedIntersectionException;
 
 public class ProtectedPolygonalRegion extends ProtectedRegion {
 
+    /**
+     * The maximum number of chunk cells in the containment grid of one
+     * polygon. Polygons covering more chunks are tested without a grid.
+     */
+    private static volatile int maxGridCells = 4096;
+    /**
+     * Polygons with fewer points than this are tested without a grid.
+     */
+    private static volatile int minGridPoints = 32;
+
     protected List<BlockVector2D> points;
     protected int minY;
     protected int maxY;
     private BlockVector min;
     private BlockVector max;
+    /**
+     * Coordinates of the points, so that the containment and intersection
+     * tests work on plain arrays.
+     */
+    final int[] xs;
+    final int[] zs;
+    private final int minX;
+    private final int minZ;
+    private final int maxX;
+    private final int maxZ;
+    private volatile PolygonGrid grid;
+    private volatile boolean gridChecked;
 
     public ProtectedPolygonalRegion(String id, List<BlockVector2D> points, int minY, int maxY) {
         super(id);
@@ -40,14 +62,21 @@ public class ProtectedPolygonalRegion extends ProtectedRegion {
         this.minY = minY;
         this.maxY = maxY;
 
+        int numPoints = points.size();
+        xs = new int[numPoints];
+        zs = new int[numPoints];
+
         int minX = points.get(0).getBlockX();
         int minZ = points.get(0).getBlockZ();
         int maxX = points.get(0).getBlockX();
         int maxZ = points.get(0).getBlockZ();
 
-        for (BlockVector2D v : points) {
+        for (int i = 0; i < numPoints; i++) {
+            BlockVector2D v = points.get(i);
             int x = v.getBlockX();
             int z = v.getBlockZ();
+            xs[i] = x;
+            zs[i] = z;
             if (x < minX) {
                 minX = x;
             }
@@ -62,6 +91,10 @@ public class ProtectedPolygonalRegion extends ProtectedRegion {
             }
         }
 
+        this.minX = minX;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxZ = maxZ;
         min = new BlockVector(minX, minY, minZ);
         max = new BlockVector(maxX, maxY, maxZ);
     }
@@ -85,173 +118,66 @@ public class ProtectedPolygonalRegion extends ProtectedRegion {
      */
     @Override
     public boolean contains(Vector pt) {
-        int targetX = pt.getBlockX(); //wide
-        int targetY = pt.getBlockY(); //height
-        int targetZ = pt.getBlockZ(); //depth
+        return contains(pt.getBlockX(), pt.getBlockY(), pt.getBlockZ());
+    }
 
+    /**
+     * Checks to see if a block is inside this region.
+     */
+    @Override
+    public boolean contains(int targetX, int targetY, int targetZ) {
         if (targetY < minY || targetY > maxY) {
             return false;
         }
         //Quick and dirty check.
-        if (targetX < min.getBlockX() || targetX > max.getBlockX() || targetZ < min.getBlockZ() || targetZ > max.getBlockZ()) {
+        if (targetX < minX || targetX > maxX || targetZ < minZ || targetZ > maxZ) {
             return false;
         }
-        boolean inside = false;
-        int npoints = points.size();
-        int xNew, zNew;
-        int xOld, zOld;
-        int x1, z1;
-        int x2, z2;
-        long crossproduct;
-        int i;
-
-        xOld = points.get(npoints - 1).getBlockX();
-        zOld = points.get(npoints - 1).getBlockZ();
+        PolygonGrid grid = getGrid();
+        if (grid != null) {
+            return grid.contains(targetX, targetZ);
+        }
+        return RegionIntersection.polygonContains(xs, zs, targetX, targetZ);
+    }
 
-        for (i = 0; i < npoints; i++) {
-            xNew = points.get(i).getBlockX();
-            zNew = points.get(i).getBlockZ();
-            //Check for corner
-            if (xNew == targetX && zNew == targetZ) {
-                return true;
-            }
-            if (xNew > xOld) {
-                x1 = xOld;
-                x2 = xNew;
-                z1 = zOld;
-                z2 = zNew;
-            } else {
-                x1 = xNew;
-                x2 = xOld;
-                z1 = zNew;
-                z2 = zOld;
-            }
-            if (x1 <= targetX && targetX <= x2) {
-                crossproduct = ((long) targetZ - (long) z1) * (long) (x2 - x1)
-                    - ((long) z2 - (long) z1) * (long) (targetX - x1);
-                if (crossproduct == 0) {
-                    if ((z1 <= targetZ) == (targetZ <= z2)) return true; // on edge
-                } else if (crossproduct < 0 && (x1 != targetX)) {
-                    inside = !inside;
-                }
+    /**
+     * Get the containment grid of this polygon, building it on first use.
+     * 
+     * @return the grid, or null if this polygon doesn't use one
+     */
+    private PolygonGrid getGrid() {
+        if (!gridChecked) {
+            if (xs.length >= minGridPoints && maxGridCells > 0) {
+                grid = PolygonGrid.build(xs, zs, minX, minZ, maxX, maxZ, maxGridCells);
             }
-            xOld = xNew;
-            zOld = zNew;
+            gridChecked = true;
         }
+        return grid;
+    }
 
-        return inside;
+    /**
+     * Set the limits for the containment grids of polygons. Grids make
+     * containment tests on polygons with many points cheaper, at the cost
+     * of a few bytes per chunk that the polygon covers. This only affects
+     * polygons that have not been queried yet.
+     * 
+     * @param maxCells the maximum number of chunks a polygon can cover
+     *         to get a grid, or 0 to not use grids
+     * @param minPoints the minimum number of points a polygon must have
+     *         to get a grid
+     */
+    public static void setGridLimits(int maxCells, int minPoints) {
+        maxGridCells = maxCells;
+        minGridPoints = minPoints;
     }
 
     @Override
     public List<ProtectedRegion> getIntersectingRegions(List<ProtectedRegion> regions) throws UnsupportedIntersectionException {
-        int numRegions = regions.size();
-        int numPoints = points.size();
         List<ProtectedRegion> intersectingRegions = new ArrayList<ProtectedRegion>();
-        int i, i2, i3;
-
-        for (i = 0; i < numRegions; i++) {
-            ProtectedRegion region = regions.get(i);
-            BlockVector rMinPoint = region.getMinimumPoint();
-            BlockVector rMaxPoint = region.getMaximumPoint();
-
-            // Check whether the region is outside the min and max vector
-            if ((rMinPoint.getBlockX() < min.getBlockX() && rMaxPoint.getBlockX() < min.getBlockX()) 
-                            || (rMinPoint.getBlockX() > max.getBlockX() && rMaxPoint.getBlockX() > max.getBlockX())
-                    && ((rMinPoint.getBlockY() < min.getBlockY() && rMaxPoint.getBlockY() < min.getBlockY())
-                            || (rMinPoint.getBlockY() > max.getBlockY() && rMaxPoint.getBlockY() > max.getBlockY()))
-                    && ((rMinPoint.getBlockZ() < min.getBlockZ() && rMaxPoint.getBlockZ() < min.getBlockZ())
-                            || (rMinPoint.getBlockZ() > max.getBlockZ() && rMaxPoint.getBlockZ() > max.getBlockZ())) ) {
-                intersectingRegions.add(regions.get(i));
-                continue;
-            }
-
-            // Check whether the regions points are inside the other region
-            for (i2 = 0; i < numPoints; i++) {
-                Vector pt = new Vector(points.get(i2).getBlockX(), minY, points.get(i2).getBlockZ());
-                Vector pt2 = new Vector(points.get(i2).getBlockX(), maxY, points.get(i2).getBlockZ());
-                if (region.contains(pt) || region.contains(pt2)) {
-                    intersectingRegions.add(regions.get(i));
-                    continue;
-                }
-            }
-
-            // Check whether the other regions points are inside the current region
-            if (region instanceof ProtectedPolygonalRegion) {
-                for (i2 = 0; i < ((ProtectedPolygonalRegion)region).getPoints().size(); i++) {
-                    BlockVector2D pt2Dr = ((ProtectedPolygonalRegion)region).getPoints().get(i2);
-                    int minYr = ((ProtectedPolygonalRegion)region).minY;
-                    int maxYr = ((ProtectedPolygonalRegion)region).maxY;
-                    Vector ptr = new Vector(pt2Dr.getBlockX(), minYr, pt2Dr.getBlockZ());
-                    Vector ptr2 = new Vector(pt2Dr.getBlockX(), maxYr, pt2Dr.getBlockZ());
-
-                    if (this.contains(ptr) || this.contains(ptr2)) {
-                        intersectingRegions.add(regions.get(i));
-                        continue;
-                    }
-                }
-            } else if (region instanceof ProtectedCuboidRegion) {
-                BlockVector ptcMin = region.getMinimumPoint(); 
-                BlockVector ptcMax = region.getMaximumPoint();
-
-                if (this.contains(new Vector(ptcMin.getBlockX(), ptcMin.getBlockY(), ptcMin.getBlockZ()))
-                        || this.contains(new Vector(ptcMin.getBlockX(), ptcMin.getBlockY(), ptcMax.getBlockZ()))
-                        || this.contains(new Vector(ptcMin.getBlockX(), ptcMax.getBlockY(), ptcMax.getBlockZ()))
-                        || this.contains(new Vector(ptcMin.getBlockX(), ptcMax.getBlockY(), ptcMin.getBlockZ()))
-                        || this.contains(new Vector(ptcMax.getBlockX(), ptcMax.getBlockY(), ptcMax.getBlockZ()))
-                        || this.contains(new Vector(ptcMax.getBlockX(), ptcMax.getBlockY(), ptcMin.getBlockZ()))
-                        || this.contains(new Vector(ptcMax.getBlockX(), ptcMin.getBlockY(), ptcMin.getBlockZ()))
-                        || this.contains(new Vector(ptcMax.getBlockX(), ptcMin.getBlockY(), ptcMax.getBlockZ())) ) {
-                    intersectingRegions.add(regions.get(i));
-                    continue;
-                }
-            } else {
-                throw new UnsupportedOperationException("Not supported yet."); 
-            }
-
-            // Check whether the current regions edges collide with the regions edges
-            boolean regionIsIntersecting = false;
-            for (i2 = 0; i2 < numPoints; i2++) {
-                boolean checkNextPoint = false;
-                BlockVector2D currPoint = points.get(i2);
-                BlockVector2D nextPoint;
-
-                if (i2 == (numPoints - 1)) {
-                    nextPoint = points.get(0);
-                } else {
-                    nextPoint = points.get(i2 + 1);
-                }
-
-                int currX = currPoint.getBlockX();
-                int currZ = currPoint.getBlockZ();
-
-                while (!checkNextPoint) {
-                    for(i3 = this.minY; i3 <= this.maxY; i3++) {
-                        if (region.contains(new Vector(currX, i3, currZ))) {
-                            intersectingRegions.add(regions.get(i));
-                            regionIsIntersecting = true;
-                            break;
-                        }
-                    }
-
-                    if (currX == nextPoint.getBlockX() || currZ == nextPoint.getBlockZ() || regionIsIntersecting) {
-                        checkNextPoint = true;
-                    }
-
-                    if (nextPoint.getBlockX() > currPoint.getBlockX()) {
-                        currX++;
-                    } else {
-                        currX--;
-                    }
-                    if (nextPoint.getBlockZ() > currPoint.getBlockZ()) {
-                        currZ++;
-                    } else {
-                        currZ--;
-                    }
-                }
 
-                if (regionIsIntersecting) {
-                    break;
-                }
+        for (ProtectedRegion region : regions) {
+            if (RegionIntersection.intersects(this, region)) {
+                intersectingRegions.add(region);
             }
         }
 
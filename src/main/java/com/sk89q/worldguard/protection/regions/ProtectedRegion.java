@@ -19,15 +19,20 @@
 
 package com.sk89q.worldguard.protection.regions;
 
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import com.sk89q.worldedit.BlockVector;
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldguard.LocalPlayer;
 import com.sk89q.worldguard.domains.DefaultDomain;
+import com.sk89q.worldguard.domains.DomainChangeListener;
 import com.sk89q.worldguard.protection.UnsupportedIntersectionException;
 import com.sk89q.worldguard.protection.flags.Flag;
 
@@ -66,9 +71,44 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
     private DefaultDomain members = new DefaultDomain();
     
     /**
-     * List of flags.
+     * Flag values, indexed by flag ordinal. The array is replaced rather
+     * than modified so that it can be read without locking.
      */
-    private Map<Flag<?>, Object> flags = new HashMap<Flag<?>, Object>();
+    private volatile FlagArray flags = FlagArray.EMPTY;
+
+    /**
+     * Listeners to notify of changes. The array is replaced rather than
+     * modified so that it can be read without locking.
+     */
+    private volatile RegionChangeListener[] listeners = new RegionChangeListener[0];
+
+    /**
+     * Incremented on every change.
+     */
+    private volatile int version;
+
+    /**
+     * The last view built of this region, possibly out of date.
+     */
+    private volatile EffectiveRegion effective;
+
+    /**
+     * Forwards changes to the owners domain.
+     */
+    private final DomainChangeListener ownersListener = new DomainChangeListener() {
+        public void domainChanged(DefaultDomain domain) {
+            fireChanged(RegionChangeListener.Change.OWNERS);
+        }
+    };
+
+    /**
+     * Forwards changes to the members domain.
+     */
+    private final DomainChangeListener membersListener = new DomainChangeListener() {
+        public void domainChanged(DefaultDomain domain) {
+            fireChanged(RegionChangeListener.Change.MEMBERS);
+        }
+    };
 
     /**
      * Construct a new instance of this region.
@@ -77,6 +117,8 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
      */
     public ProtectedRegion(String id) {
         this.id = id;
+        owners.addChangeListener(ownersListener);
+        members.addChangeListener(membersListener);
     }
 
     /**
@@ -111,7 +153,10 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
      * @param priority the priority to setFlag
      */
     public void setPriority(int priority) {
-        this.priority = priority;
+        if (this.priority != priority) {
+            this.priority = priority;
+            fireChanged(RegionChangeListener.Change.PRIORITY);
+        }
     }
     
     /**
@@ -130,7 +175,10 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
      */
     public void setParent(ProtectedRegion parent) throws CircularInheritanceException {
         if (parent == null) {
-            this.parent = null;
+            if (this.parent != null) {
+                this.parent = null;
+                fireChanged(RegionChangeListener.Change.PARENT);
+            }
             return;
         }
         
@@ -146,7 +194,10 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
             p = p.getParent();
         }
         
-        this.parent = parent;
+        if (this.parent != parent) {
+            this.parent = parent;
+            fireChanged(RegionChangeListener.Change.PARENT);
+        }
     }
 
 
@@ -162,7 +213,10 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
      * @param owners the owners to setFlag
      */
     public void setOwners(DefaultDomain owners) {
+        this.owners.removeChangeListener(ownersListener);
         this.owners = owners;
+        owners.addChangeListener(ownersListener);
+        fireChanged(RegionChangeListener.Change.OWNERS);
     }
 
     /**
@@ -176,7 +230,10 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
      * @param members the members to setFlag
      */
     public void setMembers(DefaultDomain members) {
+        this.members.removeChangeListener(membersListener);
         this.members = members;
+        members.addChangeListener(membersListener);
+        fireChanged(RegionChangeListener.Change.MEMBERS);
     }
 
     /**
@@ -195,20 +252,7 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
      * @return whether an owner
      */
     public boolean isOwner(LocalPlayer player) {
-        if (owners.contains(player)) {
-            return true;
-        }
-        
-        ProtectedRegion curParent = getParent();
-        while (curParent != null) {
-            if (curParent.getOwners().contains(player)) {
-                return true;
-            }
-            
-            curParent = curParent.getParent();
-        }
-        
-        return false;
+        return getEffective().isOwner(player);
     }
 
     /**
@@ -219,21 +263,7 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
      * @return whether an owner or member
      */
     public boolean isMember(LocalPlayer player) {
-        if (owners.contains(player) || members.contains(player)) {
-            return true;
-        }
-        
-        ProtectedRegion curParent = getParent();
-        while (curParent != null) {
-            if (curParent.getOwners().contains(player)
-                    || curParent.getMembers().contains(player)) {
-                return true;
-            }
-            
-            curParent = curParent.getParent();
-        }
-        
-        return false;
+        return getEffective().isMember(player);
     }
 
     /**
@@ -244,20 +274,35 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
      * @return whether an member
      */
     public boolean isMemberOnly(LocalPlayer player) {
-        if (members.contains(player)) {
-            return true;
-        }
+        return getEffective().isMemberOnly(player);
+    }
 
-        ProtectedRegion curParent = getParent();
-        while (curParent != null) {
-            if (curParent.getMembers().contains(player)) {
-                return true;
-            }
+    /**
+     * Get the view of this region with everything inherited from its
+     * parents resolved. The view is rebuilt when this region or one of its
+     * parents has changed since it was last built.
+     * 
+     * @return effective view
+     */
+    public EffectiveRegion getEffective() {
+        EffectiveRegion view = effective;
 
-            curParent = curParent.getParent();
+        if (view == null || !view.isCurrent()) {
+            view = new EffectiveRegion(this);
+            effective = view;
         }
 
-        return false;
+        return view;
+    }
+
+    /**
+     * Get the number of changes made to this region. This can be used to
+     * tell whether something worked out from this region is out of date.
+     * 
+     * @return version
+     */
+    public int getVersion() {
+        return version;
     }
     
     /**
@@ -270,7 +315,7 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
      */
     @SuppressWarnings("unchecked")
     public <T extends Flag<V>, V> V getFlag(T flag) {
-        Object obj = flags.get(flag);
+        Object obj = flags.get(flag.getOrdinal());
         V val;
         if (obj != null) {
             val = (V) obj;
@@ -289,29 +334,46 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
      * @param val
      */
     public <T extends Flag<V>, V> void setFlag(T flag, V val) {
+        setFlagValue(flag.getOrdinal(), val);
+    }
+
+    private void setFlagValue(int ordinal, Object val) {
         if (val == null) {
-            flags.remove(flag);
+            flags = flags.without(ordinal);
         } else {
-            flags.put(flag, val);
+            flags = flags.with(ordinal, val);
         }
+
+        fireChanged(RegionChangeListener.Change.FLAGS);
     }
     
     /**
-     * Get the map of flags.
+     * Get the map of flags. The map is a view of the flags of this region;
+     * changes made through it are applied to the region.
      * 
      * @return
      */
     public Map<Flag<?>, Object> getFlags() {
+        return new FlagMap();
+    }
+
+    /**
+     * Get the flag values of this region.
+     * 
+     * @return flag values
+     */
+    FlagArray getFlagArray() {
         return flags;
     }
     
     /**
-     * Get the map of flags.
+     * Set the flags from a map of flags. The map is copied.
      * 
      * @param flags 
      */
     public void setFlags(Map<Flag<?>, Object> flags) {
-        this.flags = flags;
+        this.flags = FlagArray.of(flags);
+        fireChanged(RegionChangeListener.Change.FLAGS);
     }
 
     /**
@@ -328,22 +390,35 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
      * @return
      */
     public abstract boolean contains(Vector pt);
+
+    /**
+     * Check to see if a block is inside this region. This gives the same
+     * result as {@link #contains(Vector)} for the block's position, but
+     * region types override it to avoid creating a vector.
+     * 
+     * @param x x coordinate of the block
+     * @param y y coordinate of the block
+     * @param z z coordinate of the block
+     * @return whether the block is inside
+     */
+    public boolean contains(int x, int y, int z) {
+        return contains(new Vector(x, y, z));
+    }
     
     /**
-     * Compares to another region.
+     * Compares to another region. Regions with a higher priority come
+     * first, and regions with the same priority are ordered by ID.
      * 
      * @param other
      * @return
      */
     public int compareTo(ProtectedRegion other) {
-        if (id.equals(other.id)) {
-            return 0;
-        } else if (priority == other.priority) {
-            return 1;
-        } else if (priority > other.priority) {
+        if (priority > other.priority) {
             return -1;
-        } else {
+        } else if (priority < other.priority) {
             return 1;
+        } else {
+            return id.compareTo(other.id);
         }
     }
 
@@ -375,6 +450,55 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
         return idPattern.matcher(id).matches();
     }
     
+    /**
+     * Add a listener to be notified when this region changes. Adding a
+     * listener that is already registered has no effect.
+     * 
+     * @param listener
+     */
+    public synchronized void addChangeListener(RegionChangeListener listener) {
+        for (RegionChangeListener existing : listeners) {
+            if (existing == listener) {
+                return;
+            }
+        }
+
+        RegionChangeListener[] newListeners = new RegionChangeListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+
+    /**
+     * Remove a listener.
+     * 
+     * @param listener
+     */
+    public synchronized void removeChangeListener(RegionChangeListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                RegionChangeListener[] newListeners = new RegionChangeListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, newListeners.length - i);
+                listeners = newListeners;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notify listeners of a change.
+     * 
+     * @param change
+     */
+    protected void fireChanged(RegionChangeListener.Change change) {
+        version++;
+
+        for (RegionChangeListener listener : listeners) {
+            listener.regionChanged(this, change);
+        }
+    }
+    
     /**
      * Returns the hash code.
      */
@@ -396,6 +520,101 @@ public abstract class ProtectedRegion implements Comparable<ProtectedRegion> {
         return other.getId().equals(getId());
     }
     
+    /**
+     * A map view of the flags of the region.
+     */
+    private class FlagMap extends AbstractMap<Flag<?>, Object> {
+        @Override
+        public int size() {
+            return flags.size();
+        }
+
+        @Override
+        public Object get(Object key) {
+            return key instanceof Flag ? flags.get(((Flag<?>) key).getOrdinal()) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Object put(Flag<?> key, Object value) {
+            Object existing = get(key);
+            setFlagValue(key.getOrdinal(), value);
+            return existing;
+        }
+
+        @Override
+        public Object remove(Object key) {
+            Object existing = get(key);
+            if (existing != null) {
+                setFlagValue(((Flag<?>) key).getOrdinal(), null);
+            }
+            return existing;
+        }
+
+        @Override
+        public void clear() {
+            flags = FlagArray.EMPTY;
+            fireChanged(RegionChangeListener.Change.FLAGS);
+        }
+
+        @Override
+        public Set<Map.Entry<Flag<?>, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<Flag<?>, Object>>() {
+                @Override
+                public Iterator<Map.Entry<Flag<?>, Object>> iterator() {
+                    return new FlagIterator(flags);
+                }
+
+                @Override
+                public int size() {
+                    return flags.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of the flags of the region.
+     */
+    private class FlagIterator implements Iterator<Map.Entry<Flag<?>, Object>> {
+        private final FlagArray snapshot;
+        private int index = 0;
+        private int lastOrdinal = -1;
+
+        FlagIterator(FlagArray snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        public boolean hasNext() {
+            return index < snapshot.size();
+        }
+
+        public Map.Entry<Flag<?>, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            lastOrdinal = snapshot.ordinalAt(index);
+            Object value = snapshot.valueAt(index);
+            index++;
+            return new AbstractMap.SimpleImmutableEntry<Flag<?>, Object>(
+                    Flag.getByOrdinal(lastOrdinal), value);
+        }
+
+        public void remove() {
+            if (lastOrdinal == -1) {
+                throw new IllegalStateException();
+            }
+
+            setFlagValue(lastOrdinal, null);
+            lastOrdinal = -1;
+        }
+    }
+    
     /**
      * Thrown when setting a curParent would create a circular inheritance
      * situation.
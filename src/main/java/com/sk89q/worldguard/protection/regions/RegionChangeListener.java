@@ -0,0 +1,46 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldguard.protection.regions;
+
+/**
+ * Notified when a property of a region that affects how it is indexed or
+ * queried changes after the region has been added to a manager.
+ */
+public interface RegionChangeListener {
+
+    /**
+     * The kind of change that was made.
+     */
+    public enum Change {
+        PRIORITY,
+        PARENT,
+        FLAGS,
+        OWNERS,
+        MEMBERS
+    }
+
+    /**
+     * Called after a region has been changed.
+     * 
+     * @param region the region that was changed
+     * @param change what was changed
+     */
+    public void regionChanged(ProtectedRegion region, Change change);
+}
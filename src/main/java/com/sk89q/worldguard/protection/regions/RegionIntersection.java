@@ -0,0 +1,272 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.worldguard.protection.regions;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldguard.protection.UnsupportedIntersectionException;
+
+/**
+ * Exact intersection tests between cuboid and polygonal regions. Regions
+ * are treated as closed shapes: two regions that only share a boundary
+ * intersect, as they share the blocks along it. The tests work on the
+ * region outlines only, so their cost depends on the number of edges and
+ * not on the size of the regions, and they do not allocate.
+ */
+final class RegionIntersection {
+
+    private RegionIntersection() {
+    }
+
+    /**
+     * Checks whether two regions intersect. The global region has no area
+     * and never intersects anything.
+     * 
+     * @param a region
+     * @param b other region
+     * @return whether the regions intersect
+     * @throws UnsupportedIntersectionException if a region is of an
+     *         unknown type
+     */
+    static boolean intersects(ProtectedRegion a, ProtectedRegion b)
+            throws UnsupportedIntersectionException {
+        if (a instanceof GlobalProtectedRegion || b instanceof GlobalProtectedRegion) {
+            return false;
+        }
+
+        checkSupported(a);
+        checkSupported(b);
+
+        BlockVector minA = a.getMinimumPoint();
+        BlockVector maxA = a.getMaximumPoint();
+        BlockVector minB = b.getMinimumPoint();
+        BlockVector maxB = b.getMaximumPoint();
+
+        // Separating axes of the bounding boxes, which for two cuboids
+        // are the only axes to test
+        if (minA.getBlockY() > maxB.getBlockY() || maxA.getBlockY() < minB.getBlockY()
+                || minA.getBlockX() > maxB.getBlockX() || maxA.getBlockX() < minB.getBlockX()
+                || minA.getBlockZ() > maxB.getBlockZ() || maxA.getBlockZ() < minB.getBlockZ()) {
+            return false;
+        }
+
+        if (a instanceof ProtectedPolygonalRegion) {
+            ProtectedPolygonalRegion polyA = (ProtectedPolygonalRegion) a;
+
+            if (b instanceof ProtectedPolygonalRegion) {
+                ProtectedPolygonalRegion polyB = (ProtectedPolygonalRegion) b;
+                return polygonsIntersect(polyA.xs, polyA.zs, polyB.xs, polyB.zs);
+            } else {
+                return polygonIntersectsRectangle(polyA.xs, polyA.zs, minB.getBlockX(),
+                        minB.getBlockZ(), maxB.getBlockX(), maxB.getBlockZ());
+            }
+        } else if (b instanceof ProtectedPolygonalRegion) {
+            ProtectedPolygonalRegion polyB = (ProtectedPolygonalRegion) b;
+            return polygonIntersectsRectangle(polyB.xs, polyB.zs, minA.getBlockX(),
+                    minA.getBlockZ(), maxA.getBlockX(), maxA.getBlockZ());
+        }
+
+        return true;
+    }
+
+    private static void checkSupported(ProtectedRegion region)
+            throws UnsupportedIntersectionException {
+        if (!(region instanceof ProtectedCuboidRegion)
+                && !(region instanceof ProtectedPolygonalRegion)) {
+            throw new UnsupportedIntersectionException();
+        }
+    }
+
+    /**
+     * Checks whether two polygons intersect. Either an edge of one crosses
+     * an edge of the other, or one lies completely inside the other.
+     * 
+     * @param ax x coordinates of the first polygon
+     * @param az z coordinates of the first polygon
+     * @param bx x coordinates of the second polygon
+     * @param bz z coordinates of the second polygon
+     * @return whether the polygons intersect
+     */
+    private static boolean polygonsIntersect(int[] ax, int[] az, int[] bx, int[] bz) {
+        int numA = ax.length;
+        int numB = bx.length;
+
+        for (int i = 0, prevI = numA - 1; i < numA; prevI = i++) {
+            for (int j = 0, prevJ = numB - 1; j < numB; prevJ = j++) {
+                if (segmentsIntersect(ax[prevI], az[prevI], ax[i], az[i],
+                        bx[prevJ], bz[prevJ], bx[j], bz[j])) {
+                    return true;
+                }
+            }
+        }
+
+        return polygonContains(ax, az, bx[0], bz[0])
+                || polygonContains(bx, bz, ax[0], az[0]);
+    }
+
+    /**
+     * Checks whether a polygon intersects a rectangle. Either an edge of the
+     * polygon crosses the rectangle, or the rectangle lies completely inside
+     * the polygon.
+     * 
+     * @param xs x coordinates of the polygon
+     * @param zs z coordinates of the polygon
+     * @param minX minimum x of the rectangle
+     * @param minZ minimum z of the rectangle
+     * @param maxX maximum x of the rectangle
+     * @param maxZ maximum z of the rectangle
+     * @return whether the shapes intersect
+     */
+    private static boolean polygonIntersectsRectangle(int[] xs, int[] zs,
+            int minX, int minZ, int maxX, int maxZ) {
+        int numPoints = xs.length;
+
+        for (int i = 0, prev = numPoints - 1; i < numPoints; prev = i++) {
+            if (segmentIntersectsRectangle(xs[prev], zs[prev], xs[i], zs[i],
+                    minX, minZ, maxX, maxZ)) {
+                return true;
+            }
+        }
+
+        return polygonContains(xs, zs, minX, minZ);
+    }
+
+    /**
+     * Checks whether a segment touches a closed rectangle.
+     */
+    static boolean segmentIntersectsRectangle(int x1, int z1, int x2, int z2,
+            int minX, int minZ, int maxX, int maxZ) {
+        if (Math.max(x1, x2) < minX || Math.min(x1, x2) > maxX
+                || Math.max(z1, z2) < minZ || Math.min(z1, z2) > maxZ) {
+            return false;
+        }
+
+        if ((x1 >= minX && x1 <= maxX && z1 >= minZ && z1 <= maxZ)
+                || (x2 >= minX && x2 <= maxX && z2 >= minZ && z2 <= maxZ)) {
+            return true;
+        }
+
+        return segmentsIntersect(x1, z1, x2, z2, minX, minZ, maxX, minZ)
+                || segmentsIntersect(x1, z1, x2, z2, maxX, minZ, maxX, maxZ)
+                || segmentsIntersect(x1, z1, x2, z2, maxX, maxZ, minX, maxZ)
+                || segmentsIntersect(x1, z1, x2, z2, minX, maxZ, minX, minZ);
+    }
+
+    /**
+     * Checks whether two closed segments share a point.
+     */
+    static boolean segmentsIntersect(int ax1, int az1, int ax2, int az2,
+            int bx1, int bz1, int bx2, int bz2) {
+        if (Math.max(ax1, ax2) < Math.min(bx1, bx2) || Math.min(ax1, ax2) > Math.max(bx1, bx2)
+                || Math.max(az1, az2) < Math.min(bz1, bz2) || Math.min(az1, az2) > Math.max(bz1, bz2)) {
+            return false;
+        }
+
+        int d1 = orientation(ax1, az1, ax2, az2, bx1, bz1);
+        int d2 = orientation(ax1, az1, ax2, az2, bx2, bz2);
+        int d3 = orientation(bx1, bz1, bx2, bz2, ax1, az1);
+        int d4 = orientation(bx1, bz1, bx2, bz2, ax2, az2);
+
+        if (d1 * d2 < 0 && d3 * d4 < 0) {
+            return true;
+        }
+
+        // Touching or collinear; the bounding boxes overlap, so a zero
+        // orientation means that the point lies on the other segment
+        return (d1 == 0 && onSegment(ax1, az1, ax2, az2, bx1, bz1))
+                || (d2 == 0 && onSegment(ax1, az1, ax2, az2, bx2, bz2))
+                || (d3 == 0 && onSegment(bx1, bz1, bx2, bz2, ax1, az1))
+                || (d4 == 0 && onSegment(bx1, bz1, bx2, bz2, ax2, az2));
+    }
+
+    /**
+     * Get the side of the line through the first two points that the third
+     * point lies on.
+     * 
+     * @return -1, 0 or 1
+     */
+    private static int orientation(int x1, int z1, int x2, int z2, int x, int z) {
+        long cross = ((long) x2 - x1) * ((long) z - z1) - ((long) z2 - z1) * ((long) x - x1);
+        return cross < 0 ? -1 : (cross > 0 ? 1 : 0);
+    }
+
+    /**
+     * Checks whether a point that is collinear with a segment lies on it.
+     */
+    private static boolean onSegment(int x1, int z1, int x2, int z2, int x, int z) {
+        return x >= Math.min(x1, x2) && x <= Math.max(x1, x2)
+                && z >= Math.min(z1, z2) && z <= Math.max(z1, z2);
+    }
+
+    /**
+     * Checks whether a polygon contains a point, including its edges. This
+     * is the same test that {@link ProtectedPolygonalRegion} uses for blocks.
+     * 
+     * @param xs x coordinates of the polygon
+     * @param zs z coordinates of the polygon
+     * @param targetX x
+     * @param targetZ z
+     * @return whether the point is inside
+     */
+    static boolean polygonContains(int[] xs, int[] zs, int targetX, int targetZ) {
+        boolean inside = false;
+        int npoints = xs.length;
+        int xNew, zNew;
+        int xOld, zOld;
+        int x1, z1;
+        int x2, z2;
+        long crossproduct;
+
+        xOld = xs[npoints - 1];
+        zOld = zs[npoints - 1];
+
+        for (int i = 0; i < npoints; i++) {
+            xNew = xs[i];
+            zNew = zs[i];
+            //Check for corner
+            if (xNew == targetX && zNew == targetZ) {
+                return true;
+            }
+            if (xNew > xOld) {
+                x1 = xOld;
+                x2 = xNew;
+                z1 = zOld;
+                z2 = zNew;
+            } else {
+                x1 = xNew;
+                x2 = xOld;
+                z1 = zNew;
+                z2 = zOld;
+            }
+            if (x1 <= targetX && targetX <= x2) {
+                crossproduct = ((long) targetZ - (long) z1) * (long) (x2 - x1)
+                    - ((long) z2 - (long) z1) * (long) (targetX - x1);
+                if (crossproduct == 0) {
+                    if ((z1 <= targetZ) == (targetZ <= z2)) return true; // on edge
+                } else if (crossproduct < 0 && (x1 != targetX)) {
+                    inside = !inside;
+                }
+            }
+            xOld = xNew;
+            zOld = zNew;
+        }
+
+        return inside;
+    }
+}
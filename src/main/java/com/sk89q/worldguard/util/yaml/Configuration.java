@@ -24,6 +24,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -147,7 +149,9 @@ public class Configuration extends ConfigurationNode {
     }
 
     /**
-     * Saves the configuration to disk. All errors are clobbered.
+     * Saves the configuration to disk. The data is written to a temporary
+     * file first, which then replaces the file, so that a failed write
+     * doesn't leave a truncated file behind. All errors are clobbered.
      *
      * @return true if it was successful
      */
@@ -160,24 +164,50 @@ public class Configuration extends ConfigurationNode {
             parent.mkdirs();
         }
 
+        File tempFile = new File(parent, file.getName() + ".tmp");
+        boolean written = false;
+
         try {
-            stream = new FileOutputStream(file);
+            stream = new FileOutputStream(tempFile);
             OutputStreamWriter writer = new OutputStreamWriter(stream, "UTF-8");
             if (header != null) {
                 writer.append(header);
                 writer.append("\r\n");
             }
             yaml.dump(root, writer);
-            return true;
+            writer.flush();
+            written = true;
         } catch (IOException e) {} finally {
             try {
                 if (stream != null) {
                     stream.close();
                 }
-            } catch (IOException e) {}
+            } catch (IOException e) {
+                written = false;
+            }
+        }
+
+        if (!written) {
+            tempFile.delete();
+            return false;
+        }
+
+        try {
+            try {
+                Files.move(tempFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // Not every file system can replace a file atomically
+                Files.move(tempFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // The old file is untouched and the new one is kept next to it
+            return false;
         }
 
-        return false;
+        return true;
     }
     
     @SuppressWarnings("unchecked")
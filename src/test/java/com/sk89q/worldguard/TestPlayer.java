@@ -27,6 +27,7 @@ import com.sk89q.worldguard.LocalPlayer;
 public class TestPlayer extends LocalPlayer {
     private String name;
     private Set<String> groups = new HashSet<String>();
+    private int groupLookups;
     
     public TestPlayer(String name) {
         this.name = name;
@@ -34,6 +35,7 @@ public class TestPlayer extends LocalPlayer {
     
     public void addGroup(String group) {
         groups.add(group.toLowerCase());
+        getMembershipCache().invalidate();
     }
 
     @Override
@@ -43,9 +45,14 @@ public class TestPlayer extends LocalPlayer {
 
     @Override
     public boolean hasGroup(String group) {
+        groupLookups++;
         return groups.contains(group.toLowerCase());
     }
 
+    public int getGroupLookups() {
+        return groupLookups;
+    }
+
     @Override
     public Vector getPosition() {
         // TODO Auto-generated method stub
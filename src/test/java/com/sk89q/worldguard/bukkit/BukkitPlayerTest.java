@@ -0,0 +1,127 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.bukkit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sk89q.worldguard.LocalPlayer;
+
+import static org.junit.Assert.*;
+
+public class BukkitPlayerTest {
+    static final String BYPASS = "worldguard.region.bypass.world";
+
+    int lookups;
+    WorldGuardPlugin plugin;
+    Player player;
+
+    @Before
+    public void setUp() {
+        lookups = 0;
+        plugin = new WorldGuardPlugin() {
+            @Override
+            public boolean hasPermission(CommandSender sender, String perm) {
+                lookups++;
+                return true;
+            }
+        };
+        plugin.getGlobalConfiguration().playerCacheTime = 60000;
+        player = createPlayer("tetsu");
+    }
+
+    static Player createPlayer(final String name) {
+        return (Player) Proxy.newProxyInstance(Player.class.getClassLoader(),
+                new Class<?>[] { Player.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getName")) {
+                            return name;
+                        } else if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void testWrapperReuse() {
+        plugin.trackPlayer(player);
+        LocalPlayer localPlayer = plugin.wrapPlayer(player);
+        assertSame(localPlayer, plugin.wrapPlayer(player));
+
+        // The server replaces the player object on respawn
+        Player respawned = createPlayer("tetsu");
+        LocalPlayer replaced = plugin.wrapPlayer(respawned);
+        assertNotSame(localPlayer, replaced);
+        assertSame(replaced, plugin.wrapPlayer(respawned));
+
+        // Players that have not joined are not kept
+        Player other = createPlayer("other");
+        assertNotSame(plugin.wrapPlayer(other), plugin.wrapPlayer(other));
+    }
+
+    @Test
+    public void testOnlyBypassCached() {
+        plugin.trackPlayer(player);
+        LocalPlayer localPlayer = plugin.wrapPlayer(player);
+
+        assertTrue(localPlayer.hasPermission(BYPASS));
+        assertTrue(plugin.wrapPlayer(player).hasPermission(BYPASS));
+        assertEquals(1, lookups);
+
+        localPlayer.hasPermission("worldguard.region.wand");
+        localPlayer.hasPermission("worldguard.region.wand");
+        assertEquals(3, lookups);
+    }
+
+    @Test
+    public void testRefresh() {
+        plugin.trackPlayer(player);
+        LocalPlayer localPlayer = plugin.wrapPlayer(player);
+
+        localPlayer.hasPermission(BYPASS);
+        localPlayer.hasPermission(BYPASS);
+        assertEquals(1, lookups);
+
+        plugin.refreshPlayers();
+        localPlayer.hasPermission(BYPASS);
+        assertEquals(2, lookups);
+    }
+
+    @Test
+    public void testCacheOff() {
+        plugin.getGlobalConfiguration().playerCacheTime = 0;
+        plugin.trackPlayer(player);
+        LocalPlayer localPlayer = plugin.wrapPlayer(player);
+
+        localPlayer.hasPermission(BYPASS);
+        localPlayer.hasPermission(BYPASS);
+        assertEquals(2, lookups);
+    }
+}
@@ -0,0 +1,561 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.BlockVector2D;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldguard.TestPlayer;
+import com.sk89q.worldguard.domains.DefaultDomain;
+import com.sk89q.worldguard.protection.flags.DefaultFlag;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.managers.FlatRegionManager;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedPolygonalRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks a region manager against the results of {@link FlatRegionManager}
+ * for randomly generated regions.
+ */
+public abstract class AbstractRegionManagerTest {
+    static final int REGION_COUNT = 400;
+    static final int QUERY_COUNT = 3000;
+    static final int RANGE = 300;
+
+    Random random;
+    RegionManager flat;
+    RegionManager manager;
+    TestPlayer player;
+    int nextId;
+
+    protected abstract RegionManager createRegionManager() throws Exception;
+
+    @Before
+    public void setUp() throws Exception {
+        random = new Random(2011);
+        flat = new FlatRegionManager(null);
+        manager = createRegionManager();
+        player = new TestPlayer("tetsu");
+        player.addGroup("member");
+        nextId = 0;
+
+        for (int i = 0; i < REGION_COUNT; i++) {
+            addToBoth(createRandomRegion());
+        }
+    }
+
+    ProtectedRegion createRandomRegion() throws Exception {
+        String id = "region" + (nextId++);
+        int x = random.nextInt(RANGE * 2) - RANGE;
+        int z = random.nextInt(RANGE * 2) - RANGE;
+        int y = random.nextInt(128);
+        int width = random.nextInt(40);
+        int length = random.nextInt(40);
+        int height = random.nextInt(64);
+        ProtectedRegion region;
+
+        if (random.nextInt(4) == 0) {
+            List<BlockVector2D> points = new ArrayList<BlockVector2D>();
+            points.add(new BlockVector2D(x, z));
+            points.add(new BlockVector2D(x + width, z + random.nextInt(10)));
+            points.add(new BlockVector2D(x + width, z + length));
+            points.add(new BlockVector2D(x + random.nextInt(10), z + length));
+            region = new ProtectedPolygonalRegion(id, points, y, y + height);
+        } else {
+            region = new ProtectedCuboidRegion(id, new BlockVector(x, y, z),
+                    new BlockVector(x + width, y + height, z + length));
+        }
+
+        region.setPriority(random.nextInt(5) - 2);
+
+        switch (random.nextInt(4)) {
+            case 0:
+                region.setFlag(DefaultFlag.FIRE_SPREAD, StateFlag.State.DENY);
+                break;
+            case 1:
+                region.setFlag(DefaultFlag.FIRE_SPREAD, StateFlag.State.ALLOW);
+                break;
+            default:
+                break;
+        }
+
+        DefaultDomain domain = new DefaultDomain();
+        if (random.nextBoolean()) {
+            domain.addGroup("member");
+        } else {
+            domain.addPlayer("alex");
+        }
+        region.setMembers(domain);
+
+        return region;
+    }
+
+    void addToBoth(ProtectedRegion region) {
+        flat.addRegion(region);
+        manager.addRegion(region);
+    }
+
+    void removeFromBoth(String id) {
+        flat.removeRegion(id);
+        manager.removeRegion(id);
+    }
+
+    Vector randomPoint() {
+        double x = random.nextInt(RANGE * 2 + 80) - RANGE - 40;
+        double y = random.nextInt(200);
+        double z = random.nextInt(RANGE * 2 + 80) - RANGE - 40;
+
+        if (random.nextBoolean()) {
+            x += random.nextDouble();
+            z += random.nextDouble();
+        }
+
+        return new Vector(x, y, z);
+    }
+
+    void assertSameResults() {
+        assertEquals(flat.size(), manager.size());
+
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            Vector pt = randomPoint();
+            ApplicableRegionSet expected = flat.getApplicableRegions(pt);
+            ApplicableRegionSet actual = manager.getApplicableRegions(pt);
+
+            assertEquals("Regions at " + pt, toIds(expected), toIds(actual));
+            assertEquals("IDs at " + pt, new HashSet<String>(flat.getApplicableRegionsIDs(pt)),
+                    new HashSet<String>(manager.getApplicableRegionsIDs(pt)));
+            assertEquals("fire-spread at " + pt, expected.allows(DefaultFlag.FIRE_SPREAD),
+                    actual.allows(DefaultFlag.FIRE_SPREAD));
+            assertEquals("build at " + pt, expected.canBuild(player),
+                    actual.canBuild(player));
+
+            int lastPriority = Integer.MAX_VALUE;
+            for (ProtectedRegion region : actual) {
+                assertTrue("Regions at " + pt + " are not sorted by priority",
+                        region.getPriority() <= lastPriority);
+                lastPriority = region.getPriority();
+            }
+        }
+    }
+
+    Set<String> toIds(ApplicableRegionSet set) {
+        Set<String> ids = new HashSet<String>();
+        for (ProtectedRegion region : set) {
+            ids.add(region.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testQueries() {
+        assertSameResults();
+    }
+
+    @Test
+    public void testRemoval() {
+        Iterator<String> it = new ArrayList<String>(flat.getRegions().keySet()).iterator();
+        while (it.hasNext()) {
+            String id = it.next();
+            if (random.nextInt(3) == 0) {
+                removeFromBoth(id);
+            }
+        }
+
+        assertSameResults();
+    }
+
+    @Test
+    public void testRemovalWithChildren() throws Exception {
+        List<ProtectedRegion> regions = new ArrayList<ProtectedRegion>(flat.getRegions().values());
+        for (int i = 1; i < regions.size(); i += 3) {
+            regions.get(i).setParent(regions.get(i - 1));
+        }
+
+        for (int i = 0; i < regions.size(); i += 6) {
+            removeFromBoth(regions.get(i).getId());
+        }
+
+        assertSameResults();
+    }
+
+    @Test
+    public void testNestedChildren() throws Exception {
+        List<ProtectedRegion> regions = new ArrayList<ProtectedRegion>(manager.getRegions().values());
+        for (int i = 1; i < regions.size(); i++) {
+            if (random.nextInt(4) != 0) {
+                regions.get(i).setParent(regions.get(random.nextInt(i)));
+            }
+        }
+
+        for (int i = 0; i < regions.size(); i += 5) {
+            regions.get(i).setParent(null);
+        }
+
+        for (ProtectedRegion region : regions) {
+            Set<ProtectedRegion> expected = new HashSet<ProtectedRegion>();
+            for (ProtectedRegion other : regions) {
+                for (ProtectedRegion p = other.getParent(); p != null; p = p.getParent()) {
+                    if (p == region) {
+                        expected.add(other);
+                        break;
+                    }
+                }
+            }
+
+            assertEquals(expected, new HashSet<ProtectedRegion>(manager.getDescendants(region)));
+            for (ProtectedRegion child : manager.getChildren(region)) {
+                assertSame(region, child.getParent());
+            }
+        }
+
+        ProtectedRegion removed = regions.get(random.nextInt(20));
+        List<ProtectedRegion> descendants = manager.getDescendants(removed);
+        removeFromBoth(removed.getId());
+
+        assertFalse(manager.hasRegion(removed.getId()));
+        for (ProtectedRegion region : descendants) {
+            assertFalse(manager.hasRegion(region.getId()));
+        }
+        assertEquals(REGION_COUNT - 1 - descendants.size(), manager.size());
+        assertTrue(manager.getChildren(removed).isEmpty());
+        assertSameResults();
+    }
+
+    @Test
+    public void testReplacement() throws Exception {
+        for (int i = 0; i < REGION_COUNT / 2; i++) {
+            nextId = random.nextInt(REGION_COUNT);
+            addToBoth(createRandomRegion());
+        }
+
+        assertSameResults();
+    }
+
+    @Test
+    public void testMixedCaseIds() {
+        ProtectedRegion region = manager.getRegion("region7");
+        assertNotNull(region);
+        assertSame(region, manager.getRegion("REGION7"));
+        assertSame(region, manager.getRegion("Region7"));
+        assertTrue(manager.hasRegion("rEgIoN7"));
+        assertFalse(manager.hasRegion("region7x"));
+
+        removeFromBoth("REGION7");
+        assertFalse(manager.hasRegion("region7"));
+        assertSameResults();
+
+        List<String> ids = new ArrayList<String>(manager.getRegions().keySet());
+        List<String> sorted = new ArrayList<String>(ids);
+        Collections.sort(sorted);
+        assertEquals(sorted, ids);
+    }
+
+    @Test
+    public void testGlobalRegion() {
+        assertNull(manager.getGlobalRegion());
+
+        ProtectedRegion global = new GlobalProtectedRegion("__GLOBAL__");
+        global.setFlag(DefaultFlag.FIRE_SPREAD, StateFlag.State.DENY);
+        addToBoth(global);
+        assertSame(global, manager.getGlobalRegion());
+        assertSame(global, manager.getRegion("__global__"));
+        assertSameResults();
+
+        removeFromBoth("__Global__");
+        assertNull(manager.getGlobalRegion());
+        assertSameResults();
+    }
+
+    @Test
+    public void testPriorityChange() {
+        for (ProtectedRegion region : flat.getRegions().values()) {
+            if (random.nextBoolean()) {
+                region.setPriority(random.nextInt(5) - 2);
+            }
+        }
+
+        assertSameResults();
+    }
+
+    @Test
+    public void testBatchChanges() throws Exception {
+        List<ProtectedRegion> added = new ArrayList<ProtectedRegion>();
+        for (int i = 0; i < REGION_COUNT / 2; i++) {
+            ProtectedRegion region = createRandomRegion();
+            flat.addRegion(region);
+            added.add(region);
+        }
+        manager.addRegions(added);
+
+        assertSameResults();
+
+        List<String> removed = new ArrayList<String>();
+        for (String id : flat.getRegions().keySet()) {
+            if (random.nextInt(3) == 0) {
+                removed.add(id);
+            }
+        }
+        for (String id : removed) {
+            flat.removeRegion(id);
+        }
+        manager.removeRegions(removed);
+
+        assertSameResults();
+    }
+
+    @Test
+    public void testBatchAllows() {
+        List<Vector> points = new ArrayList<Vector>();
+        for (int i = 0; i < QUERY_COUNT / 10; i++) {
+            Vector center = randomPoint();
+            for (int j = 0; j < 10; j++) {
+                points.add(new Vector(center.getBlockX() + random.nextInt(9) - 4,
+                        center.getBlockY() + random.nextInt(9) - 4,
+                        center.getBlockZ() + random.nextInt(9) - 4));
+            }
+            points.add(center);
+        }
+
+        BitSet result = manager.allows(DefaultFlag.FIRE_SPREAD, points);
+
+        for (int i = 0; i < points.size(); i++) {
+            Vector pt = points.get(i);
+            assertEquals("fire-spread at " + pt,
+                    flat.getApplicableRegions(pt).allows(DefaultFlag.FIRE_SPREAD),
+                    result.get(i));
+        }
+    }
+
+    @Test
+    public void testAllowsAll() {
+        ProtectedRegion denied = new ProtectedCuboidRegion("denied",
+                new BlockVector(0, 0, 0), new BlockVector(2, 2, 2));
+        denied.setPriority(100);
+        denied.setFlag(DefaultFlag.FIRE_SPREAD, StateFlag.State.DENY);
+        manager.addRegion(denied);
+        flat.addRegion(denied);
+
+        final List<Vector> points = new ArrayList<Vector>();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            Vector pt = randomPoint();
+            pt = new Vector(pt.getBlockX(), pt.getBlockY(), pt.getBlockZ());
+            if (flat.getApplicableRegions(pt).allows(DefaultFlag.FIRE_SPREAD)) {
+                points.add(pt);
+            }
+        }
+
+        assertTrue(manager.allowsAll(DefaultFlag.FIRE_SPREAD, points));
+
+        int deniedIndex = points.size() / 2;
+        points.add(deniedIndex, new Vector(1, 1, 1));
+        final int[] visited = new int[1];
+        List<Vector> tracked = new AbstractList<Vector>() {
+            @Override
+            public Vector get(int index) {
+                visited[0] = Math.max(visited[0], index + 1);
+                return points.get(index);
+            }
+
+            @Override
+            public int size() {
+                return points.size();
+            }
+        };
+
+        assertFalse(manager.allowsAll(DefaultFlag.FIRE_SPREAD, tracked));
+        assertEquals(deniedIndex + 1, visited[0]);
+    }
+
+    @Test
+    public void testBlockQueries() {
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            Vector pt = randomPoint();
+            int x = pt.getBlockX();
+            int y = pt.getBlockY();
+            int z = pt.getBlockZ();
+            ApplicableRegionSet expected = flat.getApplicableRegions(new Vector(x, y, z));
+
+            assertEquals("Regions at " + x + "," + y + "," + z,
+                    toIds(expected), toIds(manager.getApplicableRegions(x, y, z)));
+            assertEquals("fire-spread at " + x + "," + y + "," + z,
+                    expected.allows(DefaultFlag.FIRE_SPREAD),
+                    manager.allows(DefaultFlag.FIRE_SPREAD, x, y, z));
+        }
+    }
+
+    @Test
+    public void testAllowsAfterFlagChange() {
+        List<Vector> points = new ArrayList<Vector>();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            points.add(randomPoint());
+        }
+
+        assertSameAllows(points);
+
+        for (ProtectedRegion region : manager.getRegions().values()) {
+            switch (random.nextInt(6)) {
+                case 0:
+                    region.setFlag(DefaultFlag.FIRE_SPREAD, StateFlag.State.DENY);
+                    break;
+                case 1:
+                    region.setFlag(DefaultFlag.FIRE_SPREAD, StateFlag.State.ALLOW);
+                    break;
+                case 2:
+                    region.setFlag(DefaultFlag.FIRE_SPREAD, null);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        assertSameAllows(points);
+    }
+
+    void assertSameAllows(List<Vector> points) {
+        for (Vector pt : points) {
+            assertEquals("fire-spread at " + pt,
+                    flat.getApplicableRegions(pt).allows(DefaultFlag.FIRE_SPREAD),
+                    manager.allows(DefaultFlag.FIRE_SPREAD, pt));
+        }
+    }
+
+    @Test
+    public void testAreaQueries() throws Exception {
+        addToBoth(new GlobalProtectedRegion("__global__"));
+
+        for (int i = 0; i < 200; i++) {
+            int x = random.nextInt(RANGE * 2) - RANGE;
+            int y = random.nextInt(128);
+            int z = random.nextInt(RANGE * 2) - RANGE;
+            ProtectedRegion area = new ProtectedCuboidRegion("area",
+                    new BlockVector(x, y, z), new BlockVector(x + random.nextInt(60),
+                            y + random.nextInt(40), z + random.nextInt(60)));
+
+            ApplicableRegionSet expected = flat.getApplicableRegions(area);
+            ApplicableRegionSet actual = manager.getApplicableRegions(area);
+            assertEquals("Regions overlapping " + area.getMinimumPoint(),
+                    toIds(expected), toIds(actual));
+            assertEquals(flat.overlapsUnownedRegion(area, player),
+                    manager.overlapsUnownedRegion(area, player));
+
+            for (ProtectedRegion region : actual) {
+                assertFalse(region instanceof GlobalProtectedRegion);
+            }
+        }
+
+        ProtectedRegion outside = new ProtectedCuboidRegion("outside",
+                new BlockVector(RANGE * 4, 0, RANGE * 4),
+                new BlockVector(RANGE * 4 + 10, 127, RANGE * 4 + 10));
+        assertEquals(0, manager.getApplicableRegions(outside).size());
+        assertFalse(manager.overlapsUnownedRegion(outside, player));
+    }
+
+    int countOwned(RegionManager mgr, TestPlayer player) {
+        int count = 0;
+        for (ProtectedRegion region : mgr.getRegions().values()) {
+            if (region.getOwners().contains(player)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testOwnership() throws Exception {
+        TestPlayer alex = new TestPlayer("Alex");
+        List<ProtectedRegion> regions = new ArrayList<ProtectedRegion>(manager.getRegions().values());
+
+        for (int i = 0; i < regions.size(); i++) {
+            ProtectedRegion region = regions.get(i);
+            switch (i % 5) {
+                case 0:
+                    region.getOwners().addPlayer("alex");
+                    break;
+                case 1:
+                    region.getOwners().addGroup("member");
+                    break;
+                case 2:
+                    region.getOwners().addPlayer("tetsu");
+                    break;
+                case 3:
+                    DefaultDomain owners = new DefaultDomain();
+                    owners.addPlayer("ALEX");
+                    region.setOwners(owners);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        assertEquals(countOwned(manager, player), manager.getRegionCountOfPlayer(player));
+        assertEquals(countOwned(manager, alex), manager.getRegionCountOfPlayer(alex));
+
+        for (int i = 0; i < regions.size(); i += 3) {
+            regions.get(i).getOwners().removePlayer("alex");
+            regions.get(i).getOwners().removeGroup("member");
+        }
+        removeFromBoth(regions.get(1).getId());
+        ProtectedRegion replacement = createRandomRegion();
+        replacement.getOwners().addPlayer("alex");
+        addToBoth(replacement);
+
+        assertEquals(countOwned(manager, player), manager.getRegionCountOfPlayer(player));
+        assertEquals(countOwned(manager, alex), manager.getRegionCountOfPlayer(alex));
+
+        Set<String> expected = new HashSet<String>();
+        for (ProtectedRegion region : manager.getRegions().values()) {
+            if (region.getOwners().getPlayers().contains("alex")) {
+                expected.add(region.getId().toLowerCase());
+            }
+        }
+        assertEquals(expected, manager.getOwnedRegionIds("Alex"));
+        assertTrue(manager.getMemberRegionIds("alex").size() > 0);
+
+        // Detached regions are no longer followed
+        ProtectedRegion removed = regions.get(4);
+        removeFromBoth(removed.getId());
+        removed.getOwners().addPlayer("alex");
+        assertFalse(manager.getOwnedRegionIds("alex").contains(removed.getId().toLowerCase()));
+    }
+
+    @Test
+    public void testSetRegions() {
+        manager.setRegions(flat.getRegions());
+        assertSameResults();
+    }
+}
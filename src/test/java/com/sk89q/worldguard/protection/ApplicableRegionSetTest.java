@@ -19,10 +19,13 @@
 
 package com.sk89q.worldguard.protection;
 
+import com.sk89q.worldedit.BlockVector;
 import com.sk89q.worldguard.LocalPlayer;
 import com.sk89q.worldguard.protection.flags.DefaultFlag;
 import com.sk89q.worldguard.protection.flags.StateFlag;
 import com.sk89q.worldguard.protection.flags.StringFlag;
+import com.sk89q.worldguard.protection.regions.EffectiveRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -133,6 +136,34 @@ public class ApplicableRegionSetTest {
         assertTrue(set.allows(STATE6));
     }
 
+    @Test
+    public void testStateFollowsFlagChanges() {
+        MockApplicableRegionSet mock = new MockApplicableRegionSet();
+        ProtectedRegion region;
+
+        StateFlag STATE1 = new StateFlag(null, false);
+        StateFlag STATE2 = new StateFlag(null, true);
+
+        ProtectedRegion global = mock.global();
+        region = mock.add(0);
+
+        ApplicableRegionSet set = mock.getApplicableSet();
+        assertFalse(set.allows(STATE1));
+        assertTrue(set.allows(STATE2));
+
+        region.setFlag(STATE1, StateFlag.State.ALLOW);
+        assertTrue(set.allows(STATE1));
+        assertTrue(set.allows(STATE2));
+
+        global.setFlag(STATE2, StateFlag.State.DENY);
+        assertTrue(set.allows(STATE1));
+        assertFalse(set.allows(STATE2));
+
+        region.getFlags().clear();
+        assertFalse(set.allows(STATE1));
+        assertFalse(set.allows(STATE2));
+    }
+
     @Test
     public void testStateGlobalWithRegionsDefault() {
         MockApplicableRegionSet mock = new MockApplicableRegionSet();
@@ -481,4 +512,80 @@ public class ApplicableRegionSetTest {
         assertFalse(set.canBuild(nonMember));
     }
 
+    @Test
+    public void testNonStateFlagChildOverridesParent() throws Exception {
+        MockApplicableRegionSet mock = new MockApplicableRegionSet();
+        ProtectedRegion parent;
+        ProtectedRegion child;
+
+        StringFlag STRING1 = new StringFlag(null);
+
+        parent = mock.add(0);
+        parent.setFlag(STRING1, "Parent");
+
+        child = mock.add(0, parent);
+        child.setFlag(STRING1, "Child");
+
+        ApplicableRegionSet set = mock.getApplicableSet();
+        assertEquals(set.getFlag(STRING1), "Child");
+    }
+
+    @Test
+    public void testBuildManyRegions() throws Exception {
+        MockApplicableRegionSet mock = new MockApplicableRegionSet();
+        ProtectedRegion region = null;
+
+        LocalPlayer member = mock.createPlayer();
+        LocalPlayer nonMember = mock.createPlayer();
+
+        for (int i = 0; i < 70; i++) {
+            region = mock.add(0);
+            if (i < 69) {
+                region.getOwners().addPlayer(member);
+            }
+        }
+
+        ApplicableRegionSet set = mock.getApplicableSet();
+        assertFalse(set.canBuild(member));
+        assertFalse(set.canBuild(nonMember));
+
+        region = mock.add(0, region);
+        region.getOwners().addPlayer(member);
+
+        set = mock.getApplicableSet();
+        assertTrue(set.canBuild(member));
+        assertFalse(set.canBuild(nonMember));
+    }
+
+
+    @Test
+    public void testSharedSetFollowsChanges() throws Exception {
+        MockApplicableRegionSet mock = new MockApplicableRegionSet();
+        ProtectedRegion global = mock.global();
+        ProtectedRegion region = mock.add(0);
+
+        ApplicableRegionSet set = mock.getApplicableSet();
+        set.setShared();
+        assertTrue(set.allows(DefaultFlag.FIRE_SPREAD));
+        assertTrue(set.allows(DefaultFlag.FIRE_SPREAD));
+
+        region.setFlag(DefaultFlag.FIRE_SPREAD, StateFlag.State.DENY);
+        assertFalse(set.allows(DefaultFlag.FIRE_SPREAD));
+
+        region.setFlag(DefaultFlag.FIRE_SPREAD, null);
+        global.setFlag(DefaultFlag.FIRE_SPREAD, StateFlag.State.DENY);
+        assertFalse(set.allows(DefaultFlag.FIRE_SPREAD));
+
+        // A parent outside of the set changes the view of the region
+        ProtectedRegion parent = new ProtectedCuboidRegion("parent",
+                new BlockVector(0, 0, 0), new BlockVector(1, 1, 1));
+        region.setParent(parent);
+        global.setFlag(DefaultFlag.FIRE_SPREAD, null);
+        assertTrue(set.allows(DefaultFlag.FIRE_SPREAD));
+        EffectiveRegion view = region.getEffective();
+        parent.setPriority(5);
+        assertFalse(view.isCurrent());
+        assertTrue(set.allows(DefaultFlag.FIRE_SPREAD));
+    }
+
 }
@@ -0,0 +1,65 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldguard.protection.flags.DefaultFlag;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.managers.CachingRegionManager;
+import com.sk89q.worldguard.protection.managers.RTreeRegionManager;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+import static org.junit.Assert.*;
+
+public class CachingRegionManagerTest extends AbstractRegionManagerTest {
+    @Override
+    protected RegionManager createRegionManager() throws Exception {
+        return new CachingRegionManager(new RTreeRegionManager(null), 256);
+    }
+
+    @Test
+    public void testInvalidation() {
+        CachingRegionManager cache = (CachingRegionManager) manager;
+        ProtectedRegion region = flat.getRegions().values().iterator().next();
+        Vector pt = region.getMinimumPoint();
+
+        ApplicableRegionSet first = cache.getApplicableRegions(pt);
+        assertSame(first, cache.getApplicableRegions(pt));
+        assertEquals(1, cache.getCacheHits());
+        assertEquals(1, cache.getCacheMisses());
+
+        region.setFlag(DefaultFlag.FIRE_SPREAD, StateFlag.State.DENY);
+        assertNotSame(first, cache.getApplicableRegions(pt));
+
+        ApplicableRegionSet second = cache.getApplicableRegions(pt);
+        region.getOwners().addPlayer("tetsu");
+        assertNotSame(second, cache.getApplicableRegions(pt));
+
+        manager.removeRegion(region.getId());
+        flat.removeRegion(region.getId());
+        assertFalse(toIds(cache.getApplicableRegions(pt)).contains(region.getId()));
+
+        region.setPriority(region.getPriority() + 1);
+        assertEquals(2, cache.getCacheHits());
+    }
+}
@@ -0,0 +1,138 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldguard.TestPlayer;
+import com.sk89q.worldguard.domains.DefaultDomain;
+import com.sk89q.worldguard.domains.MembershipCache;
+import com.sk89q.worldguard.protection.flags.DefaultFlag;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.regions.EffectiveRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that effective views follow changes to a region and its parents.
+ */
+public class EffectiveRegionTest {
+    ProtectedRegion grandparent;
+    ProtectedRegion parent;
+    ProtectedRegion child;
+    TestPlayer player;
+
+    ProtectedRegion createRegion(String id) {
+        return new ProtectedCuboidRegion(id,
+                new BlockVector(0, 0, 0), new BlockVector(10, 10, 10));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        grandparent = createRegion("grandparent");
+        parent = createRegion("parent");
+        child = createRegion("child");
+        parent.setParent(grandparent);
+        child.setParent(parent);
+        player = new TestPlayer("tetsu");
+        player.addGroup("builders");
+    }
+
+    @Test
+    public void testAncestors() throws Exception {
+        EffectiveRegion effective = child.getEffective();
+        assertEquals(2, effective.getAncestorCount());
+        assertSame(parent, effective.getAncestor(0));
+        assertSame(grandparent, effective.getAncestor(1));
+        assertSame(effective, child.getEffective());
+
+        parent.setParent(null);
+        effective = child.getEffective();
+        assertEquals(1, effective.getAncestorCount());
+        assertSame(parent, effective.getAncestor(0));
+    }
+
+    @Test
+    public void testInheritedDomains() throws Exception {
+        assertFalse(child.isOwner(player));
+
+        grandparent.getOwners().addPlayer("Tetsu");
+        assertTrue(child.isOwner(player));
+        assertTrue(child.isMember(player));
+        assertFalse(child.isMemberOnly(player));
+
+        grandparent.getOwners().removePlayer("tetsu");
+        assertFalse(child.isMember(player));
+
+        DefaultDomain members = new DefaultDomain();
+        members.addGroup("Builders");
+        parent.setMembers(members);
+        assertTrue(child.isMember(player));
+        assertTrue(child.isMemberOnly(player));
+        assertFalse(child.isOwner(player));
+        assertFalse(grandparent.isMember(player));
+
+        child.setParent(null);
+        assertFalse(child.isMember(player));
+    }
+
+    @Test
+    public void testCachedMembership() throws Exception {
+        parent.getMembers().addGroup("builders");
+        int lookups = player.getGroupLookups();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(child.isMember(player));
+            assertTrue(parent.isMemberOnly(player));
+        }
+        assertEquals(lookups + 1, player.getGroupLookups());
+
+        MembershipCache.invalidateAll();
+        assertTrue(child.isMember(player));
+        assertEquals(lookups + 2, player.getGroupLookups());
+
+        parent.getMembers().removeGroup("builders");
+        parent.getMembers().addGroup("visitors");
+        assertFalse(child.isMember(player));
+        player.addGroup("visitors");
+        assertTrue(child.isMember(player));
+    }
+
+    @Test
+    public void testInheritedFlags() throws Exception {
+        grandparent.setFlag(DefaultFlag.PVP, StateFlag.State.DENY);
+        grandparent.setFlag(DefaultFlag.GREET_MESSAGE, "Grandparent");
+        parent.setFlag(DefaultFlag.GREET_MESSAGE, "Parent");
+
+        EffectiveRegion effective = child.getEffective();
+        assertEquals(StateFlag.State.DENY, effective.getFlag(DefaultFlag.PVP));
+        assertEquals("Parent", effective.getFlag(DefaultFlag.GREET_MESSAGE));
+        assertNull(child.getFlag(DefaultFlag.PVP));
+
+        child.setFlag(DefaultFlag.PVP, StateFlag.State.ALLOW);
+        parent.setFlag(DefaultFlag.GREET_MESSAGE, null);
+        effective = child.getEffective();
+        assertEquals(StateFlag.State.ALLOW, effective.getFlag(DefaultFlag.PVP));
+        assertEquals("Grandparent", effective.getFlag(DefaultFlag.GREET_MESSAGE));
+    }
+}
@@ -0,0 +1,91 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldguard.TestPlayer;
+import com.sk89q.worldguard.protection.flags.DefaultFlag;
+import com.sk89q.worldguard.protection.managers.LoadingRegionManager;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+
+import static org.junit.Assert.*;
+
+public class LoadingRegionManagerTest {
+    Vector pt = new Vector(10, 64, -30);
+
+    @Test
+    public void testFailsClosed() {
+        RegionManager manager = new LoadingRegionManager("world");
+        ApplicableRegionSet set = manager.getApplicableRegions(pt);
+
+        assertFalse(set.canBuild(new TestPlayer("tetsu")));
+        assertFalse(set.allows(DefaultFlag.PVP));
+        assertFalse(set.allows(DefaultFlag.TNT));
+        assertFalse(manager.allows(DefaultFlag.FIRE_SPREAD, pt));
+        assertTrue(set.allows(DefaultFlag.ENTRY));
+        assertTrue(set.allows(DefaultFlag.EXIT));
+    }
+
+    @Test
+    public void testReadOnly() {
+        RegionManager manager = new LoadingRegionManager("world");
+
+        try {
+            manager.addRegion(new ProtectedCuboidRegion("spawn",
+                    new BlockVector(0, 0, 0), new BlockVector(5, 5, 5)));
+            fail("Added a region to a loading world");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("world"));
+        }
+
+        try {
+            manager.removeRegion("__global__");
+            fail("Removed a region from a loading world");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        try {
+            manager.save();
+            fail("Saved a loading world");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        assertNotNull(manager.getRegion("__global__"));
+        assertEquals(1, manager.size());
+    }
+
+    @Test
+    public void testSeparateWorlds() {
+        RegionManager first = new LoadingRegionManager("first");
+        RegionManager second = new LoadingRegionManager("second");
+
+        first.getRegion("__global__").setFlag(DefaultFlag.PVP, null);
+        assertTrue(first.getApplicableRegions(pt).allows(DefaultFlag.PVP));
+        assertFalse(second.getApplicableRegions(pt).allows(DefaultFlag.PVP));
+    }
+}
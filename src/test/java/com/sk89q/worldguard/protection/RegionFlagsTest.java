@@ -0,0 +1,124 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldguard.protection.flags.DefaultFlag;
+import com.sk89q.worldguard.protection.flags.Flag;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.flags.StringFlag;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the flag storage of regions against a plain map.
+ */
+public class RegionFlagsTest {
+
+    ProtectedRegion createRegion() {
+        return new ProtectedCuboidRegion("test",
+                new BlockVector(0, 0, 0), new BlockVector(10, 10, 10));
+    }
+
+    @Test
+    public void testOrdinals() {
+        Flag<?>[] flags = DefaultFlag.getFlags();
+        for (Flag<?> flag : flags) {
+            assertSame(flag, Flag.getByOrdinal(flag.getOrdinal()));
+        }
+        assertNull(Flag.getByOrdinal(-1));
+    }
+
+    @Test
+    public void testRandomChanges() {
+        // Enough flags to need more than one word of the mask
+        List<StringFlag> flags = new ArrayList<StringFlag>();
+        for (int i = 0; i < 150; i++) {
+            flags.add(new StringFlag("test" + i));
+        }
+
+        Random random = new Random(2011);
+        ProtectedRegion region = createRegion();
+        Map<Flag<?>, Object> expected = new HashMap<Flag<?>, Object>();
+
+        for (int i = 0; i < 2000; i++) {
+            StringFlag flag = flags.get(random.nextInt(flags.size()));
+            String value = random.nextInt(3) == 0 ? null : "value" + i;
+            region.setFlag(flag, value);
+            if (value == null) {
+                expected.remove(flag);
+            } else {
+                expected.put(flag, value);
+            }
+
+            StringFlag checked = flags.get(random.nextInt(flags.size()));
+            assertEquals(expected.get(checked), region.getFlag(checked));
+        }
+
+        assertEquals(expected, region.getFlags());
+        assertEquals(expected.size(), region.getFlags().size());
+
+        ProtectedRegion copy = createRegion();
+        copy.setFlags(region.getFlags());
+        assertEquals(expected, copy.getFlags());
+    }
+
+    @Test
+    public void testMapView() {
+        ProtectedRegion region = createRegion();
+        region.setFlag(DefaultFlag.PVP, StateFlag.State.DENY);
+        region.setFlag(DefaultFlag.GREET_MESSAGE, "Hello");
+
+        Map<Flag<?>, Object> flags = region.getFlags();
+        assertEquals(StateFlag.State.DENY, flags.get(DefaultFlag.PVP));
+        assertTrue(flags.containsKey(DefaultFlag.GREET_MESSAGE));
+        assertFalse(flags.containsKey(DefaultFlag.TNT));
+
+        flags.put(DefaultFlag.TNT, StateFlag.State.ALLOW);
+        assertEquals(StateFlag.State.ALLOW, region.getFlag(DefaultFlag.TNT));
+
+        flags.remove(DefaultFlag.PVP);
+        assertNull(region.getFlag(DefaultFlag.PVP));
+
+        Iterator<Map.Entry<Flag<?>, Object>> it = flags.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getKey() == DefaultFlag.GREET_MESSAGE) {
+                it.remove();
+            }
+        }
+        assertNull(region.getFlag(DefaultFlag.GREET_MESSAGE));
+        assertEquals(1, flags.size());
+
+        flags.clear();
+        assertNull(region.getFlag(DefaultFlag.TNT));
+        assertTrue(region.getFlags().isEmpty());
+    }
+}
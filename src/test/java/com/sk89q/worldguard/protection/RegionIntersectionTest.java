@@ -0,0 +1,229 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection;
+
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.BlockVector2D;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedPolygonalRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks region intersection against brute force definitions for randomly
+ * generated cuboids and polygons.
+ */
+public class RegionIntersectionTest {
+    static final int PAIR_COUNT = 5000;
+    static final int RANGE = 16;
+    static final int HEIGHT = 8;
+
+    Random random = new Random(2011);
+
+    ProtectedRegion createRandomRegion(String id) {
+        int minY = random.nextInt(HEIGHT);
+        int maxY = minY + random.nextInt(HEIGHT - minY);
+
+        if (random.nextBoolean()) {
+            List<BlockVector2D> points = new ArrayList<BlockVector2D>();
+            int numPoints = 3 + random.nextInt(4);
+            for (int i = 0; i < numPoints; i++) {
+                points.add(new BlockVector2D(random.nextInt(RANGE), random.nextInt(RANGE)));
+            }
+            return new ProtectedPolygonalRegion(id, points, minY, maxY);
+        } else {
+            int x = random.nextInt(RANGE);
+            int z = random.nextInt(RANGE);
+            return new ProtectedCuboidRegion(id, new BlockVector(x, minY, z),
+                    new BlockVector(x + random.nextInt(RANGE - x), maxY,
+                            z + random.nextInt(RANGE - z)));
+        }
+    }
+
+    List<BlockVector2D> getOutline(ProtectedRegion region) {
+        if (region instanceof ProtectedPolygonalRegion) {
+            return ((ProtectedPolygonalRegion) region).getPoints();
+        }
+
+        BlockVector min = region.getMinimumPoint();
+        BlockVector max = region.getMaximumPoint();
+        List<BlockVector2D> points = new ArrayList<BlockVector2D>();
+        points.add(new BlockVector2D(min.getBlockX(), min.getBlockZ()));
+        points.add(new BlockVector2D(max.getBlockX(), min.getBlockZ()));
+        points.add(new BlockVector2D(max.getBlockX(), max.getBlockZ()));
+        points.add(new BlockVector2D(min.getBlockX(), max.getBlockZ()));
+        return points;
+    }
+
+    /**
+     * Two closed shapes intersect if a corner of one lies inside the
+     * other, or if two of their edges touch. Edges of zero length are
+     * already covered by the corners.
+     */
+    boolean intersectsByDefinition(ProtectedRegion a, ProtectedRegion b) {
+        int minY = Math.max(a.getMinimumPoint().getBlockY(), b.getMinimumPoint().getBlockY());
+        int maxY = Math.min(a.getMaximumPoint().getBlockY(), b.getMaximumPoint().getBlockY());
+        if (minY > maxY) {
+            return false;
+        }
+
+        List<BlockVector2D> outlineA = getOutline(a);
+        List<BlockVector2D> outlineB = getOutline(b);
+
+        for (BlockVector2D pt : outlineA) {
+            if (b.contains(new Vector(pt.getBlockX(), minY, pt.getBlockZ()))) {
+                return true;
+            }
+        }
+
+        for (BlockVector2D pt : outlineB) {
+            if (a.contains(new Vector(pt.getBlockX(), minY, pt.getBlockZ()))) {
+                return true;
+            }
+        }
+
+        for (int i = 0; i < outlineA.size(); i++) {
+            BlockVector2D a1 = outlineA.get(i);
+            BlockVector2D a2 = outlineA.get((i + 1) % outlineA.size());
+            if (a1.getX() == a2.getX() && a1.getZ() == a2.getZ()) {
+                continue;
+            }
+
+            for (int j = 0; j < outlineB.size(); j++) {
+                BlockVector2D b1 = outlineB.get(j);
+                BlockVector2D b2 = outlineB.get((j + 1) % outlineB.size());
+                if (b1.getX() == b2.getX() && b1.getZ() == b2.getZ()) {
+                    continue;
+                }
+
+                if (Line2D.linesIntersect(a1.getX(), a1.getZ(), a2.getX(), a2.getZ(),
+                        b1.getX(), b1.getZ(), b2.getX(), b2.getZ())) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    boolean sharesBlock(ProtectedRegion a, ProtectedRegion b) {
+        for (int x = 0; x < RANGE; x++) {
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int z = 0; z < RANGE; z++) {
+                    Vector pt = new Vector(x, y, z);
+                    if (a.contains(pt) && b.contains(pt)) {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    boolean intersects(ProtectedRegion a, ProtectedRegion b) throws Exception {
+        List<ProtectedRegion> candidates = new ArrayList<ProtectedRegion>();
+        candidates.add(b);
+        return a.getIntersectingRegions(candidates).size() > 0;
+    }
+
+    @Test
+    public void testRandomPairs() throws Exception {
+        for (int i = 0; i < PAIR_COUNT; i++) {
+            ProtectedRegion a = createRandomRegion("a");
+            ProtectedRegion b = createRandomRegion("b");
+            boolean expected = intersectsByDefinition(a, b);
+
+            assertEquals("Pair " + i, expected, intersects(a, b));
+            assertEquals("Pair " + i, expected, intersects(b, a));
+
+            if (sharesBlock(a, b)) {
+                assertTrue("Pair " + i + " shares a block", expected);
+            }
+        }
+    }
+
+    @Test
+    public void testTouchingCuboids() throws Exception {
+        ProtectedRegion a = new ProtectedCuboidRegion("a",
+                new BlockVector(0, 0, 0), new BlockVector(10, 10, 10));
+        ProtectedRegion b = new ProtectedCuboidRegion("b",
+                new BlockVector(10, 10, 10), new BlockVector(20, 20, 20));
+        ProtectedRegion c = new ProtectedCuboidRegion("c",
+                new BlockVector(0, 11, 0), new BlockVector(10, 20, 10));
+
+        assertTrue(intersects(a, b));
+        assertFalse(intersects(a, c));
+    }
+
+    @Test
+    public void testCuboidInsidePolygon() throws Exception {
+        List<BlockVector2D> points = new ArrayList<BlockVector2D>();
+        points.add(new BlockVector2D(0, 0));
+        points.add(new BlockVector2D(100, 0));
+        points.add(new BlockVector2D(50, 100));
+        ProtectedRegion polygon = new ProtectedPolygonalRegion("polygon", points, 0, 127);
+        ProtectedRegion inside = new ProtectedCuboidRegion("inside",
+                new BlockVector(45, 60, 10), new BlockVector(55, 70, 20));
+        ProtectedRegion corner = new ProtectedCuboidRegion("corner",
+                new BlockVector(0, 0, 90), new BlockVector(10, 10, 100));
+
+        assertTrue(intersects(polygon, inside));
+        assertTrue(intersects(inside, polygon));
+        assertFalse(intersects(polygon, corner));
+        assertFalse(intersects(corner, polygon));
+    }
+
+    @Test
+    public void testGlobalRegion() throws Exception {
+        ProtectedRegion global = new GlobalProtectedRegion("__global__");
+        ProtectedRegion cuboid = new ProtectedCuboidRegion("cuboid",
+                new BlockVector(-10, 0, -10), new BlockVector(10, 10, 10));
+
+        assertFalse(intersects(cuboid, global));
+    }
+
+    @Test
+    public void testBlockContains() {
+        for (int i = 0; i < PAIR_COUNT / 10; i++) {
+            ProtectedRegion region = createRandomRegion("a");
+
+            for (int x = -1; x <= RANGE; x++) {
+                for (int y = -1; y <= HEIGHT; y++) {
+                    for (int z = -1; z <= RANGE; z++) {
+                        assertEquals(region.getTypeName() + " at " + x + "," + y + "," + z,
+                                region.contains(new Vector(x, y, z)),
+                                region.contains(x, y, z));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -62,7 +62,7 @@ public class RegionOverlapTest {
     public void setUp() throws Exception {
         setUpGlobalRegion();
 
-        manager = new FlatRegionManager(null);
+        manager = createRegionManager();
 
         setUpPlayers();
         setUpCourtyardRegion();
@@ -70,6 +70,10 @@ public class RegionOverlapTest {
         setUpNoFireRegion();
     }
 
+    protected RegionManager createRegionManager() throws Exception {
+        return new FlatRegionManager(null);
+    }
+
     void setUpPlayers() {
         player1 = new TestPlayer("tetsu");
         player1.addGroup(MEMBER_GROUP);
@@ -55,13 +55,17 @@ public class RegionPriorityTest {
     public void setUp() throws Exception {
         setUpGlobalRegion();
         
-        manager = new FlatRegionManager(null);
+        manager = createRegionManager();
 
         setUpPlayers();
         setUpCourtyardRegion();
         setUpFountainRegion();
     }
     
+    protected RegionManager createRegionManager() throws Exception {
+        return new FlatRegionManager(null);
+    }
+
     void setUpPlayers() {
         player1 = new TestPlayer("tetsu");
         player1.addGroup(MEMBER_GROUP);
@@ -0,0 +1,187 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection.databases;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldguard.protection.managers.FlatRegionManager;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+import static org.junit.Assert.*;
+
+public class AsyncProtectionDatabaseTest {
+    MemoryDatabase memory;
+    AsyncProtectionDatabase database;
+    LinkedList<Runnable> mainTasks;
+    ScheduledExecutorService writer;
+    RegionManager manager;
+    ProtectedRegion parent;
+    ProtectedRegion child;
+
+    static class MemoryDatabase extends AbstractProtectionDatabase {
+        Map<String, ProtectedRegion> regions = new HashMap<String, ProtectedRegion>();
+        int saves;
+
+        public void load() throws IOException {
+        }
+
+        public void save() throws IOException {
+            saves++;
+        }
+
+        public Map<String, ProtectedRegion> getRegions() {
+            return regions;
+        }
+
+        public void setRegions(Map<String, ProtectedRegion> regions) {
+            this.regions = regions;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        memory = new MemoryDatabase();
+        mainTasks = new LinkedList<Runnable>();
+        writer = Executors.newSingleThreadScheduledExecutor();
+        Executor mainThread = new Executor() {
+            public void execute(Runnable task) {
+                synchronized (mainTasks) {
+                    mainTasks.add(task);
+                }
+            }
+        };
+        database = new AsyncProtectionDatabase(memory, mainThread, writer, 20);
+        manager = new FlatRegionManager(database);
+
+        parent = new ProtectedCuboidRegion("parent",
+                new BlockVector(0, 0, 0), new BlockVector(10, 10, 10));
+        child = new ProtectedCuboidRegion("child",
+                new BlockVector(2, 2, 2), new BlockVector(5, 5, 5));
+        child.setParent(parent);
+        child.getOwners().addPlayer("tetsu");
+        manager.addRegion(parent);
+        manager.addRegion(child);
+    }
+
+    @After
+    public void tearDown() {
+        writer.shutdownNow();
+    }
+
+    void runMainTasks() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            Runnable task;
+            synchronized (mainTasks) {
+                task = mainTasks.poll();
+            }
+            if (task != null) {
+                task.run();
+                return;
+            }
+            Thread.sleep(5);
+        }
+        fail("No task was queued");
+    }
+
+    void waitForWriter() throws Exception {
+        writer.submit(new Runnable() {
+            public void run() {
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testCoalescedSave() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            manager.save();
+        }
+
+        runMainTasks();
+        child.getOwners().addPlayer("sk89q");
+        waitForWriter();
+
+        assertEquals(1, memory.saves);
+        ProtectedRegion savedChild = memory.regions.get("child");
+        assertNotSame(child, savedChild);
+        assertSame(memory.regions.get("parent"), savedChild.getParent());
+        assertTrue(savedChild.getOwners().getPlayers().contains("tetsu"));
+        assertFalse(savedChild.getOwners().getPlayers().contains("sk89q"));
+
+        manager.save();
+        runMainTasks();
+        waitForWriter();
+        assertEquals(2, memory.saves);
+        assertTrue(memory.regions.get("child").getOwners().getPlayers().contains("sk89q"));
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        manager.save();
+        manager.load();
+        assertEquals(1, memory.saves);
+        assertSame(child, memory.regions.get("child"));
+
+        runMainTasks();
+        waitForWriter();
+        assertEquals(1, memory.saves);
+    }
+
+    @Test
+    public void testFlushQueuedCopy() throws Exception {
+        manager.save();
+
+        // Keep the writer busy once the copy has been queued
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread.sleep(50);
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+
+        runMainTasks();
+        database.flush();
+        assertEquals(1, memory.saves);
+        assertNotSame(child, memory.regions.get("child"));
+        assertTrue(memory.regions.get("child").getOwners().getPlayers().contains("tetsu"));
+
+        release.countDown();
+        waitForWriter();
+        assertEquals(1, memory.saves);
+    }
+}
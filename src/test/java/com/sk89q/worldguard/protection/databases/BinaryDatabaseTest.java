@@ -0,0 +1,157 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection.databases;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.BlockVector2D;
+import com.sk89q.worldguard.protection.flags.DefaultFlag;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.managers.FlatRegionManager;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedPolygonalRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+import static org.junit.Assert.*;
+
+public class BinaryDatabaseTest {
+    File file;
+    RegionManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("regions", ".bin");
+        file.deleteOnExit();
+        manager = new FlatRegionManager(new BinaryDatabase(file));
+    }
+
+    RegionManager open() throws IOException {
+        RegionManager manager = new FlatRegionManager(new BinaryDatabase(file));
+        manager.load();
+        return manager;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ProtectedRegion parent = new ProtectedCuboidRegion("Parent",
+                new BlockVector(-10, 0, -10), new BlockVector(20, 127, 20));
+        parent.setPriority(3);
+        parent.getOwners().addPlayer("tetsu");
+        parent.getMembers().addGroup("builders");
+        parent.setFlag(DefaultFlag.PVP, StateFlag.State.DENY);
+
+        List<BlockVector2D> points = new ArrayList<BlockVector2D>();
+        points.add(new BlockVector2D(0, 0));
+        points.add(new BlockVector2D(8, 0));
+        points.add(new BlockVector2D(4, 6));
+        ProtectedRegion child = new ProtectedPolygonalRegion("child", points, 10, 40);
+        child.setParent(parent);
+        child.getMembers().addPlayer("tetsu");
+        child.setFlag(DefaultFlag.GREET_MESSAGE, "Hello");
+
+        manager.addRegion(parent);
+        manager.addRegion(child);
+        manager.addRegion(new GlobalProtectedRegion("__global__"));
+        manager.save();
+
+        RegionManager loaded = open();
+        assertEquals(manager.getRegions().keySet(), loaded.getRegions().keySet());
+
+        ProtectedRegion loadedParent = loaded.getRegion("parent");
+        assertEquals("Parent", loadedParent.getId());
+        assertEquals(parent.getMinimumPoint(), loadedParent.getMinimumPoint());
+        assertEquals(parent.getMaximumPoint(), loadedParent.getMaximumPoint());
+        assertEquals(3, loadedParent.getPriority());
+        assertEquals(parent.getFlags(), loadedParent.getFlags());
+        assertEquals(parent.getOwners().getPlayers(), loadedParent.getOwners().getPlayers());
+        assertEquals(parent.getMembers().getGroups(), loadedParent.getMembers().getGroups());
+
+        ProtectedPolygonalRegion loadedChild = (ProtectedPolygonalRegion) loaded.getRegion("child");
+        assertSame(loadedParent, loadedChild.getParent());
+        assertEquals(points.size(), loadedChild.getPoints().size());
+        for (int i = 0; i < points.size(); i++) {
+            assertEquals(points.get(i).getBlockX(), loadedChild.getPoints().get(i).getBlockX());
+            assertEquals(points.get(i).getBlockZ(), loadedChild.getPoints().get(i).getBlockZ());
+        }
+        assertEquals(child.getMinimumPoint(), loadedChild.getMinimumPoint());
+        assertEquals(child.getMaximumPoint(), loadedChild.getMaximumPoint());
+        assertEquals(child.getFlags(), loadedChild.getFlags());
+        assertEquals(child.getMembers().getPlayers(), loadedChild.getMembers().getPlayers());
+
+        assertTrue(loaded.getRegion("__global__") instanceof GlobalProtectedRegion);
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        manager.addRegion(new ProtectedCuboidRegion("first",
+                new BlockVector(0, 0, 0), new BlockVector(5, 5, 5)));
+        manager.save();
+
+        File copy = File.createTempFile("regions", ".bin");
+        copy.deleteOnExit();
+        RegionDBUtil.transfer(new BinaryDatabase(file), new BinaryDatabase(copy));
+
+        RegionManager loaded = new FlatRegionManager(new BinaryDatabase(copy));
+        loaded.load();
+        assertNotNull(loaded.getRegion("first"));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        manager.addRegion(new ProtectedCuboidRegion("first",
+                new BlockVector(0, 0, 0), new BlockVector(5, 5, 5)));
+        manager.save();
+
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { 0x57, 0x47, 0x52, 0x42, 0, 0, 0, 1, 0, 0, 0, 9 });
+        out.close();
+
+        try {
+            open();
+            fail("Loaded a broken file");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testNotBinary() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("__global__:\n".getBytes("UTF-8"));
+        out.close();
+
+        try {
+            open();
+            fail("Loaded a broken file");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
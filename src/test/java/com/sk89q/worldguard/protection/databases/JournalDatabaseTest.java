@@ -0,0 +1,235 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection.databases;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldguard.protection.flags.DefaultFlag;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.managers.FlatRegionManager;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+import static org.junit.Assert.*;
+
+public class JournalDatabaseTest {
+    File dir;
+    File journalFile;
+    SnapshotDatabase snapshot;
+    RegionManager manager;
+
+    /**
+     * Keeps copies of the saved regions, as a file would.
+     */
+    static class SnapshotDatabase extends AbstractProtectionDatabase {
+        Map<String, ProtectedRegion> stored = new HashMap<String, ProtectedRegion>();
+        Map<String, ProtectedRegion> regions = new HashMap<String, ProtectedRegion>();
+        int saves;
+
+        public void load() throws IOException {
+            regions = RegionDBUtil.copyRegions(stored);
+        }
+
+        public void save() throws IOException {
+            stored = RegionDBUtil.copyRegions(regions);
+            saves++;
+        }
+
+        public Map<String, ProtectedRegion> getRegions() {
+            return regions;
+        }
+
+        public void setRegions(Map<String, ProtectedRegion> regions) {
+            this.regions = regions;
+        }
+    }
+
+    static final Executor DIRECT = new Executor() {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        journalFile = new File(dir, "regions.journal");
+        snapshot = new SnapshotDatabase();
+        manager = open(1000);
+    }
+
+    RegionManager open(int compactRecords) throws IOException {
+        RegionManager manager = new FlatRegionManager(
+                new JournalDatabase(snapshot, journalFile, DIRECT, compactRecords));
+        manager.load();
+        return manager;
+    }
+
+    ProtectedRegion createRegion(String id, int size) {
+        return new ProtectedCuboidRegion(id,
+                new BlockVector(0, 0, 0), new BlockVector(size, size, size));
+    }
+
+    void assertSameRegions(RegionManager expected, RegionManager actual) {
+        assertEquals(expected.getRegions().keySet(), actual.getRegions().keySet());
+
+        for (ProtectedRegion region : expected.getRegions().values()) {
+            ProtectedRegion other = actual.getRegion(region.getId());
+            assertEquals(region.getMinimumPoint(), other.getMinimumPoint());
+            assertEquals(region.getMaximumPoint(), other.getMaximumPoint());
+            assertEquals(region.getPriority(), other.getPriority());
+            assertEquals(region.getFlags(), other.getFlags());
+            assertEquals(region.getOwners().getPlayers(), other.getOwners().getPlayers());
+            assertEquals(region.getMembers().getGroups(), other.getMembers().getGroups());
+            assertEquals(region.getParent() == null ? null : region.getParent().getId(),
+                    other.getParent() == null ? null : other.getParent().getId());
+        }
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        ProtectedRegion parent = createRegion("parent", 20);
+        ProtectedRegion child = createRegion("child", 5);
+        child.setParent(parent);
+        child.setFlag(DefaultFlag.PVP, StateFlag.State.DENY);
+        child.setFlag(DefaultFlag.GREET_MESSAGE, "Hello");
+        parent.getOwners().addPlayer("tetsu");
+        manager.addRegion(parent);
+        manager.addRegion(child);
+        manager.addRegion(createRegion("other", 3));
+        manager.save();
+        assertSameRegions(manager, open(1000));
+
+        long length = journalFile.length();
+        child.setPriority(4);
+        child.getMembers().addGroup("builders");
+        manager.removeRegion("other");
+        manager.save();
+        assertSameRegions(manager, open(1000));
+
+        manager.save();
+        assertTrue(journalFile.length() > length);
+        assertEquals(0, snapshot.saves);
+        assertEquals(4, open(1000).getRegion("child").getPriority());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        manager = open(4);
+        ProtectedRegion parent = createRegion("parent", 20);
+        manager.addRegion(parent);
+        for (int i = 0; i < 6; i++) {
+            ProtectedRegion region = createRegion("region" + i, i);
+            region.setParent(parent);
+            manager.addRegion(region);
+            manager.save();
+        }
+
+        assertTrue(snapshot.saves > 0);
+        assertFalse(snapshot.stored.isEmpty());
+        for (File file : dir.listFiles()) {
+            assertEquals(journalFile.getName(), file.getName());
+        }
+
+        manager.getRegion("region1").setPriority(9);
+        manager.save();
+        assertSameRegions(manager, open(4));
+    }
+
+    @Test
+    public void testMixedCaseOverBinary() throws Exception {
+        File file = new File(dir, "regions.bin");
+        new BinaryDatabase(file).save();
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor deferred = new Executor() {
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        };
+
+        manager = new FlatRegionManager(new JournalDatabase(
+                new BinaryDatabase(file), journalFile, deferred, 4));
+        manager.load();
+        ProtectedRegion kingdom = createRegion("Kingdom", 20);
+        ProtectedRegion town = createRegion("Town", 5);
+        town.setParent(kingdom);
+        manager.addRegion(kingdom);
+        manager.addRegion(town);
+        manager.addRegion(createRegion("Village", 3));
+        manager.save();
+        town.setPriority(2);
+        manager.save();
+
+        // Keep the compacted segment around, as if deleting it had failed
+        assertEquals(1, tasks.size());
+        File segment = new File(dir, journalFile.getName() + ".1");
+        byte[] leftover = Files.readAllBytes(segment.toPath());
+        tasks.remove(0).run();
+        assertFalse(segment.exists());
+        Files.write(segment.toPath(), leftover);
+
+        town.setPriority(7);
+        town.setFlag(DefaultFlag.PVP, StateFlag.State.DENY);
+        town.getOwners().addPlayer("tetsu");
+        manager.removeRegion("Village");
+        manager.save();
+
+        RegionManager loaded = new FlatRegionManager(new JournalDatabase(
+                new BinaryDatabase(file), journalFile, DIRECT, 1000));
+        loaded.load();
+        assertSameRegions(manager, loaded);
+        assertEquals(2, loaded.getRegions().size());
+        assertEquals("Town", loaded.getRegion("town").getId());
+        assertSame(loaded.getRegion("kingdom"), loaded.getRegion("town").getParent());
+    }
+
+    @Test
+    public void testIncompleteRecord() throws Exception {
+        manager.addRegion(createRegion("first", 5));
+        manager.save();
+
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3 });
+        out.close();
+
+        RegionManager reopened = open(1000);
+        assertSameRegions(manager, reopened);
+
+        reopened.addRegion(createRegion("second", 5));
+        reopened.save();
+        assertSameRegions(reopened, open(1000));
+    }
+}
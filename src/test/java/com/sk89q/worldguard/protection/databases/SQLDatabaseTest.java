@@ -0,0 +1,207 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection.databases;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldedit.BlockVector2D;
+import com.sk89q.worldguard.protection.flags.DefaultFlag;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.managers.FlatRegionManager;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedPolygonalRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+import static org.junit.Assert.*;
+
+public class SQLDatabaseTest {
+    String dsn;
+    RegionManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        File dir = File.createTempFile("regions", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        dsn = "jdbc:h2:" + new File(dir, "regions").getAbsolutePath();
+        manager = new FlatRegionManager(createDatabase("world"));
+    }
+
+    SQLDatabase createDatabase(String world) {
+        return new SQLDatabase(dsn, "sa", "", "wg_", world);
+    }
+
+    RegionManager open(String world) throws IOException {
+        RegionManager manager = new FlatRegionManager(createDatabase(world));
+        manager.load();
+        return manager;
+    }
+
+    int count(String table, String id) throws Exception {
+        Connection conn = DriverManager.getConnection(dsn, "sa", "");
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM wg_"
+                    + table + " WHERE " + (table.equals("region") ? "id" : "region_id") + " = ?");
+            stmt.setString(1, id);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            conn.close();
+        }
+    }
+
+    ProtectedRegion cuboid(String id, int size) {
+        return new ProtectedCuboidRegion(id,
+                new BlockVector(0, 0, 0), new BlockVector(size, size, size));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ProtectedRegion parent = new ProtectedCuboidRegion("Parent",
+                new BlockVector(-10, 0, -10), new BlockVector(20, 127, 20));
+        parent.setPriority(3);
+        parent.getOwners().addPlayer("tetsu");
+        parent.getMembers().addGroup("builders");
+        parent.setFlag(DefaultFlag.PVP, StateFlag.State.DENY);
+
+        List<BlockVector2D> points = new ArrayList<BlockVector2D>();
+        points.add(new BlockVector2D(0, 0));
+        points.add(new BlockVector2D(8, 0));
+        points.add(new BlockVector2D(4, 6));
+        ProtectedRegion child = new ProtectedPolygonalRegion("child", points, 10, 40);
+        child.setParent(parent);
+        child.getMembers().addPlayer("tetsu");
+        child.setFlag(DefaultFlag.GREET_MESSAGE, "Hello");
+
+        manager.addRegion(parent);
+        manager.addRegion(child);
+        manager.addRegion(new GlobalProtectedRegion("__global__"));
+        manager.save();
+
+        RegionManager loaded = open("world");
+        assertEquals(manager.getRegions().keySet(), loaded.getRegions().keySet());
+
+        ProtectedRegion loadedParent = loaded.getRegion("parent");
+        assertEquals("Parent", loadedParent.getId());
+        assertEquals(parent.getMinimumPoint(), loadedParent.getMinimumPoint());
+        assertEquals(parent.getMaximumPoint(), loadedParent.getMaximumPoint());
+        assertEquals(3, loadedParent.getPriority());
+        assertEquals(parent.getFlags(), loadedParent.getFlags());
+        assertEquals(parent.getOwners().getPlayers(), loadedParent.getOwners().getPlayers());
+        assertEquals(parent.getMembers().getGroups(), loadedParent.getMembers().getGroups());
+
+        ProtectedPolygonalRegion loadedChild = (ProtectedPolygonalRegion) loaded.getRegion("child");
+        assertSame(loadedParent, loadedChild.getParent());
+        assertEquals(points.size(), loadedChild.getPoints().size());
+        for (int i = 0; i < points.size(); i++) {
+            assertEquals(points.get(i).getBlockX(), loadedChild.getPoints().get(i).getBlockX());
+            assertEquals(points.get(i).getBlockZ(), loadedChild.getPoints().get(i).getBlockZ());
+        }
+        assertEquals(child.getMinimumPoint(), loadedChild.getMinimumPoint());
+        assertEquals(child.getMaximumPoint(), loadedChild.getMaximumPoint());
+        assertEquals(child.getFlags(), loadedChild.getFlags());
+        assertEquals(child.getMembers().getPlayers(), loadedChild.getMembers().getPlayers());
+
+        assertTrue(loaded.getRegion("__global__") instanceof GlobalProtectedRegion);
+
+        // Worlds share the tables but not the regions
+        assertTrue(open("other").getRegions().isEmpty());
+    }
+
+    @Test
+    public void testIncrementalSave() throws Exception {
+        ProtectedRegion kept = cuboid("kept", 5);
+        ProtectedRegion changed = cuboid("changed", 5);
+        ProtectedRegion removed = cuboid("removed", 5);
+        removed.setFlag(DefaultFlag.PVP, StateFlag.State.DENY);
+        removed.getOwners().addPlayer("tetsu");
+        manager.addRegion(kept);
+        manager.addRegion(changed);
+        manager.addRegion(removed);
+        manager.save();
+
+        changed.setPriority(7);
+        changed.setFlag(DefaultFlag.GREET_MESSAGE, "Hello");
+        changed.getMembers().addPlayer("tetsu");
+        changed.setParent(kept);
+        manager.removeRegion("removed");
+        manager.addRegion(cuboid("added", 8));
+        manager.save();
+
+        RegionManager loaded = open("world");
+        assertEquals(manager.getRegions().keySet(), loaded.getRegions().keySet());
+        assertNotNull(loaded.getRegion("kept"));
+        assertNotNull(loaded.getRegion("added"));
+        assertNull(loaded.getRegion("removed"));
+
+        ProtectedRegion loadedChanged = loaded.getRegion("changed");
+        assertEquals(7, loadedChanged.getPriority());
+        assertEquals(changed.getFlags(), loadedChanged.getFlags());
+        assertEquals(changed.getMembers().getPlayers(), loadedChanged.getMembers().getPlayers());
+        assertSame(loaded.getRegion("kept"), loadedChanged.getParent());
+
+        assertEquals(0, count("region", "removed"));
+        assertEquals(0, count("region_flag", "removed"));
+        assertEquals(0, count("region_domain", "removed"));
+    }
+
+    @Test
+    public void testReplaceDifferentCase() throws Exception {
+        ProtectedRegion old = cuboid("Spawn", 5);
+        old.setFlag(DefaultFlag.PVP, StateFlag.State.DENY);
+        old.getOwners().addPlayer("tetsu");
+        manager.addRegion(old);
+        manager.save();
+
+        ProtectedRegion replacement = cuboid("SPAWN", 9);
+        replacement.getMembers().addGroup("builders");
+        manager.addRegion(replacement);
+        manager.save();
+
+        RegionManager loaded = open("world");
+        assertEquals(1, loaded.getRegions().size());
+
+        ProtectedRegion loadedSpawn = loaded.getRegion("spawn");
+        assertEquals("SPAWN", loadedSpawn.getId());
+        assertEquals(replacement.getMaximumPoint(), loadedSpawn.getMaximumPoint());
+        assertTrue(loadedSpawn.getFlags().isEmpty());
+        assertTrue(loadedSpawn.getOwners().getPlayers().isEmpty());
+        assertEquals(replacement.getMembers().getGroups(), loadedSpawn.getMembers().getGroups());
+
+        assertEquals(0, count("region", "Spawn"));
+        assertEquals(0, count("region_flag", "Spawn"));
+        assertEquals(0, count("region_domain", "Spawn"));
+    }
+}
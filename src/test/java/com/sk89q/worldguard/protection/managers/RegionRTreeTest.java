@@ -0,0 +1,62 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection.managers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+import static org.junit.Assert.*;
+
+public class RegionRTreeTest {
+
+    @Test
+    public void testTightBounds() {
+        RegionRTree tree = new RegionRTree();
+        List<ProtectedRegion> regions = new ArrayList<ProtectedRegion>();
+
+        // A grid of small regions, far apart, forces many splits
+        for (int x = 0; x < 20; x++) {
+            for (int z = 0; z < 20; z++) {
+                ProtectedRegion region = new ProtectedCuboidRegion("r" + x + "_" + z,
+                        new BlockVector(x * 100, 0, z * 100),
+                        new BlockVector(x * 100 + 10, 127, z * 100 + 10));
+                regions.add(region);
+                tree.insert(region);
+                tree.verify();
+            }
+        }
+
+        for (int i = 0; i < regions.size(); i += 3) {
+            tree.remove(regions.get(i));
+            tree.verify();
+        }
+
+        List<ProtectedRegion> found = new ArrayList<ProtectedRegion>();
+        tree.find(505, 705, found);
+        assertEquals(1, found.size());
+        assertEquals("r5_7", found.get(0).getId());
+    }
+}
@@ -0,0 +1,59 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.worldguard.protection.managers;
+
+import java.util.Locale;
+
+import org.junit.Test;
+
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+
+import static org.junit.Assert.*;
+
+public class RegionRegistryTest {
+
+    @Test
+    public void testTurkishLocale() {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+
+        try {
+            RegionRegistry registry = new RegionRegistry();
+            ProtectedRegion island = new ProtectedCuboidRegion("ISLAND",
+                    new BlockVector(0, 0, 0), new BlockVector(5, 5, 5));
+            registry.put(island.getId(), island);
+
+            assertSame(island, registry.get("island"));
+            assertSame(island, registry.get("ISLAND"));
+            assertTrue(registry.keySet().contains("island"));
+
+            ProtectedRegion replacement = new ProtectedCuboidRegion("Island",
+                    new BlockVector(0, 0, 0), new BlockVector(9, 9, 9));
+            assertSame(island, registry.put(replacement.getId(), replacement));
+            assertEquals(1, registry.size());
+            assertSame(replacement, registry.remove("ISLAND"));
+            assertTrue(registry.isEmpty());
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+}
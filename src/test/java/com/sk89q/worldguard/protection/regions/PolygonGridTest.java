@@ -0,0 +1,113 @@
+// $Id$
+/*
+ * WorldGuard
+ * Copyright (C) 2010 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.sk89q.worldguard.protection.regions;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks polygon grids against the plain containment test for randomly
+ * generated polygons.
+ */
+public class PolygonGridTest {
+    static final int POLYGON_COUNT = 100;
+    static final int RANGE = 80;
+
+    Random random = new Random(2011);
+
+    void assertSameResults(int[] xs, int[] zs) {
+        int minX = xs[0], minZ = zs[0], maxX = xs[0], maxZ = zs[0];
+        for (int i = 1; i < xs.length; i++) {
+            minX = Math.min(minX, xs[i]);
+            minZ = Math.min(minZ, zs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxZ = Math.max(maxZ, zs[i]);
+        }
+
+        PolygonGrid grid = PolygonGrid.build(xs, zs, minX, minZ, maxX, maxZ, Integer.MAX_VALUE);
+        assertNotNull(grid);
+
+        for (int x = minX; x <= maxX; x++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                assertEquals("at " + x + "," + z,
+                        RegionIntersection.polygonContains(xs, zs, x, z),
+                        grid.contains(x, z));
+            }
+        }
+    }
+
+    @Test
+    public void testRandomPolygons() {
+        for (int i = 0; i < POLYGON_COUNT; i++) {
+            int numPoints = 3 + random.nextInt(60);
+            int[] xs = new int[numPoints];
+            int[] zs = new int[numPoints];
+            for (int j = 0; j < numPoints; j++) {
+                xs[j] = random.nextInt(RANGE * 2) - RANGE;
+                zs[j] = random.nextInt(RANGE * 2) - RANGE;
+            }
+            assertSameResults(xs, zs);
+        }
+    }
+
+    @Test
+    public void testStarPolygons() {
+        for (int i = 0; i < POLYGON_COUNT; i++) {
+            int numPoints = 3 + random.nextInt(120);
+            int[] xs = new int[numPoints];
+            int[] zs = new int[numPoints];
+            for (int j = 0; j < numPoints; j++) {
+                double angle = 2 * Math.PI * j / numPoints;
+                double radius = RANGE * (0.2 + 0.8 * random.nextDouble());
+                xs[j] = (int) Math.round(Math.cos(angle) * radius);
+                zs[j] = (int) Math.round(Math.sin(angle) * radius);
+            }
+            assertSameResults(xs, zs);
+        }
+    }
+
+    @Test
+    public void testAxisAlignedPolygons() {
+        // Staircases have many vertical edges and points on chunk borders
+        for (int i = 0; i < POLYGON_COUNT; i++) {
+            int steps = 1 + random.nextInt(20);
+            int[] xs = new int[steps * 2 + 2];
+            int[] zs = new int[steps * 2 + 2];
+            int x = -RANGE + random.nextInt(16);
+            int z = -RANGE + random.nextInt(16);
+            int n = 0;
+            xs[n] = x;
+            zs[n++] = z;
+            for (int j = 0; j < steps; j++) {
+                x += 1 + random.nextInt(16);
+                xs[n] = x;
+                zs[n++] = z;
+                z += random.nextInt(16);
+                xs[n] = x;
+                zs[n++] = z;
+            }
+            xs[n] = xs[0];
+            zs[n] = z;
+            assertSameResults(xs, zs);
+        }
+    }
+}